@@ -0,0 +1,218 @@
+package com.billzone.biopay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The ring buffer keeps command headers, lengths and status words, never command or response data
+public class ApduTracer {
+    private static final String[] COMMANDS = { "SELECT", "GPO", "READ_RECORD", "GENERATE_AC", "GET_DATA",
+            "INTERNAL_AUTH", "EXTERNAL_AUTH", "GET_CHALLENGE", "VERIFY", "COMPUTE_CC", "GET_RESPONSE", "OTHER" };
+    private static final int OTHER = COMMANDS.length - 1;
+    // Upper bounds in microseconds; the last bucket is open-ended
+    private static final long[] BUCKETS_US = { 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000, 200_000,
+            500_000, 1_000_000, Long.MAX_VALUE };
+    private static final int RING_SIZE = 64;
+
+    public interface Exchange {
+        byte[] transmit(byte[] command);
+    }
+
+    private static class Trace {
+        final long atMs;
+        final boolean contactless;
+        final String header;
+        final int commandLength;
+        final int responseLength;
+        final int sw;
+        final long micros;
+
+        Trace(long atMs, boolean contactless, String header, int commandLength, int responseLength, int sw,
+                long micros) {
+            this.atMs = atMs;
+            this.contactless = contactless;
+            this.header = header;
+            this.commandLength = commandLength;
+            this.responseLength = responseLength;
+            this.sw = sw;
+            this.micros = micros;
+        }
+    }
+
+    private final AtomicLongArray histogram = new AtomicLongArray(COMMANDS.length * BUCKETS_US.length);
+    private final AtomicLongArray counts = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray totalMicros = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray maxMicros = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray failures = new AtomicLongArray(COMMANDS.length);
+    private final AtomicReferenceArray<Trace> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private final AtomicLong sequence = new AtomicLong();
+
+    public byte[] exchange(boolean contactless, byte[] command, Exchange exchange) {
+        long start = System.nanoTime();
+        byte[] response = null;
+        try {
+            response = exchange.transmit(command);
+            return response;
+        } finally {
+            record(contactless, command, response, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        for (int c = 0; c < COMMANDS.length; c++) {
+            counts.set(c, 0);
+            totalMicros.set(c, 0);
+            maxMicros.set(c, 0);
+            failures.set(c, 0);
+        }
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring.set(i, null);
+        }
+    }
+
+    public Map<String, Object> getSummary() {
+        Map<String, Object> commands = new HashMap<>();
+        for (int c = 0; c < COMMANDS.length; c++) {
+            long count = counts.get(c);
+            if (count == 0)
+                continue;
+            long[] buckets = new long[BUCKETS_US.length];
+            List<Long> histogramList = new ArrayList<>();
+            for (int b = 0; b < BUCKETS_US.length; b++) {
+                buckets[b] = histogram.get(c * BUCKETS_US.length + b);
+                histogramList.add(buckets[b]);
+            }
+            Map<String, Object> s = new HashMap<>();
+            s.put("count", count);
+            s.put("failures", failures.get(c));
+            s.put("avgUs", totalMicros.get(c) / count);
+            s.put("maxUs", maxMicros.get(c));
+            s.put("p50Us", percentile(buckets, 0.50, maxMicros.get(c)));
+            s.put("p95Us", percentile(buckets, 0.95, maxMicros.get(c)));
+            s.put("histogram", histogramList);
+            commands.put(COMMANDS[c], s);
+        }
+
+        List<Long> bounds = new ArrayList<>();
+        for (int b = 0; b < BUCKETS_US.length - 1; b++) {
+            bounds.add(BUCKETS_US[b]);
+        }
+
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("commands", commands);
+        summary.put("bucketBoundsUs", bounds);
+        summary.put("recent", recent());
+        return summary;
+    }
+
+    private void record(boolean contactless, byte[] command, byte[] response, long micros) {
+        int c = classify(command);
+        int b = 0;
+        while (micros > BUCKETS_US[b]) {
+            b++;
+        }
+        histogram.incrementAndGet(c * BUCKETS_US.length + b);
+        counts.incrementAndGet(c);
+        totalMicros.addAndGet(c, micros);
+        long max;
+        while (micros > (max = maxMicros.get(c)) && !maxMicros.compareAndSet(c, max, micros)) {
+        }
+
+        int sw = -1;
+        if (response != null && response.length >= 2) {
+            sw = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+        }
+        // 9000 success, 61xx more data, 6Cxx wrong Le; anything else counts as a failed command
+        if (sw != 0x9000 && (sw >> 8) != 0x61 && (sw >> 8) != 0x6C) {
+            failures.incrementAndGet(c);
+        }
+
+        long seq = sequence.getAndIncrement();
+        ring.set((int) (seq % RING_SIZE), new Trace(System.currentTimeMillis(), contactless, header(command),
+                command != null ? command.length : 0, response != null ? response.length : -1, sw, micros));
+    }
+
+    private List<Map<String, Object>> recent() {
+        long end = sequence.get();
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (long seq = Math.max(0, end - RING_SIZE); seq < end; seq++) {
+            Trace t = ring.get((int) (seq % RING_SIZE));
+            if (t == null)
+                continue;
+            Map<String, Object> m = new HashMap<>();
+            m.put("atMs", t.atMs);
+            m.put("interface", t.contactless ? "rf" : "ic");
+            m.put("header", t.header);
+            m.put("commandLength", t.commandLength);
+            m.put("responseLength", t.responseLength);
+            m.put("sw", t.sw < 0 ? "" : String.format("%04X", t.sw));
+            m.put("us", t.micros);
+            out.add(m);
+        }
+        return out;
+    }
+
+    private static int classify(byte[] command) {
+        if (command == null || command.length < 4)
+            return OTHER;
+        switch (command[1] & 0xFF) {
+            case 0xA4:
+                return 0;
+            case 0xA8:
+                return 1;
+            case 0xB2:
+                return 2;
+            case 0xAE:
+                return 3;
+            case 0xCA:
+                return 4;
+            case 0x88:
+                return 5;
+            case 0x82:
+                return 6;
+            case 0x84:
+                return 7;
+            case 0x20:
+                return 8;
+            case 0x2A:
+                return 9;
+            case 0xC0:
+                return 10;
+            default:
+                return OTHER;
+        }
+    }
+
+    private static String header(byte[] command) {
+        if (command == null)
+            return "";
+        StringBuilder sb = new StringBuilder(8);
+        for (int i = 0; i < Math.min(4, command.length); i++) {
+            sb.append(Character.toUpperCase(Character.forDigit((command[i] >> 4) & 0xF, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(command[i] & 0xF, 16)));
+        }
+        return sb.toString();
+    }
+
+    private static long percentile(long[] buckets, double p, long max) {
+        long total = 0;
+        for (long n : buckets) {
+            total += n;
+        }
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= target)
+                return Math.min(BUCKETS_US[b], max);
+        }
+        return max;
+    }
+}
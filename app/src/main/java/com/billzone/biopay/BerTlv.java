@@ -0,0 +1,239 @@
+package com.billzone.biopay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Values are read back as slices of the parsed buffer, never copied
+public class BerTlv {
+    private final byte[] data;
+    private int count = 0;
+    private int[] tags = new int[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+
+    private BerTlv(byte[] data) {
+        this.data = data;
+    }
+
+    public static BerTlv parse(byte[] data) {
+        return parse(data, 0, data.length);
+    }
+
+    public static BerTlv parse(byte[] data, int offset, int length) {
+        BerTlv tlv = new BerTlv(data);
+        tlv.index(offset, offset + length);
+        return tlv;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int tagAt(int i) {
+        return tags[i];
+    }
+
+    public boolean has(int tag) {
+        return find(tag) >= 0;
+    }
+
+    public int find(int tag) {
+        for (int i = 0; i < count; i++) {
+            if (tags[i] == tag)
+                return i;
+        }
+        return -1;
+    }
+
+    public int valueOffset(int tag) {
+        int i = find(tag);
+        return i < 0 ? -1 : offsets[i];
+    }
+
+    public int valueLength(int tag) {
+        int i = find(tag);
+        return i < 0 ? -1 : lengths[i];
+    }
+
+    public ByteBuffer value(int tag) {
+        int i = find(tag);
+        if (i < 0)
+            return null;
+        return ByteBuffer.wrap(data, offsets[i], lengths[i]).slice();
+    }
+
+    public byte[] valueBytes(int tag) {
+        int i = find(tag);
+        if (i < 0)
+            return null;
+        return Arrays.copyOfRange(data, offsets[i], offsets[i] + lengths[i]);
+    }
+
+    // Unsigned big-endian value of up to 8 bytes, or -1 when the tag is absent
+    public long longValue(int tag) {
+        int i = find(tag);
+        if (i < 0 || lengths[i] > 8)
+            return -1;
+        long v = 0;
+        for (int p = offsets[i]; p < offsets[i] + lengths[i]; p++) {
+            v = (v << 8) | (data[p] & 0xFF);
+        }
+        return v;
+    }
+
+    // Numeric (n) format: packed BCD digits, or -1 when absent or not BCD
+    public long bcdValue(int tag) {
+        int i = find(tag);
+        if (i < 0 || lengths[i] > 9)
+            return -1;
+        long v = 0;
+        for (int p = offsets[i]; p < offsets[i] + lengths[i]; p++) {
+            int hi = (data[p] >> 4) & 0x0F;
+            int lo = data[p] & 0x0F;
+            if (hi > 9 || lo > 9)
+                return -1;
+            v = v * 100 + hi * 10 + lo;
+        }
+        return v;
+    }
+
+    private void index(int from, int to) {
+        int p = from;
+        while (p < to) {
+            int b = data[p] & 0xFF;
+            // 00 and FF are padding between elements
+            if (b == 0x00 || b == 0xFF) {
+                p++;
+                continue;
+            }
+            boolean constructed = (b & 0x20) != 0;
+            int tag = b;
+            p++;
+            if ((b & 0x1F) == 0x1F) {
+                do {
+                    if (p >= to)
+                        throw new IllegalArgumentException("Truncated tag at " + p);
+                    b = data[p++] & 0xFF;
+                    tag = (tag << 8) | b;
+                } while ((b & 0x80) != 0);
+            }
+
+            if (p >= to)
+                throw new IllegalArgumentException("Missing length for tag " + Integer.toHexString(tag));
+            int length = data[p++] & 0xFF;
+            if (length > 0x80) {
+                int n = length & 0x7F;
+                if (n > 3 || p + n > to)
+                    throw new IllegalArgumentException("Bad length for tag " + Integer.toHexString(tag));
+                length = 0;
+                for (int k = 0; k < n; k++) {
+                    length = (length << 8) | (data[p++] & 0xFF);
+                }
+            } else if (length == 0x80) {
+                throw new IllegalArgumentException("Indefinite length not supported");
+            }
+            if (p + length > to)
+                throw new IllegalArgumentException("Value of tag " + Integer.toHexString(tag) + " overruns buffer");
+
+            add(tag, p, length);
+            if (constructed)
+                index(p, p + length);
+            p += length;
+        }
+    }
+
+    private void add(int tag, int offset, int length) {
+        if (count == tags.length) {
+            tags = Arrays.copyOf(tags, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        tags[count] = tag;
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+    }
+
+    public static class Builder {
+        private byte[] out;
+        private int size = 0;
+
+        public Builder() {
+            this(256);
+        }
+
+        public Builder(int capacity) {
+            out = new byte[capacity];
+        }
+
+        public Builder add(int tag, byte[] value) {
+            return add(tag, value, 0, value.length);
+        }
+
+        public Builder add(int tag, ByteBuffer value) {
+            if (value.hasArray())
+                return add(tag, value.array(), value.arrayOffset() + value.position(), value.remaining());
+            byte[] copy = new byte[value.remaining()];
+            value.duplicate().get(copy);
+            return add(tag, copy);
+        }
+
+        public Builder add(int tag, byte[] value, int offset, int length) {
+            ensure(4 + 4 + length);
+            writeTag(tag);
+            writeLength(length);
+            System.arraycopy(value, offset, out, size, length);
+            size += length;
+            return this;
+        }
+
+        // Copies an element straight from a parsed buffer, skipping tags the kernel did not return
+        public Builder copy(BerTlv from, int tag) {
+            int i = from.find(tag);
+            if (i >= 0)
+                add(tag, from.data, from.offsets[i], from.lengths[i]);
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+
+        private void writeTag(int tag) {
+            if ((tag & 0xFF000000) != 0)
+                out[size++] = (byte) (tag >>> 24);
+            if ((tag & 0xFFFF0000) != 0)
+                out[size++] = (byte) (tag >>> 16);
+            if ((tag & 0xFFFFFF00) != 0)
+                out[size++] = (byte) (tag >>> 8);
+            out[size++] = (byte) tag;
+        }
+
+        private void writeLength(int length) {
+            if (length < 0x80) {
+                out[size++] = (byte) length;
+            } else if (length <= 0xFF) {
+                out[size++] = (byte) 0x81;
+                out[size++] = (byte) length;
+            } else if (length <= 0xFFFF) {
+                out[size++] = (byte) 0x82;
+                out[size++] = (byte) (length >>> 8);
+                out[size++] = (byte) length;
+            } else {
+                out[size++] = (byte) 0x83;
+                out[size++] = (byte) (length >>> 16);
+                out[size++] = (byte) (length >>> 8);
+                out[size++] = (byte) length;
+            }
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > out.length)
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Ranges are flattened at load into disjoint sorted segments (narrowest wins), so a lookup is one binary search
+public class BinTable {
+    private static final String TAG = "BinTable";
+    private static final String TABLE_NAME = "bin_table.json";
+    // Ranges and PANs are compared on their first 10 digits
+    private static final int KEY_DIGITS = 10;
+
+    public static class Entry {
+        public final String scheme;
+        public final String issuer;
+        public final String country;
+        public final String route;
+        public final int version;
+
+        Entry(String scheme, String issuer, String country, String route, int version) {
+            this.scheme = scheme;
+            this.issuer = issuer;
+            this.country = country;
+            this.route = route;
+            this.version = version;
+        }
+    }
+
+    private static class Table {
+        final int version;
+        final String source;
+        final int ranges;
+        final long[] lows;
+        final long[] highs;
+        final Entry[] entries;
+
+        Table(int version, String source, int ranges, long[] lows, long[] highs, Entry[] entries) {
+            this.version = version;
+            this.source = source;
+            this.ranges = ranges;
+            this.lows = lows;
+            this.highs = highs;
+            this.entries = entries;
+        }
+    }
+
+    private final Context context;
+    private final File overrideFile;
+    private final AtomicReference<Table> current = new AtomicReference<>();
+    private String source;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private long loads = 0;
+    private long lastLoadMs = 0;
+
+    public BinTable(Context context) {
+        this.context = context;
+        this.overrideFile = new File(new File(context.getFilesDir(), "bin"), TABLE_NAME);
+    }
+
+    // Serialized against other loads only; lookups keep using the previous table until the swap
+    public synchronized void load() throws IOException, JSONException {
+        long start = System.nanoTime();
+        Table table = build(readTable());
+        Table previous = current.getAndSet(table);
+        loads++;
+        lastLoadMs = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, "BIN table v" + table.version + " from " + table.source + " (" + table.ranges + " ranges, "
+                + table.lows.length + " segments) in " + lastLoadMs + " ms"
+                + (previous != null ? ", replaced v" + previous.version : ""));
+    }
+
+    public Entry lookup(String pan) {
+        long start = System.nanoTime();
+        Table table = current.get();
+        Entry entry = null;
+        if (table != null && pan != null) {
+            long key = key(pan);
+            if (key >= 0) {
+                int i = Arrays.binarySearch(table.lows, key);
+                if (i < 0)
+                    i = -i - 2;
+                if (i >= 0 && key <= table.highs[i])
+                    entry = table.entries[i];
+            }
+        }
+        lookups.incrementAndGet();
+        if (entry == null)
+            misses.incrementAndGet();
+        lookupNanos.addAndGet(System.nanoTime() - start);
+        return entry;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Table table = current.get();
+        long n = lookups.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loaded", table != null);
+        stats.put("version", table != null ? table.version : -1);
+        stats.put("source", table != null ? table.source : null);
+        stats.put("ranges", table != null ? table.ranges : 0);
+        stats.put("segments", table != null ? table.lows.length : 0);
+        stats.put("loads", loads);
+        stats.put("lastLoadMs", lastLoadMs);
+        stats.put("lookups", n);
+        stats.put("misses", misses.get());
+        stats.put("avgLookupNs", n == 0 ? 0 : lookupNanos.get() / n);
+        return stats;
+    }
+
+    private Table build(JSONObject config) throws JSONException {
+        int version = config.getInt("version");
+        JSONArray ranges = config.getJSONArray("ranges");
+        int n = ranges.length();
+        long[] lows = new long[n];
+        long[] highs = new long[n];
+        Entry[] entries = new Entry[n];
+        long[] bounds = new long[n * 2];
+        for (int r = 0; r < n; r++) {
+            JSONObject range = ranges.getJSONObject(r);
+            lows[r] = pad(range.getString("low"), '0');
+            highs[r] = pad(range.getString("high"), '9');
+            if (lows[r] < 0 || highs[r] < lows[r])
+                throw new JSONException("Bad BIN range " + range.getString("low") + "-" + range.getString("high"));
+            entries[r] = new Entry(range.getString("scheme"), range.optString("issuer", ""),
+                    range.optString("country", ""), range.optString("route", ""), version);
+            bounds[r * 2] = lows[r];
+            bounds[r * 2 + 1] = highs[r] + 1;
+        }
+
+        // Elementary segments between every range boundary; each is painted by the ranges covering it, widest first
+        Arrays.sort(bounds);
+        int unique = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            if (unique == 0 || bounds[i] != bounds[unique - 1])
+                bounds[unique++] = bounds[i];
+        }
+        int[] owner = new int[Math.max(0, unique - 1)];
+        Arrays.fill(owner, -1);
+        List<Integer> order = new ArrayList<>();
+        for (int r = 0; r < n; r++) {
+            order.add(r);
+        }
+        Collections.sort(order, (a, b) -> Long.compare(highs[b] - lows[b], highs[a] - lows[a]));
+        for (int r : order) {
+            int i = Arrays.binarySearch(bounds, 0, unique, lows[r]);
+            while (i < owner.length && bounds[i] <= highs[r]) {
+                owner[i++] = r;
+            }
+        }
+
+        // Merge neighbouring segments that resolve to the same range
+        long[] segLows = new long[owner.length];
+        long[] segHighs = new long[owner.length];
+        Entry[] segEntries = new Entry[owner.length];
+        int count = 0;
+        for (int i = 0; i < owner.length; i++) {
+            if (owner[i] < 0)
+                continue;
+            if (count > 0 && segEntries[count - 1] == entries[owner[i]] && segHighs[count - 1] + 1 == bounds[i]) {
+                segHighs[count - 1] = bounds[i + 1] - 1;
+                continue;
+            }
+            segLows[count] = bounds[i];
+            segHighs[count] = bounds[i + 1] - 1;
+            segEntries[count] = entries[owner[i]];
+            count++;
+        }
+        return new Table(version, source, n, Arrays.copyOf(segLows, count), Arrays.copyOf(segHighs, count),
+                Arrays.copyOf(segEntries, count));
+    }
+
+    private JSONObject readTable() throws IOException, JSONException {
+        JSONObject bundled;
+        try (InputStream in = context.getAssets().open(TABLE_NAME)) {
+            bundled = new JSONObject(readAll(in));
+        }
+        if (overrideFile.exists()) {
+            try (InputStream in = new FileInputStream(overrideFile)) {
+                JSONObject override = new JSONObject(readAll(in));
+                if (override.getInt("version") > bundled.getInt("version")) {
+                    source = overrideFile.getPath();
+                    return override;
+                }
+                Log.d(TAG, "Ignoring " + overrideFile + ": not newer than the bundled table");
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Ignoring unreadable " + overrideFile + ": " + e.getMessage());
+            }
+        }
+        source = "assets/" + TABLE_NAME;
+        return bundled;
+    }
+
+    // First KEY_DIGITS digits of the PAN, or -1 when it is not numeric
+    private static long key(String pan) {
+        long key = 0;
+        for (int i = 0; i < KEY_DIGITS; i++) {
+            int d = i < pan.length() ? pan.charAt(i) - '0' : 0;
+            if (d < 0 || d > 9)
+                return -1;
+            key = key * 10 + d;
+        }
+        return key;
+    }
+
+    private static long pad(String prefix, char fill) {
+        if (prefix.isEmpty() || prefix.length() > KEY_DIGITS)
+            return -1;
+        long value = 0;
+        for (int i = 0; i < KEY_DIGITS; i++) {
+            int d = (i < prefix.length() ? prefix.charAt(i) : fill) - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,345 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.zcs.sdk.emv.EmvCapk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// filesDir/emv/capk_store.json replaces the bundled store only with a higher version and a valid signature
+public class CapkStore {
+    private static final String TAG = "CapkStore";
+    private static final String STORE_NAME = "capk_store.json";
+    private static final String SIGNATURE_NAME = STORE_NAME + ".sig";
+    private static final String SIGNING_KEY_ASSET = "capk_signing_key.der";
+
+    public static class Key {
+        public final String scheme;
+        public final String rid;
+        public final int index;
+        public final String modulus;
+        public final String exponent;
+        public final String checksum;
+        public final String expiry;
+
+        Key(String scheme, String rid, int index, String modulus, String exponent, String checksum, String expiry) {
+            this.scheme = scheme;
+            this.rid = rid;
+            this.index = index;
+            this.modulus = modulus;
+            this.exponent = exponent;
+            this.checksum = checksum;
+            this.expiry = expiry;
+        }
+
+        public String id() {
+            return CapkStore.id(rid, index);
+        }
+
+        public EmvCapk toEmvCapk() {
+            EmvCapk ec = new EmvCapk();
+            ec.setRID(rid);
+            ec.setKeyID((byte) index);
+            ec.setModul(modulus);
+            ec.setExponent(exponent);
+            ec.setCheckSum(checksum);
+            ec.setExpDate(expiry);
+            return ec;
+        }
+    }
+
+    private static class KeySet {
+        final long generation;
+        final int version;
+        final String source;
+        final Map<String, Key> byId;
+        final List<Key> keys;
+        final List<Key> dropped;
+
+        KeySet(long generation, int version, String source, Map<String, Key> byId, List<Key> keys,
+                List<Key> dropped) {
+            this.generation = generation;
+            this.version = version;
+            this.source = source;
+            this.byId = byId;
+            this.keys = keys;
+            this.dropped = dropped;
+        }
+    }
+
+    private final Context context;
+    private final File updateFile;
+    private final File signatureFile;
+    private final AtomicReference<KeySet> current = new AtomicReference<>();
+    private final Map<String, long[]> cardKeys = new HashMap<>();
+    private long generations = 0;
+    private long lastLoadMs = 0;
+    private int expiredDropped = 0;
+    private int invalidDropped = 0;
+    private String lastRejection;
+
+    public CapkStore(Context context) {
+        this.context = context;
+        File dir = new File(context.getFilesDir(), "emv");
+        this.updateFile = new File(dir, STORE_NAME);
+        this.signatureFile = new File(dir, SIGNATURE_NAME);
+    }
+
+    public static String id(String rid, int index) {
+        return rid.toUpperCase() + "/" + String.format("%02X", index);
+    }
+
+    public void ensureLoaded() throws IOException, JSONException {
+        if (current.get() == null) {
+            synchronized (this) {
+                if (current.get() == null)
+                    load();
+            }
+        }
+    }
+
+    public synchronized void load() throws IOException, JSONException {
+        long start = System.nanoTime();
+        String[] source = new String[1];
+        JSONObject store = readStore(source);
+
+        int today = today();
+        Map<String, Key> byId = new HashMap<>();
+        List<Key> keys = new ArrayList<>();
+        List<Key> dropped = new ArrayList<>();
+        int expired = 0;
+        int invalid = 0;
+        JSONArray array = store.getJSONArray("keys");
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject k = array.getJSONObject(i);
+            Key key = new Key(k.optString("scheme", ""), k.getString("rid").toUpperCase(),
+                    Integer.parseInt(k.getString("index"), 16), k.getString("modulus").toUpperCase(),
+                    k.optString("exponent", "03").toUpperCase(), k.getString("checksum").toUpperCase(),
+                    k.getString("expiry"));
+            if (!checksumMatches(key)) {
+                Log.e(TAG, "Dropping CAPK " + key.id() + ": checksum mismatch");
+                invalid++;
+                dropped.add(key);
+            } else if (expiresOn(key.expiry) < today) {
+                Log.e(TAG, "Dropping CAPK " + key.id() + ": expired " + key.expiry);
+                expired++;
+                dropped.add(key);
+            } else if (!byId.containsKey(key.id())) {
+                byId.put(key.id(), key);
+                keys.add(key);
+            }
+        }
+
+        KeySet set = new KeySet(++generations, store.getInt("version"), source[0], byId,
+                Collections.unmodifiableList(keys), Collections.unmodifiableList(dropped));
+        current.set(set);
+        expiredDropped = expired;
+        invalidDropped = invalid;
+        lastLoadMs = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, "CAPK store v" + set.version + " from " + set.source + ": " + keys.size() + " keys, "
+                + expired + " expired, " + invalid + " invalid, in " + lastLoadMs + " ms");
+        if (keys.isEmpty())
+            Log.e(TAG, "No usable CA public keys; the kernel falls back to the emv_config capks until the store is updated");
+    }
+
+    public Key get(String rid, int index) {
+        KeySet set = current.get();
+        return set != null ? set.byId.get(id(rid, index)) : null;
+    }
+
+    // The set the kernel should hold; callers compare generations to see whether it changed
+    public List<Key> keys() {
+        KeySet set = current.get();
+        return set != null ? set.keys : Collections.<Key>emptyList();
+    }
+
+    // Everything the last load rejected; only useful as material for kernel load benchmarks
+    public List<Key> droppedKeys() {
+        KeySet set = current.get();
+        return set != null ? set.dropped : Collections.<Key>emptyList();
+    }
+
+    public long generation() {
+        KeySet set = current.get();
+        return set != null ? set.generation : 0;
+    }
+
+    // Counts, per (RID, index) a card asked for, whether the store could serve it
+    public boolean recordCardKey(String rid, int index) {
+        boolean present = get(rid, index) != null;
+        synchronized (cardKeys) {
+            long[] counts = cardKeys.get(id(rid, index));
+            if (counts == null) {
+                counts = new long[2];
+                cardKeys.put(id(rid, index), counts);
+            }
+            counts[present ? 0 : 1]++;
+        }
+        if (!present)
+            Log.e(TAG, "Card requested CAPK " + id(rid, index) + " which is not loaded");
+        return present;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        KeySet set = current.get();
+        List<String> ids = new ArrayList<>();
+        if (set != null) {
+            for (Key key : set.keys) {
+                ids.add(key.id() + " exp " + key.expiry);
+            }
+        }
+        Map<String, Object> requested = new HashMap<>();
+        synchronized (cardKeys) {
+            for (Map.Entry<String, long[]> e : cardKeys.entrySet()) {
+                Map<String, Object> m = new HashMap<>();
+                m.put("hits", e.getValue()[0]);
+                m.put("misses", e.getValue()[1]);
+                requested.put(e.getKey(), m);
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loaded", set != null);
+        stats.put("version", set != null ? set.version : -1);
+        stats.put("source", set != null ? set.source : null);
+        stats.put("generation", set != null ? set.generation : 0);
+        stats.put("keys", ids);
+        stats.put("expiredDropped", expiredDropped);
+        stats.put("invalidDropped", invalidDropped);
+        stats.put("lastLoadMs", lastLoadMs);
+        stats.put("lastRejection", lastRejection);
+        stats.put("requested", requested);
+        return stats;
+    }
+
+    private JSONObject readStore(String[] source) throws IOException, JSONException {
+        JSONObject bundled;
+        try (InputStream in = context.getAssets().open(STORE_NAME)) {
+            bundled = new JSONObject(new String(readAll(in), StandardCharsets.UTF_8));
+        }
+        KeySet loaded = current.get();
+        int floor = Math.max(bundled.getInt("version"), loaded != null ? loaded.version : 0);
+        if (updateFile.exists()) {
+            try {
+                byte[] content = readFile(updateFile);
+                JSONObject update = new JSONObject(new String(content, StandardCharsets.UTF_8));
+                if (update.getInt("version") < floor) {
+                    reject(updateFile + " v" + update.getInt("version") + " is older than v" + floor);
+                } else if (!verify(content)) {
+                    reject(updateFile + " signature does not verify");
+                } else {
+                    lastRejection = null;
+                    source[0] = updateFile.getPath();
+                    return update;
+                }
+            } catch (IOException | JSONException | GeneralSecurityException e) {
+                reject(updateFile + " unreadable: " + e.getMessage());
+            }
+        }
+        source[0] = "assets/" + STORE_NAME;
+        return bundled;
+    }
+
+    private boolean verify(byte[] content) throws IOException, GeneralSecurityException {
+        if (!signatureFile.exists())
+            return false;
+        byte[] der;
+        try (InputStream in = context.getAssets().open(SIGNING_KEY_ASSET)) {
+            der = readAll(in);
+        } catch (IOException e) {
+            // No key provisioned in this build: nothing downloaded can be trusted
+            return false;
+        }
+        PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(key);
+        signature.update(content);
+        return signature.verify(readFile(signatureFile));
+    }
+
+    private void reject(String reason) {
+        lastRejection = reason;
+        Log.e(TAG, "Ignoring CAPK update: " + reason);
+    }
+
+    // EMV checksum: SHA-1 over RID | index | modulus | exponent
+    private static boolean checksumMatches(Key key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(hex(key.rid));
+            sha1.update((byte) key.index);
+            sha1.update(hex(key.modulus));
+            sha1.update(hex(key.exponent));
+            return MessageDigest.isEqual(sha1.digest(), hex(key.checksum));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Keys are valid through their expiry day; YYMMDD dates are taken as 20YY
+    private static int expiresOn(String expiry) {
+        try {
+            int date = Integer.parseInt(expiry);
+            return expiry.length() == 6 ? 20_000_000 + date : date;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int today() {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.YEAR) * 10_000 + (now.get(Calendar.MONTH) + 1) * 100 + now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static byte[] hex(String s) {
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("Odd hex length");
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(s.charAt(i * 2), 16);
+            int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Bad hex digit");
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
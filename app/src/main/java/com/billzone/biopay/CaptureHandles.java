@@ -0,0 +1,180 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class CaptureHandles {
+    private static final String TAG = "CaptureHandles";
+    public static final long DEFAULT_TTL_MS = 60_000;
+
+    public static class PendingCapture {
+        public final String handle;
+        final long expiresAt;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile byte[] template;
+        private volatile String error;
+        private Runnable lease;
+        private Runnable onDone;
+        private boolean released;
+        private volatile boolean cancelled;
+        private ScheduledFuture<?> expiry;
+
+        PendingCapture(String handle, long expiresAt) {
+            this.handle = handle;
+            this.expiresAt = expiresAt;
+        }
+
+        public void complete(byte[] template) {
+            this.template = template;
+            finish();
+        }
+
+        public void fail(String error) {
+            this.error = error;
+            finish();
+        }
+
+        // Gives the capture up; the scanner lease goes back as soon as an in-flight capture finishes
+        public void cancel() {
+            cancelled = true;
+            boolean finished;
+            synchronized (this) {
+                finished = done.getCount() == 0;
+                if (!finished)
+                    onDone = this::release;
+            }
+            if (finished)
+                release();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Holds the scanner session until the capture is matched or expires
+        public synchronized void lease(Runnable releaser) {
+            if (released) {
+                releaser.run();
+            } else {
+                lease = releaser;
+            }
+        }
+
+        public synchronized void release() {
+            if (released)
+                return;
+            released = true;
+            if (lease != null) {
+                lease.run();
+                lease = null;
+            }
+        }
+
+        public byte[] await(long timeoutMs) throws InterruptedException {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                error = "Capture did not finish in time";
+                return null;
+            }
+            return template;
+        }
+
+        public String getError() {
+            return error != null ? error : "Failed to capture fingerprint";
+        }
+
+        private void finish() {
+            done.countDown();
+            Runnable callback;
+            synchronized (this) {
+                callback = onDone;
+                onDone = null;
+            }
+            if (callback != null)
+                callback.run();
+        }
+    }
+
+    private final Map<String, PendingCapture> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expirer;
+    private volatile long ttlMs = DEFAULT_TTL_MS;
+
+    private long begun = 0;
+    private long matched = 0;
+    private long expired = 0;
+
+    public CaptureHandles() {
+        this.expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fp-capture-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = Math.max(1000, ttlMs);
+    }
+
+    public PendingCapture create() {
+        long ttl = ttlMs;
+        PendingCapture capture = new PendingCapture(UUID.randomUUID().toString(), System.currentTimeMillis() + ttl);
+        capture.expiry = expirer.schedule(() -> expire(capture), ttl, TimeUnit.MILLISECONDS);
+        pending.put(capture.handle, capture);
+        synchronized (this) {
+            begun++;
+        }
+        return capture;
+    }
+
+    public PendingCapture claim(String handle) {
+        if (handle == null)
+            return null;
+        PendingCapture capture = pending.remove(handle);
+        if (capture == null)
+            return null;
+        capture.expiry.cancel(false);
+        if (capture.expiresAt < System.currentTimeMillis()) {
+            expire(capture);
+            return null;
+        }
+        synchronized (this) {
+            matched++;
+        }
+        return capture;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pending", pending.size());
+        stats.put("begun", begun);
+        stats.put("matched", matched);
+        stats.put("expired", expired);
+        stats.put("ttlMs", ttlMs);
+        return stats;
+    }
+
+    public void shutdown() {
+        for (PendingCapture capture : pending.values()) {
+            capture.release();
+        }
+        pending.clear();
+        expirer.shutdownNow();
+    }
+
+    private void expire(PendingCapture capture) {
+        pending.remove(capture.handle);
+        synchronized (this) {
+            expired++;
+        }
+        Log.d(TAG, "Capture handle " + capture.handle + " expired");
+        capture.cancel();
+    }
+}
@@ -0,0 +1,214 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.com.aratek.fp.Bione;
+import cn.com.aratek.fp.FingerprintImage;
+import cn.com.aratek.fp.FingerprintScanner;
+import cn.com.aratek.util.Result;
+
+public class CaptureStrategy {
+    private static final String TAG = "CaptureStrategy";
+    private static final int MIN_FEATURE_LENGTH = 30;
+
+    public static final int DEFAULT_TARGET_QUALITY = 95;
+    public static final int DEFAULT_FLOOR_QUALITY = 60;
+    public static final long DEFAULT_DEADLINE_MS = 8000;
+    // Fraction of the deadline spent holding out for the full target quality
+    private static final double RELAX_START = 0.4;
+    private static final int MAX_FRAMES = 60;
+
+    public static class FrameStat {
+        public final long atMs;
+        public final long captureMs;
+        public final int quality;
+
+        FrameStat(long atMs, long captureMs, int quality) {
+            this.atMs = atMs;
+            this.captureMs = captureMs;
+            this.quality = quality;
+        }
+    }
+
+    public static class CaptureResult {
+        public final byte[] template;
+        public final int quality;
+        public final int acceptedThreshold;
+        public final long elapsedMs;
+        public final List<FrameStat> frames;
+
+        CaptureResult(byte[] template, int quality, int acceptedThreshold, long elapsedMs, List<FrameStat> frames) {
+            this.template = template;
+            this.quality = quality;
+            this.acceptedThreshold = acceptedThreshold;
+            this.elapsedMs = elapsedMs;
+            this.frames = frames;
+        }
+    }
+
+    private volatile int targetQuality = DEFAULT_TARGET_QUALITY;
+    private volatile int floorQuality = DEFAULT_FLOOR_QUALITY;
+    private volatile long deadlineMs = DEFAULT_DEADLINE_MS;
+
+    private long captures = 0;
+    private long failures = 0;
+    private long relaxedAccepts = 0;
+    private long totalFrames = 0;
+    private long totalElapsedMs = 0;
+    private CaptureResult last;
+
+    public void configure(int targetQuality, int floorQuality, long deadlineMs) {
+        this.targetQuality = Math.max(1, Math.min(100, targetQuality));
+        this.floorQuality = Math.max(1, Math.min(this.targetQuality, floorQuality));
+        this.deadlineMs = Math.max(500, deadlineMs);
+    }
+
+    public CaptureResult capture(FingerprintScanner scanner, FingerprintSession session) {
+        int target = targetQuality;
+        int floor = floorQuality;
+        long deadline = deadlineMs;
+        long start = System.nanoTime();
+        List<FrameStat> frames = new ArrayList<>();
+
+        if (scanner.prepare() != FingerprintScanner.RESULT_OK) {
+            if (!session.recover() || scanner.prepare() != FingerprintScanner.RESULT_OK) {
+                Log.e(TAG, "Scanner not ready after recovery");
+                return record(new CaptureResult(null, 0, target, elapsedMs(start), frames), target);
+            }
+        }
+
+        FingerprintImage best = null;
+        int bestQuality = -1;
+        long elapsed = 0;
+        while (frames.size() < MAX_FRAMES && (elapsed = elapsedMs(start)) < deadline) {
+            long frameStart = System.nanoTime();
+            Result res;
+            try {
+                res = scanner.capture();
+            } catch (Exception e) {
+                Log.e(TAG, "Capture iteration error: " + e.getMessage());
+                continue;
+            }
+            if (res != null && isDeviceError(res.error)) {
+                Log.e(TAG, "Device error during capture: " + res.error);
+                if (!session.recover() || scanner.prepare() != FingerprintScanner.RESULT_OK)
+                    break;
+                continue;
+            }
+            if (res == null || !(res.data instanceof FingerprintImage))
+                continue;
+
+            FingerprintImage fi = (FingerprintImage) res.data;
+            int quality = Bione.getFingerprintQuality(fi);
+            frames.add(new FrameStat(elapsed, elapsedMs(frameStart), quality));
+            if (quality > bestQuality) {
+                best = fi;
+                bestQuality = quality;
+            }
+
+            int threshold = thresholdAt(elapsedMs(start), deadline, target, floor);
+            if (bestQuality >= threshold) {
+                byte[] feature = extract(best);
+                if (feature != null) {
+                    return record(new CaptureResult(feature, bestQuality, threshold, elapsedMs(start), frames), target);
+                }
+                // The best frame did not yield usable minutiae; keep looking
+                best = null;
+                bestQuality = -1;
+            }
+        }
+
+        if (best != null && bestQuality >= floor) {
+            byte[] feature = extract(best);
+            if (feature != null) {
+                return record(new CaptureResult(feature, bestQuality, floor, elapsedMs(start), frames), target);
+            }
+        }
+        return record(new CaptureResult(null, Math.max(0, bestQuality), floor, elapsedMs(start), frames), target);
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("targetQuality", targetQuality);
+        stats.put("floorQuality", floorQuality);
+        stats.put("deadlineMs", deadlineMs);
+        stats.put("captures", captures);
+        stats.put("failures", failures);
+        stats.put("relaxedAccepts", relaxedAccepts);
+        stats.put("avgFrames", captures == 0 ? 0 : (double) totalFrames / captures);
+        stats.put("avgElapsedMs", captures == 0 ? 0 : totalElapsedMs / captures);
+        if (last != null) {
+            List<Map<String, Object>> frames = new ArrayList<>();
+            for (FrameStat frame : last.frames) {
+                Map<String, Object> f = new HashMap<>();
+                f.put("atMs", frame.atMs);
+                f.put("captureMs", frame.captureMs);
+                f.put("quality", frame.quality);
+                frames.add(f);
+            }
+            Map<String, Object> lastCapture = new HashMap<>();
+            lastCapture.put("success", last.template != null);
+            lastCapture.put("quality", last.quality);
+            lastCapture.put("acceptedThreshold", last.acceptedThreshold);
+            lastCapture.put("elapsedMs", last.elapsedMs);
+            lastCapture.put("frames", frames);
+            stats.put("last", lastCapture);
+        }
+        return stats;
+    }
+
+    static int thresholdAt(long elapsedMs, long deadlineMs, int target, int floor) {
+        long relaxFrom = (long) (deadlineMs * RELAX_START);
+        if (elapsedMs <= relaxFrom)
+            return target;
+        double progress = Math.min(1.0, (double) (elapsedMs - relaxFrom) / (deadlineMs - relaxFrom));
+        return (int) Math.ceil(target - (target - floor) * progress);
+    }
+
+    private synchronized CaptureResult record(CaptureResult result, int target) {
+        captures++;
+        totalFrames += result.frames.size();
+        totalElapsedMs += result.elapsedMs;
+        if (result.template == null) {
+            failures++;
+        } else if (result.quality < target) {
+            relaxedAccepts++;
+        }
+        last = result;
+        Log.d(TAG, "Capture " + (result.template != null ? "accepted" : "failed") + " at quality " + result.quality
+                + " after " + result.frames.size() + " frames in " + result.elapsedMs + " ms");
+        return result;
+    }
+
+    private byte[] extract(FingerprintImage image) {
+        try {
+            Result feat = Bione.extractIsoFeature(image);
+            if (feat != null && feat.error == Bione.RESULT_OK && feat.data instanceof byte[]) {
+                byte[] featureData = (byte[]) feat.data;
+                if (featureData.length > MIN_FEATURE_LENGTH) {
+                    return featureData;
+                }
+                Log.d(TAG, "Feature data too small (" + featureData.length + " bytes), retrying...");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Feature extraction error: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private static boolean isDeviceError(int error) {
+        return error == FingerprintScanner.DEVICE_NOT_OPEN
+                || error == FingerprintScanner.WRONG_CONNECTION
+                || error == FingerprintScanner.DEVICE_NOT_FOUND
+                || error == FingerprintScanner.DEVICE_REOPEN;
+    }
+}
@@ -0,0 +1,63 @@
+package com.billzone.biopay;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CardLatencyStats {
+    public static final String DIP = "dip";
+    public static final String TAP = "tap";
+
+    private static class Mode {
+        long count = 0;
+        long failures = 0;
+        long totalMs = 0;
+        long totalDetectMs = 0;
+        long totalKernelMs = 0;
+        long minMs = Long.MAX_VALUE;
+        long maxMs = 0;
+        long lastMs = 0;
+    }
+
+    private final Map<String, Mode> modes = new HashMap<>();
+
+    public CardLatencyStats() {
+        modes.put(DIP, new Mode());
+        modes.put(TAP, new Mode());
+    }
+
+    // searchStart -> card detected -> card data delivered, all System.nanoTime()
+    public synchronized void record(String mode, long searchStart, long detectedAt, long finishedAt, boolean success) {
+        Mode m = modes.get(mode);
+        if (!success) {
+            m.failures++;
+            return;
+        }
+        long totalMs = (finishedAt - searchStart) / 1_000_000;
+        m.count++;
+        m.totalMs += totalMs;
+        m.totalDetectMs += (detectedAt - searchStart) / 1_000_000;
+        m.totalKernelMs += (finishedAt - detectedAt) / 1_000_000;
+        m.minMs = Math.min(m.minMs, totalMs);
+        m.maxMs = Math.max(m.maxMs, totalMs);
+        m.lastMs = totalMs;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (Map.Entry<String, Mode> entry : modes.entrySet()) {
+            Mode m = entry.getValue();
+            Map<String, Object> s = new HashMap<>();
+            s.put("count", m.count);
+            s.put("failures", m.failures);
+            s.put("avgTotalMs", m.count == 0 ? 0 : m.totalMs / m.count);
+            // Time to present the card versus time spent in the kernel once it was detected
+            s.put("avgDetectMs", m.count == 0 ? 0 : m.totalDetectMs / m.count);
+            s.put("avgCardMs", m.count == 0 ? 0 : m.totalKernelMs / m.count);
+            s.put("minMs", m.count == 0 ? 0 : m.minMs);
+            s.put("maxMs", m.maxMs);
+            s.put("lastMs", m.lastMs);
+            stats.put(entry.getKey(), s);
+        }
+        return stats;
+    }
+}
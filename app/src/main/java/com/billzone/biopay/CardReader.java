@@ -10,12 +10,10 @@ import com.zcs.sdk.card.CardReaderManager;
 import com.zcs.sdk.card.CardReaderTypeEnum;
 import com.zcs.sdk.card.CardSlotNoEnum;
 import com.zcs.sdk.card.ICCard;
-import com.zcs.sdk.emv.EmvApp;
-import com.zcs.sdk.emv.EmvCapk;
+import com.zcs.sdk.card.RfCard;
 import com.zcs.sdk.emv.EmvData;
 import com.zcs.sdk.emv.EmvHandler;
 import com.zcs.sdk.emv.EmvResult;
-import com.zcs.sdk.emv.EmvTermParam;
 import com.zcs.sdk.emv.EmvTransParam;
 import com.zcs.sdk.emv.OnEmvListener;
 import com.zcs.sdk.listener.OnSearchCardListener;
@@ -23,9 +21,13 @@ import com.zcs.sdk.pin.PinAlgorithmMode;
 import com.zcs.sdk.pin.pinpad.PinPadManager;
 import com.zcs.sdk.util.StringUtils;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CardReader {
     private static final String TAG = "CardReader";
@@ -35,19 +37,26 @@ public class CardReader {
     private PinPadManager pinPadManager;
     private EmvHandler emvHandler;
     private ICCard icCard;
-
-    private String cardPan = "";
-    private String track2Data = "";
-    private String expiryDate = "";
-    private String iccData = "";
-    private String cardSequenceNumber = "";
-    private String posDataCode = "";
-    private String clearPin = "";
-    private int keyIndex = 0;
-    private byte[] pinBlock = new byte[8];
-    private CountDownLatch pinLatch;
-    private int pinResult = EmvResult.EMV_NO_PASSWORD;
-    private int pinRetryCount = 0;
+    private RfCard rfCard;
+    private DeviceScheduler scheduler = DeviceScheduler.getInstance();
+    private EmvConfigManager emvConfig;
+    private BinTable binTable;
+    private CapkStore capkStore;
+    private final CardReaderState readerState = new CardReaderState();
+    private final CardLatencyStats latency = new CardLatencyStats();
+    private final ApduTracer apduTracer = new ApduTracer();
+    private final TransactionTimeline timelines = new TransactionTimeline();
+    private volatile CardSession activeSession;
+    private CardSession armed;
+    private volatile PinEntryPanel pinPanel;
+    private final ScheduledExecutorService armTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "card-arm-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final long BUSY_WAIT_MS = 5000;
+
+    private Dukpt dukpt;
     private static final int MAX_PIN_RETRIES = 3;
 
     public interface CardDataCallback {
@@ -58,10 +67,33 @@ public class CardReader {
         void onEvent(String event);
     }
 
+    public interface StatusCallback {
+        void onSuccess();
+
+        void onError(String error);
+    }
+
     public CardReader(Context context) {
         this.context = context;
         initialize();
+        loadAids();
+        reloadBinTable(null);
         setupKeys();
+        preparePinPanel();
+    }
+
+    // Inflates the PIN pad off the transaction path; until it is ready PIN entry falls back to the activity
+    private void preparePinPanel() {
+        if (!(context instanceof android.app.Activity))
+            return;
+        android.app.Activity activity = (android.app.Activity) context;
+        activity.runOnUiThread(() -> {
+            try {
+                pinPanel = new PinEntryPanel(activity);
+            } catch (Exception e) {
+                Log.e(TAG, "PIN panel unavailable: " + e.getMessage());
+            }
+        });
     }
 
     private void initialize() {
@@ -71,6 +103,10 @@ public class CardReader {
             pinPadManager = driverManager.getPadManager();
             emvHandler = EmvHandler.getInstance();
             icCard = cardReaderManager.getICCard();
+            rfCard = cardReaderManager.getRFCard();
+            capkStore = new CapkStore(context);
+            emvConfig = new EmvConfigManager(context, emvHandler, capkStore);
+            binTable = new BinTable(context);
 
             int status = driverManager.getBaseSysDevice().sdkInit();
             if (status != SdkResult.SDK_OK) {
@@ -82,6 +118,9 @@ public class CardReader {
                 driverManager.getBaseSysDevice().sdkInit();
             }
 
+            // Nothing is known about the reader after a process restart
+            resetReader();
+
             Log.d(TAG, "CardReader initialized successfully");
         } catch (Exception e) {
             Log.e(TAG, "Initialization error: " + e.getMessage());
@@ -89,33 +128,207 @@ public class CardReader {
     }
 
     private void loadAids() {
+        try {
+            scheduler.submit(DeviceScheduler.Device.CARD, () -> {
+                try {
+                    emvConfig.ensureLoaded();
+                } catch (Exception e) {
+                    Log.e(TAG, "EMV config load failed: " + e.getMessage());
+                }
+            }, null);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "EMV config load deferred to first transaction");
+        }
     }
 
-    private void setupKeys() {
-        // Keys managed by backend/payment processor
+    public void reloadEmvConfig(StatusCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.CARD, () -> {
+                try {
+                    emvConfig.reload();
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    callback.onError("EMV config load failed: " + e.getMessage());
+                }
+            }, () -> callback.onError("EMV config reload cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
     }
 
-    private volatile boolean callbackInvoked = false;
+    // Background lane, not the card lane: a table swap must never wait behind a transaction in progress
+    public void reloadBinTable(StatusCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.BACKGROUND, () -> {
+                try {
+                    binTable.load();
+                    if (callback != null)
+                        callback.onSuccess();
+                } catch (Exception e) {
+                    Log.e(TAG, "BIN table load failed: " + e.getMessage());
+                    if (callback != null)
+                        callback.onError("BIN table load failed: " + e.getMessage());
+                }
+            }, () -> {
+                if (callback != null)
+                    callback.onError("BIN table load cancelled");
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "BIN table load rejected, background queue full");
+            if (callback != null)
+                callback.onError("Device busy");
+        }
+    }
 
-    public void readCard(String amount, CardDataCallback callback) {
-        callbackInvoked = false;
-        pinRetryCount = 0;
+    // Parsed and verified off the card lane; the next transaction's setup pushes the new set into the kernel
+    public void reloadCapks(StatusCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.BACKGROUND, () -> {
+                try {
+                    capkStore.load();
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    Log.e(TAG, "CAPK load failed: " + e.getMessage());
+                    callback.onError("CAPK load failed: " + e.getMessage());
+                }
+            }, () -> callback.onError("CAPK load cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
+    }
 
-        new Thread(() -> {
-            try {
-                callback.onEvent("INSERT_CARD");
+    public Map<String, Object> getCapkStats() {
+        return capkStore.getStats();
+    }
+
+    public void benchmarkCapkLoad(int maxKeys, StatusCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.CARD, () -> {
+                try {
+                    emvConfig.ensureLoaded();
+                    emvConfig.benchmarkCapkLoad(maxKeys);
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    callback.onError("CAPK benchmark failed: " + e.getMessage());
+                }
+            }, () -> callback.onError("CAPK benchmark cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
+    }
+
+    public Map<String, Object> getBinTableStats() {
+        return binTable.getStats();
+    }
+
+    public Map<String, Object> getEmvConfigStats() {
+        return emvConfig.getStats();
+    }
 
-                Log.d(TAG, "Cancelling any previous search...");
-                cardReaderManager.cancelSearchCard();
-                Log.d(TAG, "Closing card...");
-                cardReaderManager.closeCard();
+    private void setupKeys() {
+        // Keys managed by backend/payment processor; the DUKPT initial key arrives through loadDukptKey
+        dukpt = new Dukpt(new File(context.getFilesDir(), "dukpt/state"));
+    }
 
-                Log.d(TAG, "Waiting 2 seconds...");
+    // Deriving the register table and syncing it to disk stays off the platform thread
+    public void loadDukptKey(String ipekHex, String ksnHex, StatusCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.BACKGROUND, () -> {
                 try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException ignored) {
+                    dukpt.loadInitialKey(StringUtils.convertHexToBytes(ipekHex), StringUtils.convertHexToBytes(ksnHex));
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    Log.e(TAG, "DUKPT key load failed: " + e.getMessage());
+                    callback.onError("DUKPT key load failed: " + e.getMessage());
                 }
+            }, () -> callback.onError("DUKPT key load cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
+    }
+
+    public Map<String, Object> getDukptStats() {
+        return dukpt.getStats();
+    }
+
+    public void readCard(String amount, CardDataCallback callback) {
+        supersedeArmed("Superseded by a new card read");
+        startRead(new CardSession(amount, callback), 0, null);
+    }
+
+    // Starts searching (and resets a dipped card) before the amount is known; commitAmount finishes the read
+    public void armCardReader(long timeoutMs, StatusCallback callback) {
+        supersedeArmed("Superseded by a new arm request");
+        CardSession session = new CardSession();
+        synchronized (this) {
+            armed = session;
+        }
+        startRead(session, Math.max(1000, timeoutMs), callback);
+    }
+
+    public void commitAmount(String amount, CardDataCallback callback) {
+        CardSession session;
+        synchronized (this) {
+            session = armed;
+            armed = null;
+        }
+        if (session == null || !session.commit(amount, callback)) {
+            String failure = session != null ? session.getFailure() : null;
+            callback.onError(failure != null ? failure : "Card reader not armed");
+        }
+    }
+
+    // Called when the activity goes away: drops an armed read and frees the PIN pad's window and tone generator
+    public void shutdown() {
+        supersedeArmed("Card reader shut down");
+        // Releases a kernel thread waiting on the PIN latch
+        CardSession session = activeSession;
+        if (session != null)
+            session.cancel("Card reader shut down");
+        armTimer.shutdownNow();
+        PinEntryPanel panel = pinPanel;
+        pinPanel = null;
+        if (panel != null)
+            panel.release();
+    }
+
+    private void supersedeArmed(String reason) {
+        CardSession session;
+        synchronized (this) {
+            session = armed;
+            armed = null;
+        }
+        if (session != null)
+            session.cancel(reason);
+    }
 
+    private void startRead(CardSession session, long armTimeoutMs, StatusCallback armCallback) {
+        Runnable read = () -> {
+            try {
+                if (!prepareReader()) {
+                    session.fail("Card reader busy");
+                    session.complete(CardSession.Outcome.FAILED);
+                    if (armCallback != null)
+                        armCallback.onError("Card reader busy");
+                    return;
+                }
+                if (session.isFinished()) {
+                    session.complete(CardSession.Outcome.CANCELLED);
+                    return;
+                }
+                session.event("INSERT_CARD");
+
+                int search = readerState.beginSearch();
+                long searchStart = System.nanoTime();
+                TransactionTimeline.Timeline timeline = timelines.begin();
+                session.timeline = timeline;
+                activeSession = session;
+                // The arm window runs from here; the commit wait below gets whatever is left of it
+                long armDeadline = armTimeoutMs > 0 ? System.nanoTime() + armTimeoutMs * 1_000_000L : 0;
+                if (armTimeoutMs > 0) {
+                    session.timeout = armTimer.schedule(() -> expireArmed(session, search), armTimeoutMs,
+                            TimeUnit.MILLISECONDS);
+                }
                 Log.d(TAG, "Starting card search with 0 timeout (infinite)...");
                 cardReaderManager.searchCard(
                         CardReaderTypeEnum.MAG_IC_RF_CARD,
@@ -124,24 +337,59 @@ public class CardReader {
                             @Override
                             public void onCardInfo(CardInfoEntity cardInfo) {
                                 Log.d(TAG, "Card detected: " + cardInfo.getCardExistslot());
-                                if (callbackInvoked)
+                                if (!readerState.isCurrent(search)
+                                        || !readerState.transition(CardReaderState.State.SEARCHING,
+                                                CardReaderState.State.CARD_PRESENT))
+                                    return;
+                                if (session.isFinished()) {
+                                    closeReader();
+                                    session.complete(CardSession.Outcome.CANCELLED);
                                     return;
-                                if (cardInfo.getCardExistslot() == CardReaderTypeEnum.IC_CARD) {
-                                    callback.onEvent("PROCESSING");
-                                    processIcCard(amount, callback);
-                                } else {
-                                    callbackInvoked = true;
-                                    callback.onError("Only IC cards supported");
+                                }
+                                long detectedAt = System.nanoTime();
+                                timeline.mark(TransactionTimeline.Phase.CARD_DETECTED);
+                                CardReaderTypeEnum slot = cardInfo.getCardExistslot();
+                                boolean ok = false;
+                                try {
+                                    if (slot != CardReaderTypeEnum.IC_CARD && slot != CardReaderTypeEnum.RF_CARD) {
+                                        session.fail("Only chip and contactless cards supported");
+                                        return;
+                                    }
+                                    boolean contactless = slot == CardReaderTypeEnum.RF_CARD;
+                                    timeline.setEntryMode(contactless ? CardLatencyStats.TAP : CardLatencyStats.DIP);
+                                    // A tapped card is already activated by the search; only the chip needs a reset
+                                    if (!contactless && !resetIcCard(session))
+                                        return;
+                                    long commitWaitMs = armTimeoutMs > 0
+                                            ? Math.max(0, (armDeadline - System.nanoTime()) / 1_000_000L)
+                                            : Long.MAX_VALUE;
+                                    if (!session.awaitCommit(commitWaitMs))
+                                        return;
+                                    timeline.mark(TransactionTimeline.Phase.AMOUNT_COMMITTED);
+
+                                    readerState.moveTo(CardReaderState.State.IN_TRANSACTION);
+                                    session.event("PROCESSING");
+                                    ok = processEmvCard(session, contactless);
+                                    // Armed reads are timed from the commit: that is the wait the customer sees
+                                    long from = Math.max(searchStart, session.getCommittedAt());
+                                    latency.record(contactless ? CardLatencyStats.TAP : CardLatencyStats.DIP,
+                                            from, Math.max(detectedAt, from), System.nanoTime(), ok);
+                                } catch (InterruptedException e) {
+                                    session.fail("Card read interrupted");
+                                } finally {
+                                    closeReader();
+                                    finishSession(session, ok);
                                 }
                             }
 
                             @Override
                             public void onError(int code) {
                                 Log.d(TAG, "Card search error: " + code);
-                                if (callbackInvoked)
+                                if (!readerState.isCurrent(search))
                                     return;
-                                callbackInvoked = true;
-                                callback.onError("Card read error: " + code);
+                                readerState.transition(CardReaderState.State.SEARCHING, CardReaderState.State.IDLE);
+                                session.fail("Card read error: " + code);
+                                finishSession(session, false);
                             }
 
                             @Override
@@ -150,133 +398,234 @@ public class CardReader {
                             }
                         });
                 Log.d(TAG, "Search initiated");
+                if (armCallback != null)
+                    armCallback.onSuccess();
             } catch (Exception e) {
                 Log.e(TAG, "Card read exception: " + e.getMessage());
-                if (!callbackInvoked) {
-                    callbackInvoked = true;
-                    callback.onError("Card reading failed: " + e.getMessage());
-                }
+                resetReader();
+                session.fail("Card reading failed: " + e.getMessage());
+                finishSession(session, false);
+                if (armCallback != null)
+                    armCallback.onError("Card reading failed: " + e.getMessage());
             }
-        }).start();
-    }
+        };
 
-    private void processIcCard(String amount, CardDataCallback callback) {
         try {
-            Log.d(TAG, "Resetting IC card...");
-            int ret = icCard.icCardReset(CardSlotNoEnum.SDK_ICC_USERCARD);
-            Log.d(TAG, "IC card reset result: " + ret);
-            if (ret != 0) {
-                if (!callbackInvoked) {
-                    callbackInvoked = true;
-                    callback.onError("Card reset failed (" + ret + "). Try removing and reinserting the card.");
-                }
+            scheduler.submit(DeviceScheduler.Device.CARD, read, () -> {
+                session.cancel("Card read cancelled");
+                session.complete(CardSession.Outcome.CANCELLED);
+                if (armCallback != null)
+                    armCallback.onError("Card read cancelled");
+            });
+        } catch (RejectedExecutionException e) {
+            session.fail("Device busy");
+            session.complete(CardSession.Outcome.FAILED);
+            if (armCallback != null)
+                armCallback.onError("Device busy");
+        }
+    }
+
+    // Runs once the reader is closed; the outcome is fixed by whichever of deliver, fail or cancel happened first
+    private void finishSession(CardSession session, boolean delivered) {
+        CardSession.Outcome outcome;
+        if (delivered)
+            outcome = CardSession.Outcome.DELIVERED;
+        else if (session.isCancelled())
+            outcome = CardSession.Outcome.CANCELLED;
+        else if (!session.isCommitted())
+            outcome = CardSession.Outcome.EXPIRED;
+        else
+            outcome = CardSession.Outcome.FAILED;
+        timelines.finish(session.timeline, outcome.name().toLowerCase());
+        session.complete(outcome);
+        synchronized (this) {
+            if (activeSession == session)
+                activeSession = null;
+        }
+    }
+
+    // No amount arrived in time: give the reader back
+    private void expireArmed(CardSession session, int search) {
+        synchronized (this) {
+            if (session.isCommitted())
                 return;
-            }
+            if (armed == session)
+                armed = null;
+        }
+        Log.d(TAG, "Armed card read expired without an amount");
+        session.fail("Card reader arm timed out");
+        // A detected card is closed by its listener once it wakes; only a running search needs cancelling here
+        if (readerState.isCurrent(search) && readerState.get() == CardReaderState.State.SEARCHING) {
+            resetReader();
+            finishSession(session, false);
+        }
+    }
+
+    private boolean resetIcCard(CardSession session) {
+        Log.d(TAG, "Resetting IC card...");
+        int ret = icCard.icCardReset(CardSlotNoEnum.SDK_ICC_USERCARD);
+        session.mark(TransactionTimeline.Phase.CARD_RESET);
+        Log.d(TAG, "IC card reset result: " + ret);
+        if (ret != 0) {
+            session.fail("Card reset failed (" + ret + "). Try removing and reinserting the card.");
+            return false;
+        }
+        return true;
+    }
+
+    // Resets the hardware only when a previous request left a search running or a card open
+    private boolean prepareReader() throws InterruptedException {
+        long start = System.nanoTime();
+        switch (readerState.get()) {
+            case IDLE:
+                readerState.recordPrepare(start, false);
+                return true;
+            case IN_TRANSACTION:
+            case CLOSING:
+                if (!readerState.awaitState(CardReaderState.State.IDLE, BUSY_WAIT_MS))
+                    return false;
+                readerState.recordPrepare(start, false);
+                return true;
+            default:
+                // A search left running belongs to a superseded session whose listener will never fire
+                CardSession previous = activeSession;
+                resetReader();
+                if (previous != null) {
+                    previous.cancel("Superseded by a new card read");
+                    finishSession(previous, false);
+                }
+                readerState.recordPrepare(start, true);
+                return true;
+        }
+    }
+
+    private void resetReader() {
+        readerState.moveTo(CardReaderState.State.CLOSING);
+        try {
+            cardReaderManager.cancelSearchCard();
+            cardReaderManager.closeCard();
+        } catch (Exception e) {
+            Log.e(TAG, "Reader reset error: " + e.getMessage());
+        } finally {
+            readerState.moveTo(CardReaderState.State.IDLE);
+        }
+    }
+
+    private void closeReader() {
+        if (!readerState.transition(CardReaderState.State.IN_TRANSACTION, CardReaderState.State.CLOSING)
+                && !readerState.transition(CardReaderState.State.CARD_PRESENT, CardReaderState.State.CLOSING))
+            return;
+        try {
+            cardReaderManager.closeCard();
+        } catch (Exception e) {
+            Log.e(TAG, "Close card error: " + e.getMessage());
+        } finally {
+            readerState.moveTo(CardReaderState.State.IDLE);
+        }
+    }
+
+    public Map<String, Object> getTimelineExport() {
+        return timelines.export();
+    }
+
+    public Map<String, Object> getPinPadStats() {
+        PinEntryPanel panel = pinPanel;
+        Map<String, Object> stats = panel != null ? panel.getStats() : new HashMap<>();
+        stats.put("prewarmed", panel != null);
+        return stats;
+    }
+
+    public Map<String, Object> getApduSummary() {
+        return apduTracer.getSummary();
+    }
+
+    public void resetApduStats() {
+        apduTracer.reset();
+    }
+
+    public Map<String, Object> getReaderStats() {
+        Map<String, Object> stats = readerState.getStats();
+        stats.put("latency", latency.getStats());
+        CardSession session = activeSession;
+        stats.put("activeSession", session != null ? session.id : 0);
+        return stats;
+    }
+
+    // Returns true when card data was delivered to the callback
+    private boolean processEmvCard(CardSession session, boolean contactless) {
+        try {
+            long setupStart = System.nanoTime();
+            boolean coldSetup = emvConfig.ensureLoaded();
 
             EmvTransParam transParam = new EmvTransParam();
-            transParam.setTransKernalType(EmvData.KERNAL_EMV_PBOC);
-            transParam.setAmountAuth(String.format("%012d", Long.parseLong(amount)));
+            transParam.setAmountAuth(String.format("%012d", Long.parseLong(session.getAmount())));
             transParam.setAmountOther("000000000000");
-            emvHandler.transParamInit(transParam);
-
-            EmvTermParam termParam = new EmvTermParam();
-            termParam.emvParamFilePath = context.getFilesDir().getPath() + "/emv/";
-            emvHandler.kernelInit(termParam);
-
-            emvHandler.setTlvData(0x5F2A, StringUtils.convertHexToBytes("0566"));
-            emvHandler.setTlvData(0x9F1A, StringUtils.convertHexToBytes("0566"));
-
-            String[] aids = { "A0000000031010", "A0000000041010", "A0000000032010", "A0000003330101",
-                    "A000000333010101", "A000000333010102", "A000000333010103", "A0000000038010",
-                    "A0000000032020", "A0000000033010", "A0000003710001" };
-            for (String aid : aids) {
-                EmvApp ea = new EmvApp();
-                ea.setAid(aid);
-                ea.setSelFlag((byte) 0);
-                ea.setFloorLimit(1000);
-                ea.setOnLinePINFlag((byte) 1);
-                ea.setThreshold(0);
-                ea.setTacDefault("0000000000");
-                ea.setTacDenial("0000000000");
-                ea.setTacOnline("0000000000");
-                ea.settDOL("0F9F02065F2A029A039C0195059F3704");
-                ea.setdDOL("039F3704");
-                ea.setVersion("008C");
-                emvHandler.addApp(ea);
+            if (contactless) {
+                transParam.setTransKernalType(EmvData.KERNAL_CONTACTLESS_ENTRY_POINT);
+                emvConfig.applyContactless(transParam);
+            } else {
+                transParam.setTransKernalType(EmvData.KERNAL_EMV_PBOC);
             }
-
-            EmvCapk mastercardCapk = new EmvCapk();
-            mastercardCapk.setKeyID((byte) 0x05);
-            mastercardCapk.setRID("A000000004");
-            mastercardCapk.setModul(
-                    "B8048ABC30C90D976336543E3FD7091C8FE4800DF820ED55E7E94813ED00555B573FECA3D84AF6131A651D66CFF4284FB13B635EDD0EE40176D8BF04B7FD1C7BACF9AC7327DFAA8AA72D10DB3B8E70B2DDD811CB4196525EA386ACC33C0D9D4575916469C4E4F53E8E1C912CC618CB22DDE7C3568E90022E6BBA770202E4522A2DD623D180E215BD1D1507FE3DC90CA310D27B3EFCCD8F83DE3052CAD1E48938C68D095AAC91B5F37E28BB49EC7ED597");
-            mastercardCapk.setCheckSum("EBFA0D5D06D8CE702DA3EAE890701D45E274C845");
-            mastercardCapk.setExpDate("20211231");
-            emvHandler.addCapk(mastercardCapk);
-
-            EmvCapk visaCapk = new EmvCapk();
-            visaCapk.setKeyID((byte) 0x08);
-            visaCapk.setRID("A000000003");
-            visaCapk.setModul(
-                    "D9FD6ED75D51D0E30664BD157023EAA1FFA871E4DA65672B863D255E81E137A51DE4F72BCC9E44ACE12127F87E263D3AF9DD9CF35CA4A7B01E907000BA85D24954C2FCA3074825DDD4C0C8F186CB020F683E02F2DEAD3969133F06F7845166ACEB57CA0FC2603445469811D293BFEFBAFAB57631B3DD91E796BF850A25012F1AE38F05AA5C4D6D03B1DC2E568612785938BBC9B3CD3A910C1DA55A5A9218ACE0F7A21287752682F15832A678D6E1ED0B");
-            visaCapk.setCheckSum("20D213126955DE205ADC2FD2822BD22DE21CF9A8");
-            visaCapk.setExpDate("20241231");
-            emvHandler.addCapk(visaCapk);
-
-            EmvCapk verveCapk = new EmvCapk();
-            verveCapk.setKeyID((byte) 0x14);
-            verveCapk.setRID("A0000003710001");
-            verveCapk.setModul(
-                    "A3767ABD1B6AA69D7F3FBF28C092DE9ED1E658BA5F0909AF7A1CCD907373B7210FDEB16287BA8E78E1529F443976FD27F991EC67D95E5F4E96B127CAB2396A94D6E45CDA44CA4C4867570D6B07542F8D4BF9FF97975DB9891515E66F525D2B3CBEB6D662BFB6C3F338E93B02142BFC44173A3764C56AADD202075B26DC2F9F7D7AE74BD7D00FD05EE430032663D27A57");
-            verveCapk.setCheckSum("F6C206E2C177EC1DF6D6289EF40ECAD0DB88BF5F");
-            verveCapk.setExpDate("20251231");
-            emvHandler.addCapk(verveCapk);
-
-            Log.d(TAG, "Loaded Mastercard, Visa, and Verve CAPKs");
+            emvHandler.transParamInit(transParam);
+            emvConfig.applyTransactionTlvs();
+            emvConfig.recordSetup(setupStart, coldSetup);
 
             byte[] isEcTrans = new byte[1];
             byte[] balance = new byte[6];
             byte[] transResult = new byte[1];
 
+            session.mark(TransactionTimeline.Phase.KERNEL_STARTED);
             int emvRet = emvHandler.emvTrans(
                     transParam,
                     new OnEmvListener() {
                         @Override
                         public int onSelApp(String[] appLabels) {
+                            if (session.isCancelled())
+                                return EmvResult.EMV_USER_CANCEL;
+                            session.mark(TransactionTimeline.Phase.APP_SELECTED);
                             return 0;
                         }
 
                         @Override
                         public int onConfirmCardNo(String cardNo) {
+                            session.mark(TransactionTimeline.Phase.CARD_NUMBER_CONFIRMED);
                             String[] track2 = new String[1];
                             String[] pan = new String[1];
                             emvHandler.getTrack2AndPAN(track2, pan);
 
-                            cardPan = pan[0];
+                            session.pan = pan[0];
+                            session.bin = binTable.lookup(pan[0]);
                             // Ensure track2 uses 'D' separator instead of '='
-                            track2Data = track2[0].replace('=', 'D');
+                            session.track2 = track2[0].replace('=', 'D');
 
                             int index = track2[0].indexOf("D");
                             if (index == -1)
                                 index = track2[0].indexOf("=");
                             if (index != -1 && track2[0].length() >= index + 5) {
-                                expiryDate = track2[0].substring(index + 1, index + 5);
+                                session.expiry = track2[0].substring(index + 1, index + 5);
                             }
 
-                            return 0;
+                            return session.isCancelled() ? EmvResult.EMV_USER_CANCEL : 0;
                         }
 
                         @Override
                         public int onInputPIN(byte pinType) {
-                            Log.d(TAG, "PIN input attempt: " + (pinRetryCount + 1) + " of " + MAX_PIN_RETRIES);
+                            Log.d(TAG, "PIN input attempt: " + (session.pinRetryCount + 1) + " of " + MAX_PIN_RETRIES);
 
-                            if (pinRetryCount >= MAX_PIN_RETRIES) {
-                                Log.d(TAG, "Max PIN retries exceeded");
+                            if (session.isCancelled() || session.pinRetryCount >= MAX_PIN_RETRIES) {
+                                Log.d(TAG, "Max PIN retries exceeded or session cancelled");
                                 return EmvResult.EMV_USER_CANCEL;
                             }
 
-                            pinRetryCount++;
-                            return inputCustomPin();
+                            if (!dukpt.isLoaded()) {
+                                // No key to encipher with: decline rather than let a clear PIN leave the pad
+                                Log.e(TAG, "PIN requested with no DUKPT key loaded");
+                                session.fail("PIN entry unavailable: no DUKPT key loaded");
+                                return EmvResult.EMV_USER_CANCEL;
+                            }
+
+                            session.pinRetryCount++;
+                            return inputCustomPin(session);
                         }
 
                         @Override
@@ -286,27 +635,36 @@ public class CardReader {
 
                         @Override
                         public byte[] onExchangeApdu(byte[] send) {
-                            return icCard.icExchangeAPDU(CardSlotNoEnum.SDK_ICC_USERCARD, send);
+                            if (contactless)
+                                return apduTracer.exchange(true, send, rfCard::rfExchangeAPDU);
+                            return apduTracer.exchange(false, send,
+                                    command -> icCard.icExchangeAPDU(CardSlotNoEnum.SDK_ICC_USERCARD, command));
                         }
 
                         @Override
                         public int onlineProc() {
+                            session.mark(TransactionTimeline.Phase.ONLINE_PROC);
                             Log.d(TAG, "onlineProc called - processing ICC data");
                             int[] tags = { 0x9F26, 0x9F27, 0x9F10, 0x9F37, 0x9F36, 0x95,
                                     0x9A, 0x9C, 0x9F02, 0x5F2A, 0x82, 0x9F1A, 0x84, 0x5F24,
                                     0x9F03, 0x9F33, 0x9F34, 0x9F35, 0x9F1E, 0x9F09, 0x9F41, 0x9F63, 0x5F34 };
                             byte[] field55 = emvHandler.packageTlvList(tags);
-                            iccData = StringUtils.convertBytesToHex(field55);
-                            Log.d(TAG, "ICC data packaged: " + (iccData != null ? iccData.length() : 0) + " chars");
-
-                            int[] seqTags = { 0x5F34 };
-                            byte[] seqData = emvHandler.packageTlvList(seqTags);
-                            if (seqData != null && seqData.length > 0) {
-                                String hexSeq = StringUtils.convertBytesToHex(seqData);
-                                cardSequenceNumber = String.valueOf(hexStringToInt(hexSeq));
+                            session.iccData = StringUtils.convertBytesToHex(field55);
+                            Log.d(TAG, "ICC data packaged: "
+                                    + (session.iccData != null ? session.iccData.length() : 0) + " chars");
+
+                            if (field55 != null) {
+                                try {
+                                    long psn = BerTlv.parse(field55).bcdValue(0x5F34);
+                                    if (psn >= 0)
+                                        session.cardSequenceNumber = String.format("%03d", psn);
+                                } catch (IllegalArgumentException e) {
+                                    Log.e(TAG, "Malformed ICC data: " + e.getMessage());
+                                }
                             }
 
-                            posDataCode = "510101511344101";
+                            session.posDataCode = "510101511344101";
+                            recordCardCapk();
                             Log.d(TAG, "onlineProc completed successfully");
                             return 0;
                         }
@@ -315,86 +673,148 @@ public class CardReader {
                     balance,
                     transResult);
 
-            cardReaderManager.closeCard();
+            closeReader();
 
             Log.d(TAG, "EMV transaction completed with result: " + emvRet);
             if (emvRet == 0) {
-                if (callbackInvoked) {
-                    Log.d(TAG, "Callback already invoked, skipping");
-                    return;
-                }
-                callbackInvoked = true;
-
-                // Get clear PIN from custom PIN pad
-                Log.d(TAG, "Clear PIN: " + clearPin);
-
                 Log.d(TAG, "Preparing card data for callback");
                 Map<String, String> data = new HashMap<>();
-                data.put("pan", cardPan);
-                data.put("track2", track2Data);
-                data.put("expiry", expiryDate);
-                data.put("iccData", iccData);
-                data.put("pin", clearPin);
-                data.put("cardSequenceNumber", cardSequenceNumber.isEmpty() ? "001" : cardSequenceNumber);
-                data.put("posDataCode", posDataCode);
+                data.put("pan", session.pan);
+                data.put("track2", session.track2);
+                data.put("expiry", session.expiry);
+                data.put("iccData", session.iccData);
+                // Only the enciphered block ever leaves the terminal
+                data.put("pin", "");
+                String clearPin = session.getClearPin();
+                if (!clearPin.isEmpty()) {
+                    if (!dukpt.isLoaded()) {
+                        session.fail("PIN entry unavailable: no DUKPT key loaded");
+                        return false;
+                    }
+                    byte[] clearBlock = PinBlock.format0(clearPin, session.pan);
+                    Dukpt.Result pinBlock = dukpt.encryptPinBlock(clearBlock);
+                    java.util.Arrays.fill(clearBlock, (byte) 0);
+                    data.put("pinBlock", StringUtils.convertBytesToHex(pinBlock.pinBlock));
+                    data.put("pinBlockFormat", "0");
+                    data.put("ksn", StringUtils.convertBytesToHex(pinBlock.ksn));
+                }
+                data.put("cardSequenceNumber",
+                        session.cardSequenceNumber.isEmpty() ? "001" : session.cardSequenceNumber);
+                data.put("posDataCode", session.posDataCode);
+                data.put("entryMode", contactless ? "contactless" : "chip");
+                BinTable.Entry bin = session.bin;
+                data.put("scheme", bin != null ? bin.scheme : "");
+                data.put("issuer", bin != null ? bin.issuer : "");
+                data.put("issuerCountry", bin != null ? bin.country : "");
+                data.put("route", bin != null ? bin.route : "");
+                data.put("binTableVersion", bin != null ? String.valueOf(bin.version) : "");
                 Log.d(TAG, "Invoking callback with card data");
-                callback.onCardData(data);
+                if (!session.deliver(data)) {
+                    Log.d(TAG, "Session " + session.id + " already finished, dropping card data");
+                    return false;
+                }
+                session.mark(TransactionTimeline.Phase.DATA_DELIVERED);
                 Log.d(TAG, "Callback invoked successfully");
+                return true;
             } else {
-                if (!callbackInvoked) {
-                    callbackInvoked = true;
-                    callback.onError("EMV transaction failed");
-                }
+                session.fail("EMV transaction failed");
             }
         } catch (Exception e) {
-            if (!callbackInvoked) {
-                callbackInvoked = true;
-                callback.onError("Processing error: " + e.getMessage());
-            }
+            session.fail("Processing error: " + e.getMessage());
         }
+        return false;
+    }
+
+    // Notes whether the CA key the card named (8F under the RID of 9F06) was in the store
+    private void recordCardCapk() {
+        byte[] index = emvHandler.getTlvData(0x8F);
+        byte[] aid = emvHandler.getTlvData(0x9F06);
+        if (index == null || index.length != 1 || aid == null || aid.length < 5)
+            return;
+        String rid = StringUtils.convertBytesToHex(java.util.Arrays.copyOf(aid, 5));
+        capkStore.recordCardKey(rid, index[0] & 0xFF);
     }
 
-    private int inputCustomPin() {
-        pinLatch = new CountDownLatch(1);
+    private int inputCustomPin(CardSession session) {
+        session.expectPin();
+        int result = EmvResult.EMV_USER_CANCEL;
 
         try {
             String[] track2 = new String[1];
             String[] pan = new String[1];
             emvHandler.getTrack2AndPAN(track2, pan);
 
-            // Launch custom PIN pad activity
-            android.app.Activity activity = (android.app.Activity) context;
-            activity.runOnUiThread(() -> {
-                android.content.Intent intent = CustomPinPadActivity.createIntent(activity, pan[0], 4, 12, pinRetryCount - 1);
-                activity.startActivityForResult(intent, 1001);
-            });
+            session.mark(TransactionTimeline.Phase.PIN_PAD_LAUNCHED);
+            PinEntryPanel panel = pinPanel;
+            if (panel != null) {
+                panel.show(4, 12, session.pinRetryCount - 1, new PinEntryPanel.Listener() {
+                    @Override
+                    public void onPin(String pin) {
+                        session.releasePin(EmvResult.EMV_OK, pin);
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        session.releasePin(EmvResult.EMV_USER_CANCEL, null);
+                    }
+                });
+            } else {
+                // Launch custom PIN pad activity
+                android.app.Activity activity = (android.app.Activity) context;
+                activity.runOnUiThread(() -> {
+                    android.content.Intent intent = CustomPinPadActivity.createIntent(activity, pan[0], 4, 12,
+                            session.pinRetryCount - 1);
+                    activity.startActivityForResult(intent, 1001);
+                });
+            }
 
-            pinLatch.await();
-            Log.d(TAG, "PIN latch released, returning result: " + pinResult);
+            result = session.awaitPin();
+            // A cancelled session releases the latch itself; take the pad down with it
+            if (panel != null && session.isFinished())
+                panel.dismiss();
+            session.mark(TransactionTimeline.Phase.PIN_ENTERED);
+            Log.d(TAG, "PIN latch released, returning result: " + result);
         } catch (Exception e) {
             Log.e(TAG, "PIN input error: " + e.getMessage());
         }
 
-        return pinResult;
+        return result;
     }
 
     public void onPinPadResult(int resultCode, String pin) {
-        if (resultCode == android.app.Activity.RESULT_OK && pin != null) {
-            clearPin = pin;
-            pinResult = EmvResult.EMV_OK;
-        } else {
-            pinResult = EmvResult.EMV_USER_CANCEL;
-        }
-        pinLatch.countDown();
+        CardSession session = activeSession;
+        boolean ok = resultCode == android.app.Activity.RESULT_OK && pin != null;
+        if (session == null || !session.releasePin(ok ? EmvResult.EMV_OK : EmvResult.EMV_USER_CANCEL, pin))
+            Log.d(TAG, "Ignoring PIN pad result with no session waiting for it");
     }
 
     public void cancelRead() {
+        supersedeArmed("Card read cancelled");
+        CardSession session = activeSession;
+        if (session != null)
+            session.cancel("Card read cancelled");
+        boolean searching = false;
+        scheduler.cancelPending(DeviceScheduler.Device.CARD);
         try {
-            cardReaderManager.cancelSearchCard();
-            cardReaderManager.closeCard();
+            switch (readerState.get()) {
+                case SEARCHING:
+                    resetReader();
+                    searching = true;
+                    break;
+                case CARD_PRESENT:
+                case IN_TRANSACTION:
+                    // The transaction thread moves the reader back to idle once the kernel returns
+                    cardReaderManager.closeCard();
+                    break;
+                default:
+                    break;
+            }
         } catch (Exception e) {
             Log.e(TAG, "Cancel error: " + e.getMessage());
         }
+        // A cancelled search never reaches its listener, so the session is finished here
+        if (searching && session != null)
+            finishSession(session, false);
     }
 
     public String getSerialNumber() {
@@ -403,12 +823,6 @@ public class CardReader {
         return (ret == SdkResult.SDK_OK) ? sn[0] : "";
     }
 
-    private int hexStringToInt(String hexString) {
-        if (hexString.length() <= 1)
-            return 1;
-        return Integer.parseInt(hexString.substring(4, 8), 16);
-    }
-
     private byte[] hexStringToByteArray(String hex) {
         int len = hex.length();
         byte[] data = new byte[len / 2];
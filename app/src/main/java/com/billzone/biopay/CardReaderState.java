@@ -0,0 +1,96 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CardReaderState {
+    private static final String TAG = "CardReaderState";
+
+    public enum State {
+        IDLE,
+        SEARCHING,
+        CARD_PRESENT,
+        IN_TRANSACTION,
+        CLOSING
+    }
+
+    private State state = State.IDLE;
+    // Bumped on every new search so callbacks from an abandoned search can be ignored
+    private int generation = 0;
+    private long enteredAt = System.currentTimeMillis();
+
+    private long resets = 0;
+    private long skippedResets = 0;
+    private long waits = 0;
+    private long lastPrepareMs = 0;
+    private long totalPrepareMs = 0;
+    private long prepares = 0;
+
+    public synchronized State get() {
+        return state;
+    }
+
+    public synchronized int beginSearch() {
+        moveTo(State.SEARCHING);
+        return ++generation;
+    }
+
+    public synchronized boolean isCurrent(int searchGeneration) {
+        return searchGeneration == generation;
+    }
+
+    // Moves only when the reader is still in the expected state; stale callbacks lose the race
+    public synchronized boolean transition(State from, State to) {
+        if (state != from)
+            return false;
+        moveTo(to);
+        return true;
+    }
+
+    public synchronized void moveTo(State to) {
+        if (state == to)
+            return;
+        Log.d(TAG, state + " -> " + to + " after " + (System.currentTimeMillis() - enteredAt) + " ms");
+        state = to;
+        enteredAt = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    public synchronized boolean awaitState(State target, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        if (state != target)
+            waits++;
+        while (state != target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized void recordPrepare(long startNanos, boolean reset) {
+        if (reset) {
+            resets++;
+        } else {
+            skippedResets++;
+        }
+        lastPrepareMs = (System.nanoTime() - startNanos) / 1_000_000;
+        totalPrepareMs += lastPrepareMs;
+        prepares++;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("state", state.name());
+        stats.put("inStateMs", System.currentTimeMillis() - enteredAt);
+        stats.put("resets", resets);
+        stats.put("skippedResets", skippedResets);
+        stats.put("waits", waits);
+        stats.put("lastPrepareMs", lastPrepareMs);
+        stats.put("avgPrepareMs", prepares == 0 ? 0 : totalPrepareMs / prepares);
+        return stats;
+    }
+}
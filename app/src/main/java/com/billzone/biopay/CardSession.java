@@ -0,0 +1,206 @@
+package com.billzone.biopay;
+
+import com.zcs.sdk.emv.EmvResult;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The callback hears exactly once, through deliver() or fail()
+public class CardSession {
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    public enum Outcome {
+        DELIVERED, FAILED, CANCELLED, EXPIRED
+    }
+
+    final int id = ids.incrementAndGet();
+    final long createdAt = System.nanoTime();
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private String amount;
+    private CardReader.CardDataCallback callback;
+    private String failure;
+    private boolean finished = false;
+    private volatile boolean cancelled = false;
+    private long committedAt = 0;
+    private Outcome outcome;
+    ScheduledFuture<?> timeout;
+    volatile TransactionTimeline.Timeline timeline;
+
+    // Written by the kernel listener on the transaction thread only
+    String pan = "";
+    String track2 = "";
+    String expiry = "";
+    String iccData = "";
+    String cardSequenceNumber = "";
+    String posDataCode = "";
+    BinTable.Entry bin;
+    int pinRetryCount = 0;
+
+    private CountDownLatch pinLatch;
+    private String clearPin = "";
+    private int pinResult = EmvResult.EMV_NO_PASSWORD;
+
+    public CardSession() {
+    }
+
+    public CardSession(String amount, CardReader.CardDataCallback callback) {
+        commit(amount, callback);
+    }
+
+    public synchronized boolean commit(String amount, CardReader.CardDataCallback callback) {
+        if (finished || this.callback != null)
+            return false;
+        this.amount = amount;
+        this.callback = callback;
+        this.committedAt = System.nanoTime();
+        if (timeout != null)
+            timeout.cancel(false);
+        released.countDown();
+        return true;
+    }
+
+    public boolean deliver(Map<String, String> data) {
+        CardReader.CardDataCallback target;
+        synchronized (this) {
+            if (finished || callback == null)
+                return false;
+            finished = true;
+            target = callback;
+        }
+        target.onCardData(data);
+        return true;
+    }
+
+    // Reports the error to the committed callback, or holds it for commit() to find
+    public boolean fail(String error) {
+        CardReader.CardDataCallback target;
+        synchronized (this) {
+            if (finished)
+                return false;
+            finished = true;
+            failure = error;
+            target = callback;
+            if (timeout != null)
+                timeout.cancel(false);
+        }
+        released.countDown();
+        releasePin(EmvResult.EMV_USER_CANCEL, null);
+        if (target != null)
+            target.onError(error);
+        return true;
+    }
+
+    // Cancellation token: the kernel listener checks it and stops at the next callback
+    public boolean cancel(String reason) {
+        cancelled = true;
+        return fail(reason);
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean awaitCommit(long timeoutMs) throws InterruptedException {
+        released.await(timeoutMs, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            return callback != null && !finished;
+        }
+    }
+
+    public void complete(Outcome outcome) {
+        synchronized (this) {
+            if (this.outcome != null)
+                return;
+            this.outcome = outcome;
+        }
+        completed.countDown();
+    }
+
+    public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        return completed.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isComplete() {
+        return completed.getCount() == 0;
+    }
+
+    public synchronized Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void event(String event) {
+        CardReader.CardDataCallback target;
+        synchronized (this) {
+            target = callback;
+        }
+        if (target != null)
+            target.onEvent(event);
+    }
+
+    public void mark(TransactionTimeline.Phase phase) {
+        TransactionTimeline.Timeline t = timeline;
+        if (t != null)
+            t.mark(phase);
+    }
+
+    // Arms the PIN latch before the pad is shown, so a result can never arrive ahead of it
+    synchronized void expectPin() {
+        pinResult = EmvResult.EMV_NO_PASSWORD;
+        pinLatch = new CountDownLatch(1);
+    }
+
+    int awaitPin() throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = pinLatch;
+        }
+        if (latch != null)
+            latch.await();
+        synchronized (this) {
+            return pinResult;
+        }
+    }
+
+    // Returns false when this session is not waiting for a PIN (a late result from an abandoned pad)
+    synchronized boolean releasePin(int result, String pin) {
+        if (pinLatch == null || pinLatch.getCount() == 0)
+            return false;
+        if (pin != null)
+            clearPin = pin;
+        pinResult = result;
+        pinLatch.countDown();
+        return true;
+    }
+
+    synchronized String getClearPin() {
+        return clearPin;
+    }
+
+    public synchronized boolean isCommitted() {
+        return callback != null;
+    }
+
+    public synchronized String getAmount() {
+        return amount;
+    }
+
+    public synchronized CardReader.CardDataCallback getCallback() {
+        return callback;
+    }
+
+    public synchronized long getCommittedAt() {
+        return committedAt;
+    }
+
+    public synchronized String getFailure() {
+        return failure;
+    }
+}
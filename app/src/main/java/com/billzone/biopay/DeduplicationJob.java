@@ -0,0 +1,358 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import com.machinezoo.sourceafis.FingerprintMatcher;
+import com.machinezoo.sourceafis.FingerprintTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// Completed blocks are checkpointed so an interrupted run resumes where it stopped
+public class DeduplicationJob {
+    private static final String TAG = "DeduplicationJob";
+    private static final int MAGIC = 0x42504443; // "BPDC"
+    private static final int VERSION = 1;
+    private static final int BLOCK_ROWS = 16;
+    private static final long CHECKPOINT_INTERVAL_MS = 2000;
+
+    public static class Pair {
+        public final String idA;
+        public final String idB;
+        public final double score;
+
+        Pair(String idA, String idB, double score) {
+            this.idA = idA;
+            this.idB = idB;
+            this.score = score;
+        }
+    }
+
+    public interface Listener {
+        void onDuplicate(Pair pair);
+
+        void onFinished(boolean completed, String error);
+    }
+
+    private final FingerprintGallery.Entry[] entries;
+    private final String[] ids;
+    private final File checkpointFile;
+    private final double threshold;
+    private final Listener listener;
+    private final int blockCount;
+    private final long totalComparisons;
+    private final long signature;
+
+    private final boolean[] doneBlocks;
+    private final List<Pair> pairs = new ArrayList<>();
+    private final AtomicLong comparisons = new AtomicLong();
+    private final Object checkpointLock = new Object();
+    private volatile boolean cancelled = false;
+    private volatile boolean running = false;
+    private boolean completed = false;
+    private String error;
+    private int resumedBlocks = 0;
+    private long resumedComparisons = 0;
+    private long startedAt = 0;
+    private long finishedAt = 0;
+    private long lastCheckpointAt = 0;
+
+    public DeduplicationJob(FingerprintGallery.Entry[] entries, File checkpointFile, double threshold,
+            Listener listener) {
+        this.entries = entries;
+        this.checkpointFile = checkpointFile;
+        this.threshold = threshold;
+        this.listener = listener;
+        this.ids = new String[entries.length];
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < entries.length; i++) {
+            ids[i] = entries[i].getId();
+            byte[] id = ids[i].getBytes(StandardCharsets.UTF_8);
+            crc.update(id, 0, id.length);
+            crc.update(0);
+        }
+        this.signature = ((long) entries.length << 32) | crc.getValue();
+        this.blockCount = (entries.length + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        this.doneBlocks = new boolean[blockCount];
+        this.totalComparisons = (long) entries.length * (entries.length - 1) / 2;
+    }
+
+    // Runs on the background lane; the comparisons themselves fan out over a ForkJoinPool sized to the cores.
+    // Throws RejectedExecutionException when the lane's queue is full.
+    public synchronized void start() {
+        running = true;
+        startedAt = System.currentTimeMillis();
+        lastCheckpointAt = startedAt;
+        try {
+            DeviceScheduler.getInstance().submit(DeviceScheduler.Device.BACKGROUND, this::run, () -> {
+                synchronized (this) {
+                    finishedAt = System.currentTimeMillis();
+                    running = false;
+                }
+                listener.onFinished(false, "Deduplication cancelled");
+            });
+        } catch (RejectedExecutionException e) {
+            running = false;
+            throw e;
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized Map<String, Object> getStatus(int sincePair) {
+        long elapsedMs = ((running ? System.currentTimeMillis() : finishedAt) - startedAt);
+        long done = comparisons.get();
+        int finishedBlocks = 0;
+        for (boolean b : doneBlocks) {
+            if (b)
+                finishedBlocks++;
+        }
+
+        List<Map<String, Object>> found = new ArrayList<>();
+        for (int i = Math.max(0, sincePair); i < pairs.size(); i++) {
+            Pair pair = pairs.get(i);
+            Map<String, Object> p = new HashMap<>();
+            p.put("idA", pair.idA);
+            p.put("idB", pair.idB);
+            p.put("score", pair.score);
+            found.add(p);
+        }
+
+        Map<String, Object> status = new HashMap<>();
+        status.put("running", running);
+        status.put("completed", completed);
+        status.put("cancelled", cancelled);
+        status.put("error", error);
+        status.put("gallerySize", entries.length);
+        status.put("threshold", threshold);
+        status.put("blocks", blockCount);
+        status.put("doneBlocks", finishedBlocks);
+        status.put("resumedBlocks", resumedBlocks);
+        status.put("totalComparisons", totalComparisons);
+        status.put("doneComparisons", resumedComparisons + done);
+        status.put("progress", totalComparisons == 0 ? 1.0 : (double) (resumedComparisons + done) / totalComparisons);
+        status.put("elapsedMs", elapsedMs);
+        status.put("comparisonsPerSecond", elapsedMs <= 0 ? 0.0 : done * 1000.0 / elapsedMs);
+        status.put("pairCount", pairs.size());
+        status.put("pairs", found);
+        return status;
+    }
+
+    private void run() {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        try {
+            loadCheckpoint();
+            pool.invoke(new BlockTask(0, blockCount));
+
+            synchronized (this) {
+                completed = !cancelled;
+            }
+            if (completed) {
+                checkpointFile.delete();
+            } else {
+                saveCheckpoint();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Deduplication failed: " + e.getMessage());
+            synchronized (this) {
+                error = e.getMessage();
+            }
+            try {
+                saveCheckpoint();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            pool.shutdown();
+            synchronized (this) {
+                finishedAt = System.currentTimeMillis();
+                running = false;
+            }
+            long elapsedMs = Math.max(1, finishedAt - startedAt);
+            Log.d(TAG, "Deduplication " + (completed ? "completed" : "stopped") + ": " + comparisons.get()
+                    + " comparisons in " + elapsedMs + " ms (" + comparisons.get() * 1000 / elapsedMs + "/s), "
+                    + pairs.size() + " suspected duplicates");
+            listener.onFinished(completed, error);
+        }
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        BlockTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                compareBlock(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BlockTask(from, mid), new BlockTask(mid, to));
+        }
+    }
+
+    private void compareBlock(int block) {
+        synchronized (this) {
+            if (doneBlocks[block])
+                return;
+        }
+        int firstRow = block * BLOCK_ROWS;
+        int lastRow = Math.min(entries.length, firstRow + BLOCK_ROWS);
+        List<Pair> found = new ArrayList<>();
+        for (int i = firstRow; i < lastRow; i++) {
+            if (cancelled)
+                return;
+            FingerprintTemplate probe = templateAt(i);
+            if (probe == null) {
+                comparisons.addAndGet(entries.length - 1 - i);
+                continue;
+            }
+            FingerprintMatcher matcher = new FingerprintMatcher(probe);
+            for (int j = i + 1; j < entries.length; j++) {
+                FingerprintTemplate candidate = templateAt(j);
+                if (candidate != null) {
+                    double score = matcher.match(candidate);
+                    if (score >= threshold)
+                        found.add(new Pair(ids[i], ids[j], score));
+                }
+            }
+            comparisons.addAndGet(entries.length - 1 - i);
+        }
+
+        boolean checkpoint;
+        synchronized (this) {
+            doneBlocks[block] = true;
+            pairs.addAll(found);
+            long now = System.currentTimeMillis();
+            checkpoint = now - lastCheckpointAt >= CHECKPOINT_INTERVAL_MS;
+            if (checkpoint)
+                lastCheckpointAt = now;
+        }
+        for (Pair pair : found) {
+            listener.onDuplicate(pair);
+        }
+        if (checkpoint) {
+            try {
+                saveCheckpoint();
+            } catch (IOException e) {
+                Log.e(TAG, "Checkpoint failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private FingerprintTemplate templateAt(int i) {
+        try {
+            return entries[i].template();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long blockComparisons(int block, int n) {
+        long total = 0;
+        for (int i = block * BLOCK_ROWS; i < Math.min(n, (block + 1) * BLOCK_ROWS); i++) {
+            total += n - 1 - i;
+        }
+        return total;
+    }
+
+    private void loadCheckpoint() {
+        if (!checkpointFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != signature
+                    || in.readDouble() != threshold || in.readInt() != blockCount) {
+                Log.d(TAG, "Checkpoint is for a different gallery or threshold, starting over");
+                return;
+            }
+            boolean[] done = new boolean[blockCount];
+            for (int b = 0; b < blockCount; b++) {
+                done[b] = in.readBoolean();
+            }
+            int count = in.readInt();
+            List<Pair> restored = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                restored.add(new Pair(in.readUTF(), in.readUTF(), in.readDouble()));
+            }
+
+            synchronized (this) {
+                for (int b = 0; b < blockCount; b++) {
+                    if (done[b]) {
+                        doneBlocks[b] = true;
+                        resumedBlocks++;
+                        resumedComparisons += blockComparisons(b, entries.length);
+                    }
+                }
+                pairs.addAll(restored);
+            }
+            Log.d(TAG, "Resuming deduplication with " + resumedBlocks + "/" + blockCount + " blocks done");
+        } catch (IOException e) {
+            Log.e(TAG, "Unreadable checkpoint, starting over: " + e.getMessage());
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        boolean[] done;
+        List<Pair> snapshot;
+        synchronized (this) {
+            done = doneBlocks.clone();
+            snapshot = new ArrayList<>(pairs);
+        }
+
+        synchronized (checkpointLock) {
+            writeCheckpoint(done, snapshot);
+        }
+    }
+
+    private void writeCheckpoint(boolean[] done, List<Pair> snapshot) throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(signature);
+            out.writeDouble(threshold);
+            out.writeInt(blockCount);
+            for (boolean b : done) {
+                out.writeBoolean(b);
+            }
+            out.writeInt(snapshot.size());
+            for (Pair pair : snapshot) {
+                out.writeUTF(pair.idA);
+                out.writeUTF(pair.idB);
+                out.writeDouble(pair.score);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(checkpointFile)) {
+            throw new IOException("Failed to replace checkpoint");
+        }
+    }
+}
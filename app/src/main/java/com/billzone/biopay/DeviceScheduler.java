@@ -0,0 +1,186 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceScheduler {
+    private static final String TAG = "DeviceScheduler";
+
+    public enum Device {
+        FINGERPRINT(4, 1),
+        CARD(2, 1),
+        PRINTER(8, 1),
+        // Not hardware: keeps gallery file writes off the scanner thread
+        GALLERY(16, 1),
+        // Not hardware: config reloads, index warm-up and batch jobs; two threads so a long job cannot hold up a reload
+        BACKGROUND(16, 2);
+
+        final int queueCapacity;
+        final int threads;
+
+        Device(int queueCapacity, int threads) {
+            this.queueCapacity = queueCapacity;
+            this.threads = threads;
+        }
+    }
+
+    private static DeviceScheduler instance;
+
+    public static synchronized DeviceScheduler getInstance() {
+        if (instance == null) {
+            instance = new DeviceScheduler();
+        }
+        return instance;
+    }
+
+    private static class Job extends FutureTask<Void> {
+        final long enqueuedAt = System.nanoTime();
+        private final Device device;
+        private final Runnable onCancel;
+
+        Job(Device device, Runnable task, Runnable onCancel) {
+            super(task, null);
+            this.device = device;
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (onCancel != null)
+                    onCancel.run();
+                return;
+            }
+            // FutureTask keeps what the task threw; nobody else calls get(), so report it here
+            try {
+                get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, device + " task failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Lane extends ThreadPoolExecutor {
+        private final Device device;
+        private long submitted = 0;
+        private long completed = 0;
+        private long rejected = 0;
+        private long cancelled = 0;
+        private int maxDepth = 0;
+        private long totalWaitMs = 0;
+        private long maxWaitMs = 0;
+        private int active = 0;
+
+        Lane(Device device) {
+            super(device.threads, device.threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(device.queueCapacity), r -> {
+                Thread t = new Thread(r, "device-" + device.name().toLowerCase());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+            this.device = device;
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            long waitMs = (System.nanoTime() - ((Job) r).enqueuedAt) / 1_000_000;
+            synchronized (this) {
+                active++;
+                totalWaitMs += waitMs;
+                maxWaitMs = Math.max(maxWaitMs, waitMs);
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            synchronized (this) {
+                active--;
+                completed++;
+            }
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("queued", getQueue().size());
+            stats.put("capacity", device.queueCapacity);
+            stats.put("busy", active > 0);
+            stats.put("threads", device.threads);
+            stats.put("maxDepth", maxDepth);
+            stats.put("submitted", submitted);
+            stats.put("completed", completed);
+            stats.put("rejected", rejected);
+            stats.put("cancelled", cancelled);
+            stats.put("avgWaitMs", completed == 0 ? 0 : totalWaitMs / completed);
+            stats.put("maxWaitMs", maxWaitMs);
+            return stats;
+        }
+    }
+
+    private final Map<Device, Lane> lanes = new EnumMap<>(Device.class);
+
+    private DeviceScheduler() {
+        for (Device device : Device.values()) {
+            lanes.put(device, new Lane(device));
+        }
+    }
+
+    // Throws RejectedExecutionException when the device queue is full
+    public Future<?> submit(Device device, Runnable task, Runnable onCancel) {
+        Lane lane = lanes.get(device);
+        Job job = new Job(device, task, onCancel);
+        try {
+            lane.execute(job);
+        } catch (RejectedExecutionException e) {
+            synchronized (lane) {
+                lane.rejected++;
+            }
+            Log.e(TAG, device + " queue full, rejecting request");
+            throw e;
+        }
+        synchronized (lane) {
+            lane.submitted++;
+            lane.maxDepth = Math.max(lane.maxDepth, lane.getQueue().size());
+        }
+        return job;
+    }
+
+    // Cancels work still waiting in the queue; the request already running is left alone
+    public int cancelPending(Device device) {
+        Lane lane = lanes.get(device);
+        List<Runnable> drained = new ArrayList<>();
+        lane.getQueue().drainTo(drained);
+        for (Runnable r : drained) {
+            ((Job) r).cancel(false);
+        }
+        synchronized (lane) {
+            lane.cancelled += drained.size();
+        }
+        if (!drained.isEmpty()) {
+            Log.d(TAG, "Cancelled " + drained.size() + " queued " + device + " requests");
+        }
+        return drained.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (Map.Entry<Device, Lane> entry : lanes.entrySet()) {
+            stats.put(entry.getKey().name().toLowerCase(), entry.getValue().stats());
+        }
+        return stats;
+    }
+}
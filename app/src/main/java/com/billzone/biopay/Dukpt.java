@@ -0,0 +1,371 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+// ANSI X9.24-1 TDES DUKPT, originator side; only the registers are stored, never the initial key
+public class Dukpt {
+    private static final String TAG = "Dukpt";
+    private static final int MAGIC = 0x42504B44; // "BPKD"
+    private static final int REGISTERS = 21;
+    private static final int COUNTER_MASK = 0x1FFFFF;
+    private static final int MAX_ONE_BITS = 10;
+    // Offset of the "current key used" flag in the state file
+    private static final int USED_OFFSET = 4 + 10 + 4;
+    private static final byte[] KEY_VARIANT = hex("C0C0C0C000000000C0C0C0C000000000");
+    private static final byte[] PIN_VARIANT = hex("00000000000000FF00000000000000FF");
+
+    public static class Result {
+        public final byte[] pinBlock;
+        public final byte[] ksn;
+
+        Result(byte[] pinBlock, byte[] ksn) {
+            this.pinBlock = pinBlock;
+            this.ksn = ksn;
+        }
+    }
+
+    private final File stateFile;
+    private final ExecutorService keygen;
+    private final byte[][] registers = new byte[REGISTERS][];
+    private byte[] ksn;
+    private int counter = 0;
+    private boolean currentUsed = false;
+    private boolean selfTestPassed = false;
+
+    private long transactions = 0;
+    private long totalEncryptNanos = 0;
+    private long maxEncryptNanos = 0;
+    private long lastEncryptNanos = 0;
+    private long inlineAdvances = 0;
+    private long lastAdvanceNanos = 0;
+
+    public Dukpt(File stateFile) {
+        this.stateFile = stateFile;
+        this.keygen = stateFile == null ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dukpt-keygen");
+            t.setDaemon(true);
+            return t;
+        });
+        if (stateFile != null) {
+            selfTestPassed = selfTest();
+            if (!selfTestPassed)
+                Log.e(TAG, "DUKPT self test failed; PIN encipherment disabled");
+            try {
+                restore();
+            } catch (IOException e) {
+                Log.e(TAG, "DUKPT state unreadable, key must be reloaded: " + e.getMessage());
+                clear();
+            }
+        }
+    }
+
+    // Loads an initial key (IPEK) and its KSN, derives all 21 future keys and forgets the IPEK
+    public synchronized void loadInitialKey(byte[] ipek, byte[] initialKsn) throws GeneralSecurityException, IOException {
+        if (ipek.length != 16 || initialKsn.length != 10)
+            throw new IllegalArgumentException("IPEK must be 16 bytes and KSN 10 bytes");
+        clear();
+        ksn = initialKsn.clone();
+        ksn[7] &= (byte) 0xE0;
+        ksn[8] = 0;
+        ksn[9] = 0;
+        counter = 0;
+        deriveChildren(ipek, 0, REGISTERS);
+        counter = 1;
+        currentUsed = false;
+        persist();
+        Log.d(TAG, "DUKPT key loaded, KSN " + hexString(currentKsn()));
+    }
+
+    public synchronized boolean isLoaded() {
+        return ksn != null && counter > 0 && counter <= COUNTER_MASK;
+    }
+
+    public synchronized Result encryptPinBlock(byte[] clearBlock) throws GeneralSecurityException, IOException {
+        if (!selfTestPassed && stateFile != null)
+            throw new GeneralSecurityException("DUKPT self test failed");
+        if (currentUsed) {
+            // The background step has not run yet; do it here so the key is never used twice
+            inlineAdvances++;
+            advance();
+        }
+        if (!isLoaded())
+            throw new GeneralSecurityException("No DUKPT key loaded or key exhausted");
+
+        long start = System.nanoTime();
+        byte[] key = registers[Integer.numberOfTrailingZeros(counter)];
+        byte[] ksnOut = currentKsn();
+        markUsed();
+        byte[] block = tdes(xor(key, PIN_VARIANT), clearBlock);
+        lastEncryptNanos = System.nanoTime() - start;
+        transactions++;
+        totalEncryptNanos += lastEncryptNanos;
+        maxEncryptNanos = Math.max(maxEncryptNanos, lastEncryptNanos);
+
+        if (keygen != null)
+            keygen.execute(this::advanceQuietly);
+        else
+            advance();
+        return new Result(block, ksnOut);
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loaded", isLoaded());
+        stats.put("selfTest", selfTestPassed);
+        stats.put("ksn", ksn != null ? hexString(currentKsn()) : "");
+        stats.put("counter", counter);
+        stats.put("transactions", transactions);
+        stats.put("lastEncryptUs", lastEncryptNanos / 1000);
+        stats.put("avgEncryptUs", transactions == 0 ? 0 : totalEncryptNanos / transactions / 1000);
+        stats.put("maxEncryptUs", maxEncryptNanos / 1000);
+        stats.put("lastAdvanceUs", lastAdvanceNanos / 1000);
+        stats.put("inlineAdvances", inlineAdvances);
+        return stats;
+    }
+
+    private void advanceQuietly() {
+        try {
+            synchronized (this) {
+                if (currentUsed)
+                    advance();
+            }
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(TAG, "DUKPT key advance failed: " + e.getMessage());
+        }
+    }
+
+    // New Key: derive the used key's children (while the counter has fewer than 10 one bits), erase it, move on
+    private void advance() throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        int bit = Integer.numberOfTrailingZeros(counter);
+        byte[] key = registers[bit];
+        if (Integer.bitCount(counter) < MAX_ONE_BITS) {
+            deriveChildren(key, counter, bit);
+            counter++;
+        } else {
+            counter += 1 << bit;
+        }
+        Arrays.fill(key, (byte) 0);
+        registers[bit] = null;
+        currentUsed = false;
+        if (counter > COUNTER_MASK)
+            Log.e(TAG, "DUKPT key exhausted; a new initial key must be loaded");
+        persist();
+        lastAdvanceNanos = System.nanoTime() - start;
+    }
+
+    // Future key for each bit below the lowest set bit of base: base | bit, derived from base's key
+    private void deriveChildren(byte[] key, int base, int belowBit) throws GeneralSecurityException {
+        for (int b = belowBit - 1; b >= 0; b--) {
+            byte[] data = Arrays.copyOfRange(ksnWithCounter(base | (1 << b)), 2, 10);
+            registers[b] = nonReversibleKey(key, data);
+        }
+    }
+
+    private byte[] currentKsn() {
+        return ksnWithCounter(counter);
+    }
+
+    private byte[] ksnWithCounter(int value) {
+        byte[] out = ksn.clone();
+        out[7] = (byte) ((out[7] & 0xE0) | ((value >> 16) & 0x1F));
+        out[8] = (byte) (value >> 8);
+        out[9] = (byte) value;
+        return out;
+    }
+
+    private void markUsed() throws IOException {
+        currentUsed = true;
+        if (stateFile == null || !stateFile.exists())
+            return;
+        // One byte in place, synced before the key is used, so a crash before the background step cannot hand out
+        // this key again
+        try (RandomAccessFile raf = new RandomAccessFile(stateFile, "rw")) {
+            raf.seek(USED_OFFSET);
+            raf.writeBoolean(true);
+            raf.getFD().sync();
+        }
+    }
+
+    private void persist() throws IOException {
+        if (stateFile == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.write(ksn);
+        out.writeInt(counter);
+        out.writeBoolean(currentUsed);
+        int present = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != null)
+                present |= 1 << i;
+        }
+        out.writeInt(present);
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != null)
+                out.write(registers[i]);
+        }
+        out.flush();
+
+        File dir = stateFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(bytes.toByteArray());
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(stateFile))
+            throw new IOException("Cannot replace " + stateFile);
+        FileSync.syncDirectory(stateFile.getAbsoluteFile().getParentFile());
+    }
+
+    private void restore() throws IOException {
+        if (!stateFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a DUKPT state file");
+            ksn = new byte[10];
+            in.readFully(ksn);
+            counter = in.readInt();
+            currentUsed = in.readBoolean();
+            int present = in.readInt();
+            for (int i = 0; i < REGISTERS; i++) {
+                if ((present & (1 << i)) != 0) {
+                    registers[i] = new byte[16];
+                    in.readFully(registers[i]);
+                }
+            }
+        }
+        if (ksn != null && counter > 0 && counter <= COUNTER_MASK
+                && registers[Integer.numberOfTrailingZeros(counter)] == null)
+            throw new IOException("No key register for counter " + counter);
+        Log.d(TAG, "DUKPT state restored, KSN " + hexString(currentKsn()) + (currentUsed ? " (used)" : ""));
+    }
+
+    private void clear() {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != null)
+                Arrays.fill(registers[i], (byte) 0);
+            registers[i] = null;
+        }
+        ksn = null;
+        counter = 0;
+        currentUsed = false;
+    }
+
+    static byte[] nonReversibleKey(byte[] key, byte[] data) throws GeneralSecurityException {
+        byte[] right = oneWay(key, data);
+        byte[] variant = xor(key, KEY_VARIANT);
+        byte[] left = oneWay(variant, data);
+        byte[] out = new byte[16];
+        System.arraycopy(left, 0, out, 0, 8);
+        System.arraycopy(right, 0, out, 8, 8);
+        return out;
+    }
+
+    // (data XOR KR) enciphered under KL with single DES, XOR KR
+    private static byte[] oneWay(byte[] key, byte[] data) throws GeneralSecurityException {
+        byte[] block = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            block[i] = (byte) (data[i] ^ key[8 + i]);
+        }
+        Cipher des = Cipher.getInstance("DES/ECB/NoPadding");
+        des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"));
+        block = des.doFinal(block);
+        for (int i = 0; i < 8; i++) {
+            block[i] ^= key[8 + i];
+        }
+        return block;
+    }
+
+    static byte[] tdes(byte[] key16, byte[] block) throws GeneralSecurityException {
+        byte[] key24 = new byte[24];
+        System.arraycopy(key16, 0, key24, 0, 16);
+        System.arraycopy(key16, 0, key24, 16, 8);
+        Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key24, "DESede"));
+        return cipher.doFinal(block);
+    }
+
+    // Host-side IPEK derivation; only the self test uses it, a terminal never holds the BDK
+    static byte[] deriveIpek(byte[] bdk, byte[] ksn) throws GeneralSecurityException {
+        byte[] base = Arrays.copyOf(ksn, 8);
+        base[7] &= (byte) 0xE0;
+        byte[] ipek = new byte[16];
+        System.arraycopy(tdes(bdk, base), 0, ipek, 0, 8);
+        System.arraycopy(tdes(xor(bdk, KEY_VARIANT), base), 0, ipek, 8, 8);
+        return ipek;
+    }
+
+    // Known-answer test from the X9.24-1 sample data: IPEK, then PIN 1234 / PAN 4012345678909 at counters 1 to 3
+    static boolean selfTest() {
+        try {
+            byte[] bdk = hex("0123456789ABCDEFFEDCBA9876543210");
+            byte[] initialKsn = hex("FFFF9876543210E00000");
+            byte[] ipek = deriveIpek(bdk, initialKsn);
+            if (!Arrays.equals(ipek, hex("6AC292FAA1315B4D858AB3A3D7D5933A")))
+                return false;
+            Dukpt engine = new Dukpt(null);
+            engine.selfTestPassed = true;
+            engine.loadInitialKey(ipek, initialKsn);
+            byte[] clear = PinBlock.format0("1234", "4012345678909");
+            String[] expected = { "1B9C1845EB993A7A", "10A01C8D02C69107", "18DC07B94797B466" };
+            for (int i = 0; i < expected.length; i++) {
+                Result r = engine.encryptPinBlock(clear);
+                if (!Arrays.equals(r.pinBlock, hex(expected[i]))
+                        || !Arrays.equals(r.ksn, hex("FFFF9876543210E0000" + (i + 1))))
+                    return false;
+            }
+            return "1234".equals(PinBlock.pinFromFormat0(clear, "4012345678909"));
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            Log.e(TAG, "DUKPT self test error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length];
+        for (int i = 0; i < a.length; i++) {
+            out[i] = (byte) (a[i] ^ b[i]);
+        }
+        return out;
+    }
+
+    static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) ((Character.digit(s.charAt(i * 2), 16) << 4) | Character.digit(s.charAt(i * 2 + 1), 16));
+        }
+        return out;
+    }
+
+    static String hexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,336 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.zcs.sdk.emv.EmvApp;
+import com.zcs.sdk.emv.EmvCapk;
+import com.zcs.sdk.emv.EmvHandler;
+import com.zcs.sdk.emv.EmvTermParam;
+import com.zcs.sdk.emv.EmvTransParam;
+import com.zcs.sdk.util.StringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// filesDir/emv/emv_config.json overrides the bundled asset only when its version is higher
+public class EmvConfigManager {
+    private static final String TAG = "EmvConfigManager";
+    private static final String CONFIG_NAME = "emv_config.json";
+
+    private final Context context;
+    private final EmvHandler emvHandler;
+    private final CapkStore capks;
+    private final File overrideFile;
+
+    private boolean loaded = false;
+    private int version = -1;
+    private String source;
+    private long overrideStamp = 0;
+    private byte[] countryCode;
+    private byte[] currencyCode;
+    private String readerTtq;
+    private int appCount = 0;
+    private int capkCount = 0;
+    private long capkGeneration = -1;
+    private JSONArray legacyCapks;
+    private boolean capkFallback = false;
+    private long lastCapkApplyMs = 0;
+    private List<Map<String, Object>> capkBenchmark;
+
+    private long kernelLoads = 0;
+    private long lastLoadMs = 0;
+    private long coldSetups = 0;
+    private long coldSetupMs = 0;
+    private long warmSetups = 0;
+    private long warmSetupMs = 0;
+    private long lastSetupMs = 0;
+
+    public EmvConfigManager(Context context, EmvHandler emvHandler, CapkStore capks) {
+        this.context = context;
+        this.emvHandler = emvHandler;
+        this.capks = capks;
+        this.overrideFile = new File(paramDir(), CONFIG_NAME);
+    }
+
+    // Returns true when the kernel had to be (re)loaded for this call
+    public synchronized boolean ensureLoaded() {
+        long stamp = overrideFile.exists() ? overrideFile.lastModified() : 0;
+        if (!loaded || stamp != overrideStamp) {
+            load(stamp);
+            return true;
+        }
+        if (capkGeneration != capks.generation()) {
+            applyCapks();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void reload() {
+        load(overrideFile.exists() ? overrideFile.lastModified() : 0);
+    }
+
+    // Per-transaction TLVs that transParamInit does not carry
+    public synchronized void applyTransactionTlvs() {
+        emvHandler.setTlvData(0x5F2A, currencyCode);
+        emvHandler.setTlvData(0x9F1A, countryCode);
+    }
+
+    public synchronized void applyContactless(EmvTransParam transParam) {
+        if (readerTtq != null)
+            transParam.setReaderTTQ(readerTtq);
+    }
+
+    public synchronized void recordSetup(long startNanos, boolean cold) {
+        lastSetupMs = (System.nanoTime() - startNanos) / 1_000_000;
+        if (cold) {
+            coldSetups++;
+            coldSetupMs += lastSetupMs;
+        } else {
+            warmSetups++;
+            warmSetupMs += lastSetupMs;
+        }
+        Log.d(TAG, "Transaction setup took " + lastSetupMs + " ms" + (cold ? " (kernel loaded)" : ""));
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loaded", loaded);
+        stats.put("version", version);
+        stats.put("source", source);
+        stats.put("apps", appCount);
+        stats.put("capks", capkCount);
+        stats.put("capkGeneration", capkGeneration);
+        stats.put("capkFallback", capkFallback);
+        stats.put("lastCapkApplyMs", lastCapkApplyMs);
+        if (capkBenchmark != null)
+            stats.put("capkBenchmark", capkBenchmark);
+        stats.put("kernelLoads", kernelLoads);
+        stats.put("lastLoadMs", lastLoadMs);
+        stats.put("lastSetupMs", lastSetupMs);
+        // Cold setups include the full kernel load every transaction used to pay for
+        stats.put("coldSetups", coldSetups);
+        stats.put("avgColdSetupMs", coldSetups == 0 ? 0 : coldSetupMs / coldSetups);
+        stats.put("warmSetups", warmSetups);
+        stats.put("avgWarmSetupMs", warmSetups == 0 ? 0 : warmSetupMs / warmSetups);
+        return stats;
+    }
+
+    private void load(long stamp) {
+        long start = System.nanoTime();
+        JSONObject config;
+        try {
+            config = readConfig();
+        } catch (IOException | JSONException e) {
+            throw new IllegalStateException("EMV config unreadable: " + e.getMessage(), e);
+        }
+
+        try {
+            JSONObject contactless = config.optJSONObject("contactless");
+            EmvTermParam termParam = new EmvTermParam();
+            termParam.emvParamFilePath = paramDir().getPath() + "/";
+            if (contactless != null) {
+                // Have the entry point enforce the per-AID contactless limits
+                EmvTermParam.rfTxnLmtFlg = 1;
+                EmvTermParam.rfCVMLmtFlg = 1;
+                EmvTermParam.rfFLmtFlg = 1;
+                readerTtq = contactless.optString("readerTtq", null);
+            } else {
+                readerTtq = null;
+            }
+            emvHandler.kernelInit(termParam);
+            emvHandler.delAllApp();
+            emvHandler.delAllCapk();
+
+            JSONObject terminal = config.getJSONObject("terminal");
+            countryCode = StringUtils.convertHexToBytes(terminal.getString("countryCode"));
+            currencyCode = StringUtils.convertHexToBytes(terminal.getString("currencyCode"));
+
+            JSONObject defaults = config.optJSONObject("appDefaults");
+            if (defaults == null)
+                defaults = new JSONObject();
+            JSONArray apps = config.getJSONArray("apps");
+            for (int i = 0; i < apps.length(); i++) {
+                int ret = emvHandler.addApp(buildApp(apps.getJSONObject(i), defaults, contactless));
+                if (ret != 0)
+                    Log.e(TAG, "addApp " + apps.getJSONObject(i).getString("aid") + " returned " + ret);
+            }
+
+            legacyCapks = config.optJSONArray("capks");
+            capks.ensureLoaded();
+            applyCapks();
+
+            appCount = apps.length();
+            version = config.getInt("version");
+        } catch (IOException | JSONException e) {
+            loaded = false;
+            throw new IllegalStateException("EMV config invalid: " + e.getMessage(), e);
+        }
+
+        loaded = true;
+        overrideStamp = stamp;
+        kernelLoads++;
+        lastLoadMs = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, "EMV kernel loaded from " + source + " v" + version + " (" + appCount + " apps, " + capkCount
+                + " CAPKs) in " + lastLoadMs + " ms");
+    }
+
+    private JSONObject readConfig() throws IOException, JSONException {
+        JSONObject bundled;
+        try (InputStream in = context.getAssets().open(CONFIG_NAME)) {
+            bundled = new JSONObject(readAll(in));
+        }
+        if (overrideFile.exists()) {
+            try (InputStream in = new FileInputStream(overrideFile)) {
+                JSONObject override = new JSONObject(readAll(in));
+                if (override.getInt("version") > bundled.getInt("version")) {
+                    source = overrideFile.getPath();
+                    return override;
+                }
+                Log.d(TAG, "Ignoring " + overrideFile + ": not newer than the bundled config");
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Ignoring unreadable " + overrideFile + ": " + e.getMessage());
+            }
+        }
+        source = "assets/" + CONFIG_NAME;
+        return bundled;
+    }
+
+    private static EmvApp buildApp(JSONObject app, JSONObject defaults, JSONObject contactless)
+            throws JSONException {
+        EmvApp ea = new EmvApp();
+        ea.setAid(app.getString("aid"));
+        ea.setSelFlag((byte) app.optInt("selFlag", defaults.optInt("selFlag", 0)));
+        ea.setFloorLimit(app.optInt("floorLimit", defaults.optInt("floorLimit", 0)));
+        ea.setOnLinePINFlag((byte) app.optInt("onlinePinFlag", defaults.optInt("onlinePinFlag", 1)));
+        ea.setThreshold(app.optInt("threshold", defaults.optInt("threshold", 0)));
+        ea.setTacDefault(app.optString("tacDefault", defaults.optString("tacDefault", "0000000000")));
+        ea.setTacDenial(app.optString("tacDenial", defaults.optString("tacDenial", "0000000000")));
+        ea.setTacOnline(app.optString("tacOnline", defaults.optString("tacOnline", "0000000000")));
+        ea.settDOL(app.optString("tdol", defaults.optString("tdol", "")));
+        ea.setdDOL(app.optString("ddol", defaults.optString("ddol", "")));
+        ea.setVersion(app.optString("version", defaults.optString("version", "")));
+        if (contactless != null) {
+            ea.setClTransLimit(app.optString("clTransLimit", contactless.optString("transLimit", "999999999999")));
+            ea.setClCVMLimit(app.optString("clCvmLimit", contactless.optString("cvmLimit", "000000000000")));
+            ea.setClOfflineLimit(app.optString("clFloorLimit", contactless.optString("floorLimit", "000000000000")));
+            ea.setTermCapNoCVMReq(contactless.optString("termCapNoCvmReq", "E0F0C8"));
+            ea.setTermCapCVMReq(contactless.optString("termCapCvmReq", "E0F8C8"));
+        }
+        return ea;
+    }
+
+    // Swaps the kernel's whole key list for the store's current set; only called between transactions
+    private void applyCapks() {
+        long start = System.nanoTime();
+        long generation = capks.generation();
+        List<CapkStore.Key> keys = capks.keys();
+        emvHandler.delAllCapk();
+        if (keys.isEmpty() && legacyCapks != null && legacyCapks.length() > 0) {
+            Log.e(TAG, "CAPK store has no usable keys, loading " + legacyCapks.length() + " from " + source);
+            capkCount = applyLegacyCapks();
+            capkFallback = true;
+        } else {
+            for (CapkStore.Key key : keys) {
+                int ret = emvHandler.addCapk(key.toEmvCapk());
+                if (ret != 0)
+                    Log.e(TAG, "addCapk " + key.id() + " returned " + ret);
+            }
+            capkCount = keys.size();
+            capkFallback = false;
+        }
+        capkGeneration = generation;
+        lastCapkApplyMs = (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private int applyLegacyCapks() {
+        int added = 0;
+        for (int i = 0; i < legacyCapks.length(); i++) {
+            try {
+                JSONObject c = legacyCapks.getJSONObject(i);
+                int ret = emvHandler.addCapk(buildCapk(c));
+                if (ret != 0)
+                    Log.e(TAG, "addCapk " + c.getString("rid") + "/" + c.getString("index") + " returned " + ret);
+                else
+                    added++;
+            } catch (JSONException | NumberFormatException e) {
+                Log.e(TAG, "Skipping malformed CAPK " + i + ": " + e.getMessage());
+            }
+        }
+        return added;
+    }
+
+    private static EmvCapk buildCapk(JSONObject capk) throws JSONException {
+        EmvCapk ec = new EmvCapk();
+        ec.setRID(capk.getString("rid"));
+        ec.setKeyID((byte) Integer.parseInt(capk.getString("index"), 16));
+        ec.setModul(capk.getString("modulus"));
+        if (capk.has("exponent"))
+            ec.setExponent(capk.getString("exponent"));
+        ec.setCheckSum(capk.getString("checksum"));
+        ec.setExpDate(capk.getString("expiry"));
+        return ec;
+    }
+
+    // Times delAllCapk + addCapk for growing key counts, then puts the real set back
+    public synchronized List<Map<String, Object>> benchmarkCapkLoad(int maxKeys) {
+        List<CapkStore.Key> templates = new ArrayList<>(capks.keys());
+        templates.addAll(capks.droppedKeys());
+        if (templates.isEmpty())
+            throw new IllegalStateException("No CA public keys to benchmark with");
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        try {
+            // Spare indices 80-FE give at most 127 distinct keys per RID
+            for (int size = 1; size <= Math.min(maxKeys, 127); size *= 2) {
+                long start = System.nanoTime();
+                emvHandler.delAllCapk();
+                for (int i = 0; i < size; i++) {
+                    CapkStore.Key t = templates.get(i % templates.size());
+                    EmvCapk ec = t.toEmvCapk();
+                    ec.setKeyID((byte) (0x80 + i % 0x7F));
+                    ec.setExpDate("20991231");
+                    emvHandler.addCapk(ec);
+                }
+                long micros = (System.nanoTime() - start) / 1000;
+                Map<String, Object> r = new HashMap<>();
+                r.put("keys", size);
+                r.put("loadUs", micros);
+                r.put("perKeyUs", micros / size);
+                results.add(r);
+                Log.d(TAG, "CAPK load of " + size + " keys took " + micros + " us");
+            }
+        } finally {
+            applyCapks();
+        }
+        capkBenchmark = results;
+        return results;
+    }
+
+    private File paramDir() {
+        return new File(context.getFilesDir(), "emv");
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
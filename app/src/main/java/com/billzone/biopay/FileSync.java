@@ -0,0 +1,33 @@
+package com.billzone.biopay;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+
+public final class FileSync {
+    private static final String TAG = "FileSync";
+
+    private FileSync() {
+    }
+
+    public static void syncDirectory(File directory) {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Cannot sync " + directory + ": " + e.getMessage());
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import com.machinezoo.sourceafis.FingerprintCompatibility;
+import com.machinezoo.sourceafis.FingerprintTemplate;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+public class FingerprintGallery {
+    private static final String TAG = "FingerprintGallery";
+
+    public static class Entry {
+        private final GalleryFile file;
+        private final int slot;
+        private final byte[] raw;
+        private String id;
+        private volatile FingerprintTemplate template;
+        private volatile boolean removed;
+
+        Entry(String id, byte[] raw, GalleryFile file, int slot) {
+            this.id = id;
+            this.raw = raw;
+            this.file = file;
+            this.slot = slot;
+        }
+
+        public String getId() {
+            String i = id;
+            if (i == null) {
+                i = file.readId(slot);
+                id = i;
+            }
+            return i;
+        }
+
+        public byte[] getRaw() {
+            return raw != null ? raw : file.readTemplate(slot);
+        }
+
+        public FingerprintTemplate template() {
+            FingerprintTemplate t = template;
+            if (t == null) {
+                t = FingerprintCompatibility.importTemplate(getRaw());
+                template = t;
+            }
+            return t;
+        }
+    }
+
+    private final FingerprintIndex index = new FingerprintIndex();
+    private Map<String, Integer> positions = new HashMap<>();
+    private volatile Entry[] entries = new Entry[0];
+    private GalleryFile file;
+    private int generation = 0;
+
+    public FingerprintIndex index() {
+        return index;
+    }
+
+    public synchronized void attach(GalleryFile galleryFile) {
+        file = galleryFile;
+        int count = galleryFile.recordCount();
+        Entry[] loaded = new Entry[count];
+        int live = 0;
+        for (int slot = 0; slot < count; slot++) {
+            if (galleryFile.isLive(slot))
+                loaded[live++] = new Entry(null, null, galleryFile, slot);
+        }
+        Entry[] next = new Entry[live];
+        System.arraycopy(loaded, 0, next, 0, live);
+
+        for (Entry old : entries) {
+            old.removed = true;
+        }
+        entries = next;
+        positions = null;
+        index.setReady(false);
+        index.clear();
+        int attached = ++generation;
+        try {
+            DeviceScheduler.getInstance().submit(DeviceScheduler.Device.BACKGROUND, () -> warmUp(attached), null);
+        } catch (RejectedExecutionException e) {
+            // Identification falls back to a full scan until the next attach warms the index
+            Log.e(TAG, "Index warm-up rejected, background queue full");
+        }
+    }
+
+    public synchronized void compact() throws IOException {
+        if (file == null)
+            return;
+        Map<String, FingerprintTemplate> parsed = new HashMap<>();
+        for (Entry entry : entries) {
+            if (entry.template != null)
+                parsed.put(entry.getId(), entry.template);
+        }
+        attach(file.compact());
+        for (Entry entry : entries) {
+            entry.template = parsed.get(entry.getId());
+        }
+    }
+
+    public synchronized void enroll(String id, byte[] isoTemplate) throws IOException {
+        ensurePositions();
+        FingerprintTemplate parsed = FingerprintCompatibility.importTemplate(isoTemplate);
+        Entry entry;
+        if (file != null) {
+            entry = new Entry(id, isoTemplate, file, file.append(id, isoTemplate));
+        } else {
+            entry = new Entry(id, isoTemplate, null, -1);
+        }
+        entry.template = parsed;
+
+        Integer pos = positions.get(id);
+        Entry[] current = entries;
+        Entry[] next;
+        if (pos != null) {
+            markRemoved(current[pos]);
+            next = current.clone();
+            next[pos] = entry;
+        } else {
+            next = new Entry[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = entry;
+            positions.put(id, current.length);
+        }
+        entries = next;
+        index.add(entry);
+    }
+
+    public synchronized boolean remove(String id) {
+        ensurePositions();
+        Integer pos = positions.remove(id);
+        if (pos == null)
+            return false;
+
+        Entry[] current = entries;
+        markRemoved(current[pos]);
+        int last = current.length - 1;
+        Entry[] next = new Entry[last];
+        System.arraycopy(current, 0, next, 0, last);
+        if (pos != last) {
+            next[pos] = current[last];
+            positions.put(current[last].getId(), pos);
+        }
+        entries = next;
+        index.remove(id);
+        return true;
+    }
+
+    public synchronized void clear() throws IOException {
+        for (Entry entry : entries) {
+            entry.removed = true;
+        }
+        positions = new HashMap<>();
+        entries = new Entry[0];
+        generation++;
+        index.clear();
+        index.setReady(true);
+        if (file != null) {
+            file = file.reset();
+        }
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public Entry[] snapshot() {
+        return entries;
+    }
+
+    private void markRemoved(Entry entry) {
+        entry.removed = true;
+        if (entry.file == null)
+            return;
+        try {
+            entry.file.markDeleted(entry.slot);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to tombstone " + entry.getId() + ": " + e.getMessage());
+        }
+    }
+
+    private void ensurePositions() {
+        if (positions != null)
+            return;
+        Entry[] current = entries;
+        Map<String, Integer> built = new HashMap<>(current.length * 2);
+        for (int i = 0; i < current.length; i++) {
+            built.put(current[i].getId(), i);
+        }
+        positions = built;
+    }
+
+    private void warmUp(int attached) {
+        long start = System.nanoTime();
+        Entry[] current;
+        synchronized (this) {
+            if (attached != generation)
+                return;
+            ensurePositions();
+            current = entries;
+        }
+        for (Entry entry : current) {
+            synchronized (this) {
+                if (attached != generation)
+                    return;
+                if (!entry.removed)
+                    index.add(entry);
+            }
+        }
+        synchronized (this) {
+            if (attached == generation)
+                index.setReady(true);
+        }
+        Log.d(TAG, "Gallery of " + current.length + " templates indexed in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,290 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import com.machinezoo.sourceafis.FingerprintCompatibility;
+import com.machinezoo.sourceafis.FingerprintMatcher;
+import com.machinezoo.sourceafis.FingerprintTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FingerprintIdentifier {
+    private static final String TAG = "FingerprintIdentifier";
+    private static final int SHARD_SIZE = 256;
+    // Scores are SourceAFIS similarity: open-ended, 0 for unrelated prints. 40 is SourceAFIS's recommended
+    // threshold, about 0.01% false match rate; each +20 is roughly 100x fewer false matches. verifyFingerprint
+    // matches with Bione.verify instead, which answers match/no-match on the vendor's own fixed threshold.
+    public static final String MATCHER = "sourceafis";
+    public static final double DEFAULT_THRESHOLD = 40;
+
+    public static class Candidate implements Comparable<Candidate> {
+        public final String id;
+        public final double score;
+
+        Candidate(String id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
+    public static class ScoreResult {
+        // NaN for candidates skipped after an early exit or that failed to parse
+        public final double[] scores;
+        public final int bestIndex;
+        public final boolean earlyExit;
+
+        ScoreResult(double[] scores, int bestIndex, boolean earlyExit) {
+            this.scores = scores;
+            this.bestIndex = bestIndex;
+            this.earlyExit = earlyExit;
+        }
+    }
+
+    private final FingerprintGallery gallery;
+    private final ForkJoinPool pool;
+    private volatile boolean indexEnabled = true;
+    private volatile int auditInterval = 20;
+
+    private long queries = 0;
+    private long filteredQueries = 0;
+    private long candidateTotal = 0;
+    private long galleryTotal = 0;
+    private int lastCandidateCount = 0;
+    private long audits = 0;
+    private long auditHits = 0;
+    private long filteredMatchMs = 0;
+    private long exhaustiveMatchMs = 0;
+
+    public FingerprintIdentifier(FingerprintGallery gallery) {
+        this.gallery = gallery;
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    public void setIndexEnabled(boolean enabled) {
+        this.indexEnabled = enabled;
+    }
+
+    public void setAuditInterval(int interval) {
+        this.auditInterval = Math.max(0, interval);
+    }
+
+    public List<Candidate> identify(byte[] probeIso, int topK, double threshold) {
+        FingerprintTemplate probe = FingerprintCompatibility.importTemplate(probeIso);
+        FingerprintMatcher matcher = new FingerprintMatcher(probe);
+        FingerprintGallery.Entry[] entries = gallery.snapshot();
+        int k = Math.max(1, topK);
+
+        FingerprintGallery.Entry[] searchSet = entries;
+        FingerprintIndex index = gallery.index();
+        if (indexEnabled && index.isReady() && entries.length > index.getMaxCandidates()) {
+            try {
+                searchSet = index.candidates(IsoTemplate.parse(probeIso));
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Probe not indexable, searching full gallery: " + e.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Candidate> ranked = search(matcher, searchSet, k, threshold);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, "Identified against " + searchSet.length + " of " + entries.length + " templates in "
+                + elapsedMs + " ms");
+
+        boolean filtered = searchSet != entries;
+        boolean audit;
+        synchronized (this) {
+            queries++;
+            candidateTotal += searchSet.length;
+            galleryTotal += entries.length;
+            lastCandidateCount = searchSet.length;
+            if (filtered) {
+                filteredQueries++;
+                filteredMatchMs += elapsedMs;
+            }
+            audit = filtered && auditInterval > 0 && filteredQueries % auditInterval == 0;
+        }
+
+        if (audit) {
+            long auditStart = System.nanoTime();
+            List<Candidate> exhaustive = search(matcher, entries, 1, threshold);
+            long auditMs = (System.nanoTime() - auditStart) / 1_000_000;
+            synchronized (this) {
+                exhaustiveMatchMs += auditMs;
+                if (!exhaustive.isEmpty()) {
+                    audits++;
+                    if (!ranked.isEmpty() && ranked.get(0).id.equals(exhaustive.get(0).id))
+                        auditHits++;
+                }
+            }
+        }
+        return ranked;
+    }
+
+    public synchronized Map<String, Object> getIndexReport() {
+        Map<String, Object> report = new HashMap<>();
+        report.put("indexEnabled", indexEnabled);
+        report.put("maxCandidates", gallery.index().getMaxCandidates());
+        report.put("minVotes", gallery.index().getMinVotes());
+        report.put("queries", queries);
+        report.put("filteredQueries", filteredQueries);
+        report.put("lastCandidateCount", lastCandidateCount);
+        report.put("avgCandidateCount", queries == 0 ? 0 : (double) candidateTotal / queries);
+        report.put("avgCandidateRatio", galleryTotal == 0 ? 0 : (double) candidateTotal / galleryTotal);
+        report.put("audits", audits);
+        report.put("auditRecall", audits == 0 ? 1.0 : (double) auditHits / audits);
+        report.put("avgFilteredMatchMs", filteredQueries == 0 ? 0 : filteredMatchMs / filteredQueries);
+        report.put("avgExhaustiveMatchMs", audits == 0 ? 0 : exhaustiveMatchMs / audits);
+        return report;
+    }
+
+    public ScoreResult scoreAll(byte[] probeIso, FingerprintTemplate[] candidates, double threshold,
+            boolean earlyExit) {
+        FingerprintMatcher matcher = new FingerprintMatcher(FingerprintCompatibility.importTemplate(probeIso));
+        double[] scores = new double[candidates.length];
+        Arrays.fill(scores, Double.NaN);
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        pool.invoke(new ScoreTask(matcher, candidates, scores, 0, candidates.length,
+                earlyExit ? threshold : Double.POSITIVE_INFINITY, stop));
+
+        int best = -1;
+        for (int i = 0; i < scores.length; i++) {
+            if (!Double.isNaN(scores[i]) && (best < 0 || scores[i] > scores[best]))
+                best = i;
+        }
+        return new ScoreResult(scores, best, stop.get());
+    }
+
+    private List<Candidate> search(FingerprintMatcher matcher, FingerprintGallery.Entry[] entries, int topK,
+            double threshold) {
+        return pool.invoke(new ShardTask(matcher, entries, 0, entries.length, topK, threshold));
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static class ShardTask extends RecursiveTask<List<Candidate>> {
+        private final FingerprintMatcher matcher;
+        private final FingerprintGallery.Entry[] entries;
+        private final int from;
+        private final int to;
+        private final int topK;
+        private final double threshold;
+
+        ShardTask(FingerprintMatcher matcher, FingerprintGallery.Entry[] entries, int from, int to,
+                int topK, double threshold) {
+            this.matcher = matcher;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            if (to - from <= SHARD_SIZE) {
+                return scan();
+            }
+            int mid = (from + to) >>> 1;
+            ShardTask left = new ShardTask(matcher, entries, from, mid, topK, threshold);
+            ShardTask right = new ShardTask(matcher, entries, mid, to, topK, threshold);
+            left.fork();
+            List<Candidate> rightResult = right.compute();
+            return merge(left.join(), rightResult, topK);
+        }
+
+        private List<Candidate> scan() {
+            PriorityQueue<Candidate> best = new PriorityQueue<>(topK + 1);
+            for (int i = from; i < to; i++) {
+                FingerprintGallery.Entry entry = entries[i];
+                double score;
+                try {
+                    score = matcher.match(entry.template());
+                } catch (Exception e) {
+                    Log.e(TAG, "Skipping unreadable template " + entry.getId() + ": " + e.getMessage());
+                    continue;
+                }
+                if (score < threshold)
+                    continue;
+                best.add(new Candidate(entry.getId(), score));
+                if (best.size() > topK)
+                    best.poll();
+            }
+            return sortDescending(new ArrayList<>(best));
+        }
+    }
+
+    private static class ScoreTask extends RecursiveAction {
+        private final FingerprintMatcher matcher;
+        private final FingerprintTemplate[] candidates;
+        private final double[] scores;
+        private final int from;
+        private final int to;
+        private final double stopAt;
+        private final AtomicBoolean stop;
+
+        ScoreTask(FingerprintMatcher matcher, FingerprintTemplate[] candidates, double[] scores, int from, int to,
+                double stopAt, AtomicBoolean stop) {
+            this.matcher = matcher;
+            this.candidates = candidates;
+            this.scores = scores;
+            this.from = from;
+            this.to = to;
+            this.stopAt = stopAt;
+            this.stop = stop;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 2) {
+                for (int i = from; i < to && !stop.get(); i++) {
+                    if (candidates[i] == null)
+                        continue;
+                    scores[i] = matcher.match(candidates[i]);
+                    if (scores[i] >= stopAt)
+                        stop.set(true);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScoreTask(matcher, candidates, scores, from, mid, stopAt, stop),
+                    new ScoreTask(matcher, candidates, scores, mid, to, stopAt, stop));
+        }
+    }
+
+    static List<Candidate> merge(List<Candidate> a, List<Candidate> b, int topK) {
+        List<Candidate> merged = new ArrayList<>(Math.min(topK, a.size() + b.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < topK && (i < a.size() || j < b.size())) {
+            if (j >= b.size() || (i < a.size() && a.get(i).score >= b.get(j).score)) {
+                merged.add(a.get(i++));
+            } else {
+                merged.add(b.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    static List<Candidate> sortDescending(List<Candidate> candidates) {
+        Collections.sort(candidates, Collections.reverseOrder());
+        return candidates;
+    }
+}
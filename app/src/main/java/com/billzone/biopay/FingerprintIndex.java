@@ -0,0 +1,255 @@
+package com.billzone.biopay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class FingerprintIndex {
+    private static final int NEIGHBOURS = 6;
+    private static final int DISTANCE_BIN = 12;
+    private static final int DISTANCE_BINS = 24;
+    private static final int ANGLE_BINS = 16;
+    private static final int ANGLE_SHIFT = 4;
+    private static final int KEY_SPACE = DISTANCE_BINS * ANGLE_BINS * ANGLE_BINS;
+    private static final int MIN_DISTANCE = 8;
+
+    public static final int DEFAULT_MAX_CANDIDATES = 500;
+    public static final int DEFAULT_MIN_VOTES = 3;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int[][] postings = new int[KEY_SPACE][];
+    private final int[] postingSizes = new int[KEY_SPACE];
+    private final List<FingerprintGallery.Entry> docs = new ArrayList<>();
+    private final List<Integer> unindexed = new ArrayList<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private boolean[] dead = new boolean[64];
+    private int deadCount = 0;
+
+    private volatile int maxCandidates = DEFAULT_MAX_CANDIDATES;
+    private volatile int minVotes = DEFAULT_MIN_VOTES;
+    private volatile boolean ready = true;
+
+    public void setTuning(int maxCandidates, int minVotes) {
+        this.maxCandidates = Math.max(1, maxCandidates);
+        this.minVotes = Math.max(1, minVotes);
+    }
+
+    // False while a freshly attached gallery is still being indexed in the background
+    public boolean isReady() {
+        return ready;
+    }
+
+    void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    public int getMinVotes() {
+        return minVotes;
+    }
+
+    public void add(FingerprintGallery.Entry entry) {
+        int[] keys = null;
+        try {
+            keys = pairKeys(IsoTemplate.parse(entry.getRaw()));
+        } catch (RuntimeException ignored) {
+            // Unparseable templates are still searched, just never filtered out
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeLocked(entry.getId());
+            int doc = docs.size();
+            docs.add(entry);
+            docIds.put(entry.getId(), doc);
+            if (doc >= dead.length) {
+                dead = Arrays.copyOf(dead, dead.length * 2);
+            }
+            if (keys == null) {
+                unindexed.add(doc);
+                return;
+            }
+            for (int key : keys) {
+                int[] list = postings[key];
+                int size = postingSizes[key];
+                if (list == null) {
+                    list = new int[8];
+                } else if (size == list.length) {
+                    list = Arrays.copyOf(list, size * 2);
+                }
+                list[size] = doc;
+                postings[key] = list;
+                postingSizes[key] = size + 1;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(postings, null);
+            Arrays.fill(postingSizes, 0);
+            docs.clear();
+            unindexed.clear();
+            docIds.clear();
+            dead = new boolean[64];
+            deadCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public FingerprintGallery.Entry[] candidates(IsoTemplate probe) {
+        int[] keys = pairKeys(probe);
+        int limit = maxCandidates;
+        int threshold = minVotes;
+
+        lock.readLock().lock();
+        try {
+            int docCount = docs.size();
+            int[] votes = new int[docCount];
+            int maxVote = 0;
+            for (int key : keys) {
+                int[] list = postings[key];
+                int size = postingSizes[key];
+                for (int i = 0; i < size; i++) {
+                    int v = ++votes[list[i]];
+                    if (v > maxVote)
+                        maxVote = v;
+                }
+            }
+
+            // Counting sort on vote totals to find the cut-off for the top candidates
+            int[] histogram = new int[maxVote + 1];
+            for (int doc = 0; doc < docCount; doc++) {
+                if (!dead[doc])
+                    histogram[votes[doc]]++;
+            }
+            int cutoff = maxVote + 1;
+            int selected = 0;
+            while (cutoff > threshold && selected + histogram[cutoff - 1] <= limit) {
+                cutoff--;
+                selected += histogram[cutoff];
+            }
+
+            if (selected == 0 && maxVote >= threshold) {
+                cutoff = maxVote;
+                selected = Math.min(limit, histogram[maxVote]);
+            }
+
+            List<FingerprintGallery.Entry> result = new ArrayList<>(selected + unindexed.size());
+            for (int doc = 0; doc < docCount && result.size() < selected; doc++) {
+                if (!dead[doc] && votes[doc] >= cutoff)
+                    result.add(docs.get(doc));
+            }
+            for (int doc : unindexed) {
+                if (!dead[doc])
+                    result.add(docs.get(doc));
+            }
+            return result.toArray(new FingerprintGallery.Entry[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeLocked(String id) {
+        Integer doc = docIds.remove(id);
+        if (doc == null)
+            return;
+        dead[doc] = true;
+        deadCount++;
+        if (deadCount > 1024 && deadCount * 4 > docs.size()) {
+            rebuildLocked();
+        }
+    }
+
+    private void rebuildLocked() {
+        List<FingerprintGallery.Entry> live = new ArrayList<>(docs.size() - deadCount);
+        for (int doc = 0; doc < docs.size(); doc++) {
+            if (!dead[doc])
+                live.add(docs.get(doc));
+        }
+        // The write lock is reentrant, so clear() and add() nest inside the caller's hold
+        clear();
+        for (FingerprintGallery.Entry entry : live) {
+            add(entry);
+        }
+    }
+
+    static int[] pairKeys(IsoTemplate t) {
+        boolean[] seen = new boolean[KEY_SPACE];
+        int[] keys = new int[Math.max(1, t.count * NEIGHBOURS)];
+        int keyCount = 0;
+        int maxDistance = DISTANCE_BIN * DISTANCE_BINS;
+        int[] nearest = new int[NEIGHBOURS];
+        long[] nearestDist = new long[NEIGHBOURS];
+
+        for (int i = 0; i < t.count; i++) {
+            int found = 0;
+            for (int j = 0; j < t.count; j++) {
+                if (j == i)
+                    continue;
+                long dx = t.x[j] - t.x[i];
+                long dy = t.y[j] - t.y[i];
+                long d2 = dx * dx + dy * dy;
+                if (d2 < MIN_DISTANCE * MIN_DISTANCE || d2 >= (long) maxDistance * maxDistance)
+                    continue;
+                int pos = found < NEIGHBOURS ? found++ : NEIGHBOURS;
+                if (pos == NEIGHBOURS) {
+                    if (d2 >= nearestDist[NEIGHBOURS - 1])
+                        continue;
+                    pos = NEIGHBOURS - 1;
+                }
+                while (pos > 0 && nearestDist[pos - 1] > d2) {
+                    nearestDist[pos] = nearestDist[pos - 1];
+                    nearest[pos] = nearest[pos - 1];
+                    pos--;
+                }
+                nearestDist[pos] = d2;
+                nearest[pos] = j;
+            }
+
+            for (int n = 0; n < found; n++) {
+                int key = pairKey(t, i, nearest[n]);
+                if (!seen[key]) {
+                    seen[key] = true;
+                    keys[keyCount++] = key;
+                }
+            }
+        }
+        return Arrays.copyOf(keys, keyCount);
+    }
+
+    private static int pairKey(IsoTemplate t, int i, int j) {
+        int dx = t.x[j] - t.x[i];
+        int dy = t.y[j] - t.y[i];
+        int distanceBin = Math.min(DISTANCE_BINS - 1, (int) Math.sqrt(dx * dx + dy * dy) / DISTANCE_BIN);
+        int line = (int) Math.round(Math.atan2(-dy, dx) * 128 / Math.PI) & 0xFF;
+
+        int forward = packKey(distanceBin, t.angle[i] - line, t.angle[j] - line);
+        int reverse = packKey(distanceBin, t.angle[j] - line - 128, t.angle[i] - line - 128);
+        return Math.min(forward, reverse);
+    }
+
+    private static int packKey(int distanceBin, int first, int second) {
+        return (distanceBin * ANGLE_BINS + ((first & 0xFF) >> ANGLE_SHIFT)) * ANGLE_BINS
+                + ((second & 0xFF) >> ANGLE_SHIFT);
+    }
+}
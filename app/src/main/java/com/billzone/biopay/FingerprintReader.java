@@ -11,14 +11,24 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import cn.com.aratek.fp.Bione;
-import cn.com.aratek.fp.FingerprintImage;
 import cn.com.aratek.fp.FingerprintScanner;
 import cn.com.aratek.util.Result;
 
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
 public class FingerprintReader {
     private static final String TAG = "FingerprintReader";
     private Context context;
     private FingerprintScanner scanner;
+    private FingerprintSession session;
+    private FingerprintGallery gallery;
+    private FingerprintIdentifier identifier;
+    private TemplateCache templateCache = new TemplateCache();
+    private CaptureStrategy captureStrategy = new CaptureStrategy();
+    private CaptureHandles captureHandles = new CaptureHandles();
+    private DeviceScheduler scheduler = DeviceScheduler.getInstance();
+    private DeduplicationJob deduplication;
     private String fpDbPath = "/sdcard/fp.db";
 
     public interface FingerprintCallback {
@@ -33,9 +43,51 @@ public class FingerprintReader {
         void onError(String error);
     }
 
+    public interface MultiVerifyCallback {
+        void onSuccess(FingerprintIdentifier.ScoreResult result, double threshold);
+
+        void onError(String error);
+    }
+
+    public interface IdentifyCallback {
+        void onSuccess(List<FingerprintIdentifier.Candidate> candidates);
+
+        void onError(String error);
+    }
+
     public FingerprintReader(Context context) {
         this.context = context;
         this.scanner = FingerprintScanner.getInstance(context);
+        this.session = new FingerprintSession(context, scanner, fpDbPath);
+        this.gallery = new FingerprintGallery();
+        this.identifier = new FingerprintIdentifier(gallery);
+        openGallery();
+    }
+
+    private void openGallery() {
+        try {
+            GalleryFile file = GalleryFile.open(new java.io.File(context.getFilesDir(), "gallery"), "templates");
+            gallery.attach(file);
+            Log.d(TAG, "Gallery opened with " + gallery.size() + " templates");
+
+            schedule(DeviceScheduler.Device.GALLERY, () -> {
+                int total = file.recordCount();
+                if (total > 0 && file.countLive() * 2 < total) {
+                    compactGallery(new FingerprintCallback() {
+                        @Override
+                        public void onSuccess(String data) {
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            Log.e(TAG, error);
+                        }
+                    });
+                }
+            }, error -> Log.e(TAG, error));
+        } catch (Exception e) {
+            Log.e(TAG, "Gallery file unavailable, keeping templates in memory: " + e.getMessage());
+        }
     }
 
     public void checkPermission(FingerprintCallback callback) {
@@ -57,6 +109,7 @@ public class FingerprintReader {
             } else {
                 fpDbPath = context.getFilesDir().getPath() + "/fp.db";
             }
+            session.setDbPath(fpDbPath);
             callback.onSuccess("true");
         } catch (Exception e) {
             callback.onError("Permission check failed");
@@ -64,7 +117,7 @@ public class FingerprintReader {
     }
 
     public void captureFinger(FingerprintCallback callback) {
-        new Thread(() -> {
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
             try {
                 if (!initFingerprint(callback))
                     return;
@@ -89,11 +142,11 @@ public class FingerprintReader {
                 teardownFingerprint();
                 callback.onError("Capture error: " + e.getMessage());
             }
-        }).start();
+        }, callback::onError);
     }
 
     public void captureFingerprintToString(FingerprintCallback callback) {
-        new Thread(() -> {
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
             try {
                 if (!initFingerprint(callback))
                     return;
@@ -112,7 +165,7 @@ public class FingerprintReader {
                 teardownFingerprint();
                 callback.onError("Capture error: " + e.getMessage());
             }
-        }).start();
+        }, callback::onError);
     }
 
     public void verifyFingerprint(String existingScanBase64, VerifyCallback callback) {
@@ -121,7 +174,7 @@ public class FingerprintReader {
             return;
         }
 
-        new Thread(() -> {
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
             try {
                 if (!initFingerprint(new FingerprintCallback() {
                     @Override
@@ -137,7 +190,7 @@ public class FingerprintReader {
 
                 byte[] existingTpl;
                 try {
-                    existingTpl = android.util.Base64.decode(existingScanBase64, android.util.Base64.NO_WRAP);
+                    existingTpl = templateCache.get(existingScanBase64).raw;
                 } catch (Exception e) {
                     teardownFingerprint();
                     callback.onError("Invalid Base64");
@@ -159,79 +212,367 @@ public class FingerprintReader {
                 teardownFingerprint();
                 callback.onError("Verification error: " + e.getMessage());
             }
-        }).start();
+        }, callback::onError);
     }
 
-    private boolean initFingerprint(FingerprintCallback callback) {
-        try {
-            if (scanner.powerOn() != FingerprintScanner.RESULT_OK) {
-                callback.onError("Power on failed");
-                return false;
-            }
-            if (scanner.open() != FingerprintScanner.RESULT_OK) {
-                scanner.powerOff();
-                callback.onError("Device open failed");
-                return false;
-            }
-            if (Bione.initialize(context, fpDbPath) != Bione.RESULT_OK) {
-                scanner.close();
-                scanner.powerOff();
-                callback.onError("Algorithm init failed");
-                return false;
-            }
-            return true;
-        } catch (Exception e) {
-            callback.onError("Init error: " + e.getMessage());
-            return false;
+    // Scores with SourceAFIS (see FingerprintIdentifier.DEFAULT_THRESHOLD for the scale), unlike verifyFingerprint,
+    // which uses Bione's boolean verdict; the two can disagree near either threshold
+    public void verifyAgainstMany(List<String> candidatesBase64, double threshold, boolean earlyExit,
+            MultiVerifyCallback callback) {
+        if (candidatesBase64 == null || candidatesBase64.isEmpty()) {
+            callback.onError("candidates are required");
+            return;
         }
+
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
+            try {
+                com.machinezoo.sourceafis.FingerprintTemplate[] candidates =
+                        new com.machinezoo.sourceafis.FingerprintTemplate[candidatesBase64.size()];
+                for (int i = 0; i < candidates.length; i++) {
+                    try {
+                        candidates[i] = templateCache.get(candidatesBase64.get(i)).template();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Skipping unreadable candidate " + i + ": " + e.getMessage());
+                    }
+                }
+
+                if (!initFingerprint(new FingerprintCallback() {
+                    @Override
+                    public void onSuccess(String data) {
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        callback.onError(error);
+                    }
+                }))
+                    return;
+
+                byte[] freshTpl;
+                try {
+                    freshTpl = captureFeatureOnce();
+                } finally {
+                    teardownFingerprint();
+                }
+                if (freshTpl == null) {
+                    callback.onError("Failed to capture fingerprint");
+                    return;
+                }
+
+                callback.onSuccess(identifier.scoreAll(freshTpl, candidates, threshold, earlyExit), threshold);
+            } catch (Exception e) {
+                callback.onError("Verification error: " + e.getMessage());
+            }
+        }, callback::onError);
     }
 
-    private void teardownFingerprint() {
-        try {
-            scanner.close();
-        } catch (Exception ignored) {
-        }
+    public void beginCapture(FingerprintCallback callback) {
+        CaptureHandles.PendingCapture pending = captureHandles.create();
+
+        Runnable capture = () -> {
+            if (pending.isCancelled()) {
+                pending.fail("Capture handle expired");
+                return;
+            }
+            try {
+                if (!initFingerprint(new FingerprintCallback() {
+                    @Override
+                    public void onSuccess(String data) {
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        pending.fail(error);
+                    }
+                }))
+                    return;
+                pending.lease(this::teardownFingerprint);
+
+                byte[] tpl = captureFeatureOnce();
+                if (tpl == null) {
+                    pending.fail("Failed to capture fingerprint");
+                    pending.release();
+                    return;
+                }
+                pending.complete(tpl);
+            } catch (Exception e) {
+                pending.fail("Capture error: " + e.getMessage());
+                pending.release();
+            }
+        };
         try {
-            scanner.powerOff();
-        } catch (Exception ignored) {
+            scheduler.submit(DeviceScheduler.Device.FINGERPRINT, capture, () -> pending.fail("Capture cancelled"));
+        } catch (RejectedExecutionException e) {
+            captureHandles.claim(pending.handle);
+            callback.onError("Device busy");
+            return;
         }
-        try {
-            Bione.exit();
-        } catch (Exception ignored) {
+        callback.onSuccess(pending.handle);
+    }
+
+    public void matchCapture(String handle, String existingScanBase64, VerifyCallback callback) {
+        if (existingScanBase64 == null || existingScanBase64.trim().isEmpty()) {
+            callback.onError("existingScan is required");
+            return;
         }
+
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
+            CaptureHandles.PendingCapture pending = captureHandles.claim(handle);
+            if (pending == null) {
+                callback.onError("Unknown or expired capture handle");
+                return;
+            }
+
+            try {
+                byte[] existingTpl;
+                try {
+                    existingTpl = templateCache.get(existingScanBase64).raw;
+                } catch (Exception e) {
+                    callback.onError("Invalid Base64");
+                    return;
+                }
+
+                byte[] freshTpl = pending.await(Math.max(0, pending.expiresAt - System.currentTimeMillis()));
+                if (freshTpl == null) {
+                    callback.onError(pending.getError());
+                    return;
+                }
+
+                Result vr = Bione.verify(freshTpl, existingTpl);
+                boolean match = (vr != null && vr.data instanceof Boolean) && (Boolean) vr.data;
+                callback.onSuccess(match);
+            } catch (Exception e) {
+                callback.onError("Verification error: " + e.getMessage());
+            } finally {
+                pending.release();
+            }
+        }, callback::onError);
     }
 
-    private byte[] captureFeatureOnce() {
-        try {
-            scanner.prepare();
-            for (int i = 0; i <= 10; i++) {
+    public void enrollTemplate(String id, String templateBase64, FingerprintCallback callback) {
+        if (id == null || id.trim().isEmpty()) {
+            callback.onError("id is required");
+            return;
+        }
+        if (templateBase64 == null || templateBase64.trim().isEmpty()) {
+            callback.onError("template is required");
+            return;
+        }
+
+        schedule(DeviceScheduler.Device.GALLERY, () -> {
+            try {
+                byte[] tpl;
                 try {
-                    Result res = scanner.capture();
-                    if (res == null || res.data == null)
-                        continue;
-
-                    FingerprintImage fi = (FingerprintImage) res.data;
-                    int quality = Bione.getFingerprintQuality(fi);
-                    Log.d(TAG, "Fingerprint quality: " + quality);
-
-                    if (fi != null && quality >= 95) {
-                        Result feat = Bione.extractIsoFeature(fi);
-                        if (feat != null && feat.error == Bione.RESULT_OK && feat.data instanceof byte[]) {
-                            byte[] featureData = (byte[]) feat.data;
-                            Log.d(TAG, "Feature data length: " + featureData.length);
-                            if (featureData.length > 30) {
-                                return featureData;
-                            }
-                            Log.d(TAG, "Feature data too small (" + featureData.length + " bytes), retrying...");
-                        }
-                    }
+                    tpl = android.util.Base64.decode(templateBase64, android.util.Base64.NO_WRAP);
                 } catch (Exception e) {
-                    Log.e(TAG, "Capture iteration error: " + e.getMessage());
+                    callback.onError("Invalid Base64");
+                    return;
+                }
+                gallery.enroll(id, tpl);
+                callback.onSuccess(id);
+            } catch (Exception e) {
+                callback.onError("Enroll error: " + e.getMessage());
+            }
+        }, callback::onError);
+    }
+
+    public void removeTemplate(String id, FingerprintCallback callback) {
+        if (id == null) {
+            callback.onSuccess("false");
+            return;
+        }
+        schedule(DeviceScheduler.Device.GALLERY, () -> {
+            try {
+                callback.onSuccess(String.valueOf(gallery.remove(id)));
+            } catch (Exception e) {
+                callback.onError("Remove error: " + e.getMessage());
+            }
+        }, callback::onError);
+    }
+
+    public void clearGallery(FingerprintCallback callback) {
+        schedule(DeviceScheduler.Device.GALLERY, () -> {
+            try {
+                gallery.clear();
+                callback.onSuccess("true");
+            } catch (Exception e) {
+                callback.onError("Clear error: " + e.getMessage());
+            }
+        }, callback::onError);
+    }
+
+    public void compactGallery(FingerprintCallback callback) {
+        schedule(DeviceScheduler.Device.GALLERY, () -> {
+            try {
+                long start = System.nanoTime();
+                gallery.compact();
+                Log.d(TAG, "Gallery compacted in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                callback.onSuccess(String.valueOf(gallery.size()));
+            } catch (Exception e) {
+                callback.onError("Compaction error: " + e.getMessage());
+            }
+        }, callback::onError);
+    }
+
+    public int getGallerySize() {
+        return gallery.size();
+    }
+
+    public void identifyFingerprint(int topK, double threshold, IdentifyCallback callback) {
+        if (gallery.size() == 0) {
+            callback.onError("Gallery is empty");
+            return;
+        }
+
+        schedule(DeviceScheduler.Device.FINGERPRINT, () -> {
+            try {
+                if (!initFingerprint(new FingerprintCallback() {
+                    @Override
+                    public void onSuccess(String data) {
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        callback.onError(error);
+                    }
+                }))
+                    return;
+
+                byte[] probe;
+                try {
+                    probe = captureFeatureOnce();
+                } finally {
+                    teardownFingerprint();
+                }
+                if (probe == null) {
+                    callback.onError("Failed to capture fingerprint");
+                    return;
                 }
+
+                callback.onSuccess(identifier.identify(probe, topK, threshold));
+            } catch (Exception e) {
+                callback.onError("Identification error: " + e.getMessage());
+            }
+        }, callback::onError);
+    }
+
+    public void startDeduplication(double threshold, FingerprintCallback callback) {
+        synchronized (this) {
+            if (deduplication != null && deduplication.isRunning()) {
+                callback.onError("Deduplication already running");
+                return;
+            }
+            if (gallery.size() < 2) {
+                callback.onError("Gallery has fewer than two templates");
+                return;
+            }
+            java.io.File checkpoint = new java.io.File(new java.io.File(context.getFilesDir(), "gallery"), "dedup.ckpt");
+            deduplication = new DeduplicationJob(gallery.snapshot(), checkpoint, threshold,
+                    new DeduplicationJob.Listener() {
+                        @Override
+                        public void onDuplicate(DeduplicationJob.Pair pair) {
+                            Log.d(TAG, "Suspected duplicate: " + pair.idA + " / " + pair.idB + " (" + pair.score + ")");
+                        }
+
+                        @Override
+                        public void onFinished(boolean completed, String error) {
+                            if (error != null)
+                                Log.e(TAG, "Deduplication error: " + error);
+                        }
+                    });
+            try {
+                deduplication.start();
+            } catch (RejectedExecutionException e) {
+                callback.onError("Device busy");
+                return;
             }
+        }
+        callback.onSuccess("true");
+    }
+
+    public synchronized java.util.Map<String, Object> getDeduplicationStatus(int sincePair) {
+        if (deduplication == null)
+            return null;
+        return deduplication.getStatus(sincePair);
+    }
+
+    public synchronized void cancelDeduplication() {
+        if (deduplication != null)
+            deduplication.cancel();
+    }
+
+    public void setIndexTuning(boolean enabled, int maxCandidates, int minVotes) {
+        identifier.setIndexEnabled(enabled);
+        gallery.index().setTuning(maxCandidates, minVotes);
+    }
+
+    public java.util.Map<String, Object> getIndexReport() {
+        return identifier.getIndexReport();
+    }
+
+    public java.util.Map<String, Object> getTemplateCacheStats() {
+        return templateCache.getStats();
+    }
+
+    public void configureCapture(int targetQuality, int floorQuality, long deadlineMs) {
+        captureStrategy.configure(targetQuality, floorQuality, deadlineMs);
+    }
+
+    public void setCaptureHandleTtlMs(long ttlMs) {
+        captureHandles.setTtlMs(ttlMs);
+    }
+
+    public java.util.Map<String, Object> getCaptureStats() {
+        java.util.Map<String, Object> stats = captureStrategy.getStats();
+        stats.put("handles", captureHandles.getStats());
+        return stats;
+    }
+
+    public void setIdleTimeoutMs(long timeoutMs) {
+        session.setIdleTimeoutMs(timeoutMs);
+    }
+
+    public java.util.Map<String, Object> getScannerStats() {
+        return session.getStats();
+    }
+
+    public void shutdown() {
+        cancelDeduplication();
+        captureHandles.shutdown();
+        session.shutdown();
+        identifier.shutdown();
+    }
+
+    public int cancelPending() {
+        return scheduler.cancelPending(DeviceScheduler.Device.FINGERPRINT);
+    }
+
+    private interface ErrorSink {
+        void onError(String error);
+    }
+
+    private void schedule(DeviceScheduler.Device device, Runnable task, ErrorSink sink) {
+        try {
+            scheduler.submit(device, task, () -> sink.onError("Request cancelled"));
+        } catch (RejectedExecutionException e) {
+            sink.onError("Device busy");
+        }
+    }
+
+    private boolean initFingerprint(FingerprintCallback callback) {
+        return session.acquire(callback);
+    }
+
+    private void teardownFingerprint() {
+        session.release();
+    }
+
+    private byte[] captureFeatureOnce() {
+        try {
+            return captureStrategy.capture(scanner, session).template;
         } catch (Exception e) {
             Log.e(TAG, "Capture error: " + e.getMessage());
+            return null;
         }
-        return null;
     }
 }
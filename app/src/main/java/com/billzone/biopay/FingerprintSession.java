@@ -0,0 +1,196 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import cn.com.aratek.fp.Bione;
+import cn.com.aratek.fp.FingerprintScanner;
+
+public class FingerprintSession {
+    private static final String TAG = "FingerprintSession";
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+
+    private final Context context;
+    private final FingerprintScanner scanner;
+    private final ScheduledExecutorService idleTimer;
+    private String fpDbPath;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private boolean open = false;
+    private int activeUsers = 0;
+    private ScheduledFuture<?> idleTask;
+
+    private long warmStarts = 0;
+    private long coldStarts = 0;
+    private long recoveries = 0;
+    private long idlePowerDowns = 0;
+    private long lastInitMs = 0;
+    private long totalInitMs = 0;
+
+    public FingerprintSession(Context context, FingerprintScanner scanner, String fpDbPath) {
+        this.context = context;
+        this.scanner = scanner;
+        this.fpDbPath = fpDbPath;
+        this.idleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fp-session-idle");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void setDbPath(String path) {
+        if (path == null || path.equals(fpDbPath))
+            return;
+        fpDbPath = path;
+        if (open && activeUsers == 0) {
+            // Bione is bound to the old database file; reopen on next acquire
+            powerDown();
+        }
+    }
+
+    public synchronized void setIdleTimeoutMs(long timeoutMs) {
+        idleTimeoutMs = Math.max(0, timeoutMs);
+        if (open && activeUsers == 0) {
+            scheduleIdlePowerDown();
+        }
+    }
+
+    public synchronized boolean acquire(FingerprintReader.FingerprintCallback callback) {
+        cancelIdlePowerDown();
+        if (open) {
+            warmStarts++;
+            activeUsers++;
+            return true;
+        }
+
+        long start = System.nanoTime();
+        if (!powerUp(callback)) {
+            return false;
+        }
+        lastInitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        totalInitMs += lastInitMs;
+        coldStarts++;
+        activeUsers++;
+        Log.d(TAG, "Scanner cold start took " + lastInitMs + " ms");
+        return true;
+    }
+
+    public synchronized void release() {
+        if (activeUsers > 0)
+            activeUsers--;
+        if (open && activeUsers == 0) {
+            scheduleIdlePowerDown();
+        }
+    }
+
+    public synchronized boolean recover() {
+        Log.d(TAG, "Recovering scanner after device error");
+        recoveries++;
+        powerDown();
+
+        long start = System.nanoTime();
+        boolean ok = powerUp(new FingerprintReader.FingerprintCallback() {
+            @Override
+            public void onSuccess(String data) {
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Recovery failed: " + error);
+            }
+        });
+        if (ok) {
+            lastInitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            totalInitMs += lastInitMs;
+            coldStarts++;
+        }
+        return ok;
+    }
+
+    public synchronized void shutdown() {
+        cancelIdlePowerDown();
+        powerDown();
+        idleTimer.shutdownNow();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("open", open);
+        stats.put("warmStarts", warmStarts);
+        stats.put("coldStarts", coldStarts);
+        stats.put("recoveries", recoveries);
+        stats.put("idlePowerDowns", idlePowerDowns);
+        stats.put("lastInitMs", lastInitMs);
+        stats.put("avgInitMs", coldStarts == 0 ? 0 : totalInitMs / coldStarts);
+        stats.put("idleTimeoutMs", idleTimeoutMs);
+        return stats;
+    }
+
+    private boolean powerUp(FingerprintReader.FingerprintCallback callback) {
+        try {
+            if (scanner.powerOn() != FingerprintScanner.RESULT_OK) {
+                callback.onError("Power on failed");
+                return false;
+            }
+            if (scanner.open() != FingerprintScanner.RESULT_OK) {
+                scanner.powerOff();
+                callback.onError("Device open failed");
+                return false;
+            }
+            if (Bione.initialize(context, fpDbPath) != Bione.RESULT_OK) {
+                scanner.close();
+                scanner.powerOff();
+                callback.onError("Algorithm init failed");
+                return false;
+            }
+            open = true;
+            return true;
+        } catch (Exception e) {
+            callback.onError("Init error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void powerDown() {
+        open = false;
+        try {
+            scanner.close();
+        } catch (Exception ignored) {
+        }
+        try {
+            scanner.powerOff();
+        } catch (Exception ignored) {
+        }
+        try {
+            Bione.exit();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void scheduleIdlePowerDown() {
+        cancelIdlePowerDown();
+        idleTask = idleTimer.schedule(() -> {
+            synchronized (FingerprintSession.this) {
+                if (open && activeUsers == 0) {
+                    Log.d(TAG, "Scanner idle for " + idleTimeoutMs + " ms, powering down");
+                    idlePowerDowns++;
+                    powerDown();
+                }
+            }
+        }, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelIdlePowerDown() {
+        if (idleTask != null) {
+            idleTask.cancel(false);
+            idleTask = null;
+        }
+    }
+}
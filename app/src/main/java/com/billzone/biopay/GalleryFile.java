@@ -0,0 +1,335 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Index record: flags (1 = live), id length, template length, blob offset, crc32; <name>.gen names the pair in use
+public class GalleryFile implements Closeable {
+    private static final String TAG = "GalleryFile";
+    private static final int INDEX_MAGIC = 0x42504749; // "BPGI"
+    private static final int DATA_MAGIC = 0x42504744; // "BPGD"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24;
+    private static final byte FLAG_LIVE = 1;
+
+    private final File directory;
+    private final String name;
+    private final int generation;
+    private final File indexFile;
+    private final File dataFile;
+    private final RandomAccessFile indexRaf;
+    private final RandomAccessFile dataRaf;
+    private final FileChannel indexChannel;
+    private final FileChannel dataChannel;
+    private final MappedByteBuffer indexMap;
+    private final MappedByteBuffer dataMap;
+    private final int mappedRecords;
+    // Slots appended after mapping: reads never touch the channels, which compact() and reset() close under readers
+    private final List<ByteBuffer> appendedRecords = new ArrayList<>();
+    private final List<byte[]> appendedBlobs = new ArrayList<>();
+    private int recordCount;
+    private long dataEnd;
+
+    private GalleryFile(File directory, String name, int generation) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.generation = generation;
+        this.indexFile = pairFile(directory, name, generation, ".idx");
+        this.dataFile = pairFile(directory, name, generation, ".dat");
+        boolean created = !indexFile.exists() || indexFile.length() < HEADER_SIZE;
+        this.indexRaf = new RandomAccessFile(indexFile, "rw");
+        this.dataRaf = new RandomAccessFile(dataFile, "rw");
+        this.indexChannel = indexRaf.getChannel();
+        this.dataChannel = dataRaf.getChannel();
+
+        if (created) {
+            indexChannel.truncate(0);
+            dataChannel.truncate(0);
+            writeHeader(indexChannel, INDEX_MAGIC);
+            writeHeader(dataChannel, DATA_MAGIC);
+        }
+        checkHeader(indexChannel, INDEX_MAGIC);
+        checkHeader(dataChannel, DATA_MAGIC);
+
+        // A torn trailing record from an interrupted append is ignored
+        recordCount = (int) ((indexChannel.size() - HEADER_SIZE) / RECORD_SIZE);
+        mappedRecords = recordCount;
+        dataEnd = dataChannel.size();
+        indexMap = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) recordCount * RECORD_SIZE);
+        dataMap = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataEnd);
+    }
+
+    public static GalleryFile open(File directory, String name) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        int generation = readGeneration(directory, name);
+        removeStrayPairs(directory, name, generation);
+        return new GalleryFile(directory, name, generation);
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public synchronized int recordCount() {
+        return recordCount;
+    }
+
+    public synchronized boolean isLive(int slot) {
+        return record(slot).get(0) == FLAG_LIVE;
+    }
+
+    public String readId(int slot) {
+        ByteBuffer rec = record(slot);
+        byte[] id = readBlob(slot, rec.getLong(8), rec.getShort(2) & 0xFFFF);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    public byte[] readTemplate(int slot) {
+        ByteBuffer rec = record(slot);
+        int idLength = rec.getShort(2) & 0xFFFF;
+        int templateLength = rec.getInt(4);
+        byte[] blob = readBlob(slot, rec.getLong(8), idLength + templateLength);
+
+        CRC32 crc = new CRC32();
+        crc.update(blob, 0, blob.length);
+        if ((int) crc.getValue() != rec.getInt(16)) {
+            throw new IllegalStateException("Gallery record " + slot + " is corrupt");
+        }
+        byte[] template = new byte[templateLength];
+        System.arraycopy(blob, idLength, template, 0, templateLength);
+        return template;
+    }
+
+    public synchronized int append(String id, byte[] template) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("id too long");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(idBytes, 0, idBytes.length);
+        crc.update(template, 0, template.length);
+
+        long offset = dataEnd;
+        ByteBuffer blob = ByteBuffer.allocate(idBytes.length + template.length);
+        blob.put(idBytes).put(template).flip();
+        writeFully(dataChannel, blob, offset);
+        dataChannel.force(false);
+        dataEnd += idBytes.length + template.length;
+
+        ByteBuffer rec = ByteBuffer.allocate(RECORD_SIZE);
+        rec.put(0, FLAG_LIVE);
+        rec.putShort(2, (short) idBytes.length);
+        rec.putInt(4, template.length);
+        rec.putLong(8, offset);
+        rec.putInt(16, (int) crc.getValue());
+        int slot = recordCount;
+        writeFully(indexChannel, rec.duplicate(), HEADER_SIZE + (long) slot * RECORD_SIZE);
+        indexChannel.force(false);
+        appendedRecords.add(rec);
+        appendedBlobs.add(blob.array());
+        recordCount++;
+        return slot;
+    }
+
+    public synchronized void markDeleted(int slot) throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(1);
+        flag.put(0, (byte) 0);
+        writeFully(indexChannel, flag, HEADER_SIZE + (long) slot * RECORD_SIZE);
+        indexChannel.force(false);
+        if (slot >= mappedRecords)
+            appendedRecords.get(slot - mappedRecords).put(0, (byte) 0);
+    }
+
+    public synchronized int countLive() {
+        int live = 0;
+        for (int slot = 0; slot < recordCount; slot++) {
+            if (isLive(slot))
+                live++;
+        }
+        return live;
+    }
+
+    // Rewrites the live records as the next generation and switches to it; on failure this gallery stays open and in use
+    public synchronized GalleryFile compact() throws IOException {
+        int next = generation + 1;
+        File nextIndex = pairFile(directory, name, next, ".idx");
+        File nextData = pairFile(directory, name, next, ".dat");
+        nextIndex.delete();
+        nextData.delete();
+
+        try {
+            GalleryFile compacted = new GalleryFile(directory, name, next);
+            try {
+                for (int slot = 0; slot < recordCount; slot++) {
+                    if (!isLive(slot))
+                        continue;
+                    try {
+                        compacted.append(readId(slot), readTemplate(slot));
+                    } catch (IllegalStateException e) {
+                        // Corrupt records are dropped rather than carried forward
+                    }
+                }
+            } finally {
+                compacted.close();
+            }
+            writeGeneration(directory, name, next);
+        } catch (IOException e) {
+            nextIndex.delete();
+            nextData.delete();
+            throw e;
+        }
+
+        close();
+        if (!indexFile.delete() || !dataFile.delete())
+            Log.e(TAG, "Old gallery generation " + generation + " left behind");
+        return new GalleryFile(directory, name, next);
+    }
+
+    public synchronized GalleryFile reset() throws IOException {
+        close();
+        indexFile.delete();
+        dataFile.delete();
+        return new GalleryFile(directory, name, generation);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        indexChannel.close();
+        dataChannel.close();
+        indexRaf.close();
+        dataRaf.close();
+    }
+
+    private ByteBuffer record(int slot) {
+        if (slot < mappedRecords) {
+            ByteBuffer view = indexMap.duplicate();
+            view.position(HEADER_SIZE + slot * RECORD_SIZE);
+            return view.slice();
+        }
+        synchronized (this) {
+            if (slot >= recordCount)
+                throw new IllegalStateException("No gallery record " + slot);
+            return appendedRecords.get(slot - mappedRecords).duplicate();
+        }
+    }
+
+    private byte[] readBlob(int slot, long offset, int length) {
+        if (slot >= mappedRecords) {
+            synchronized (this) {
+                return appendedBlobs.get(slot - mappedRecords).clone();
+            }
+        }
+        if (offset < HEADER_SIZE || offset + length > dataMap.capacity())
+            throw new IllegalStateException("Gallery record " + slot + " is corrupt");
+        byte[] out = new byte[length];
+        ByteBuffer view = dataMap.duplicate();
+        view.position((int) offset);
+        view.get(out);
+        return out;
+    }
+
+    private static File pairFile(File directory, String name, int generation, String suffix) {
+        return new File(directory, generation == 0 ? name + suffix : name + "." + generation + suffix);
+    }
+
+    private static int readGeneration(File directory, String name) throws IOException {
+        File manifest = new File(directory, name + ".gen");
+        if (!manifest.exists())
+            return 0;
+        byte[] bytes = new byte[(int) Math.min(manifest.length(), 16)];
+        try (FileInputStream in = new FileInputStream(manifest)) {
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0)
+                    break;
+                n += read;
+            }
+            return Integer.parseInt(new String(bytes, 0, n, StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt gallery manifest " + manifest);
+        }
+    }
+
+    private static void writeGeneration(File directory, String name, int generation) throws IOException {
+        File manifest = new File(directory, name + ".gen");
+        File tmp = new File(directory, name + ".gen.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(String.valueOf(generation).getBytes(StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(manifest))
+            throw new IOException("Cannot replace " + manifest);
+        FileSync.syncDirectory(directory);
+    }
+
+    // Pairs of other generations are leftovers of a compaction interrupted before or after the manifest switch
+    private static void removeStrayPairs(File directory, String name, int generation) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        String keepIndex = pairFile(directory, name, generation, ".idx").getName();
+        String keepData = pairFile(directory, name, generation, ".dat").getName();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(name + ".") || fileName.equals(keepIndex) || fileName.equals(keepData))
+                continue;
+            if (fileName.endsWith(".idx") || fileName.endsWith(".dat") || fileName.endsWith(".tmp")) {
+                if (!file.delete())
+                    Log.e(TAG, "Cannot remove stray gallery file " + fileName);
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, magic);
+        header.putShort(4, VERSION);
+        header.putShort(6, (short) RECORD_SIZE);
+        header.putLong(8, System.currentTimeMillis());
+        writeFully(channel, header, 0);
+        channel.force(true);
+    }
+
+    private static void checkHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != magic) {
+            throw new IOException("Not a gallery file");
+        }
+        if (header.getShort(4) != VERSION) {
+            throw new IOException("Unsupported gallery version " + header.getShort(4));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of gallery file");
+            position += n;
+        }
+    }
+}
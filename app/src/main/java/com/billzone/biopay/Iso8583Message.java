@@ -0,0 +1,87 @@
+package com.billzone.biopay;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class Iso8583Message {
+    private String mti;
+    final byte[][] values = new byte[129][];
+
+    public Iso8583Message(String mti) {
+        setMti(mti);
+    }
+
+    public void setMti(String mti) {
+        if (mti == null || mti.length() != 4)
+            throw new IllegalArgumentException("MTI must be 4 digits");
+        for (int i = 0; i < 4; i++) {
+            if (mti.charAt(i) < '0' || mti.charAt(i) > '9')
+                throw new IllegalArgumentException("MTI must be 4 digits");
+        }
+        this.mti = mti;
+    }
+
+    public String getMti() {
+        return mti;
+    }
+
+    public Iso8583Message set(int field, String value) {
+        return set(field, value != null ? value.getBytes(StandardCharsets.US_ASCII) : null);
+    }
+
+    public Iso8583Message set(int field, byte[] value) {
+        if (field < 2 || field > 128 || field == 65)
+            throw new IllegalArgumentException("Field " + field + " cannot be set");
+        values[field] = value;
+        return this;
+    }
+
+    public boolean has(int field) {
+        return field >= 0 && field <= 128 && values[field] != null;
+    }
+
+    public byte[] getBytes(int field) {
+        return values[field];
+    }
+
+    public String getString(int field) {
+        return values[field] != null ? new String(values[field], StandardCharsets.US_ASCII) : null;
+    }
+
+    // Host fields straight from the card data map CardReader delivers
+    public Iso8583Message setCardData(Map<String, String> card) {
+        setIfPresent(2, card.get("pan"));
+        setIfPresent(14, card.get("expiry"));
+        setIfPresent(35, card.get("track2"));
+        setIfPresent(123, card.get("posDataCode"));
+        String psn = card.get("cardSequenceNumber");
+        if (psn != null && !psn.isEmpty())
+            set(23, psn);
+        String pinBlock = card.get("pinBlock");
+        if (pinBlock != null && !pinBlock.isEmpty())
+            set(52, hex(pinBlock));
+        String iccData = card.get("iccData");
+        if (iccData != null && !iccData.isEmpty())
+            set(55, hex(iccData));
+        return this;
+    }
+
+    private void setIfPresent(int field, String value) {
+        if (value != null && !value.isEmpty())
+            set(field, value);
+    }
+
+    static byte[] hex(String s) {
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("Odd hex length");
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(s.charAt(i * 2), 16);
+            int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Bad hex digit");
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+}
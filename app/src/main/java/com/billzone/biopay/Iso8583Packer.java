@@ -0,0 +1,265 @@
+package com.billzone.biopay;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Iso8583Packer {
+    private static final String TAG = "Iso8583Packer";
+    private static final int INITIAL_BUFFER = 2048;
+
+    private final Iso8583Spec spec;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int position;
+
+    private long packCount;
+    private long packNanos;
+    private long unpackCount;
+    private long unpackNanos;
+    private int largestMessage;
+
+    public Iso8583Packer(Iso8583Spec spec) {
+        this.spec = spec;
+    }
+
+    public Iso8583Spec getSpec() {
+        return spec;
+    }
+
+    public synchronized byte[] pack(Iso8583Message message) {
+        long start = System.nanoTime();
+        position = spec.lengthHeader;
+        writeAscii(message.getMti());
+
+        boolean secondary = false;
+        for (int field = 66; field <= 128; field++) {
+            if (message.values[field] != null) {
+                secondary = true;
+                break;
+            }
+        }
+        byte[] bitmap = new byte[secondary ? 16 : 8];
+        if (secondary)
+            bitmap[0] = (byte) 0x80;
+        for (int field = 2; field <= 128; field++) {
+            if (message.values[field] == null)
+                continue;
+            if (!spec.defines(field))
+                throw new IllegalArgumentException("Field " + field + " is not in spec " + spec.name);
+            bitmap[(field - 1) / 8] |= (byte) (0x80 >>> ((field - 1) % 8));
+        }
+        writeBitmap(bitmap);
+
+        for (int field = 2; field <= 128; field++) {
+            if (message.values[field] != null)
+                writeField(field, message.values[field]);
+        }
+
+        int bodyLength = position - spec.lengthHeader;
+        if (spec.lengthHeader > 0 && bodyLength >= 1L << (8 * spec.lengthHeader))
+            throw new IllegalArgumentException("Message of " + bodyLength + " bytes does not fit the length header");
+        for (int i = 0; i < spec.lengthHeader; i++) {
+            buffer[i] = (byte) (bodyLength >>> (8 * (spec.lengthHeader - 1 - i)));
+        }
+
+        byte[] packed = Arrays.copyOf(buffer, position);
+        packCount++;
+        packNanos += System.nanoTime() - start;
+        largestMessage = Math.max(largestMessage, packed.length);
+        return packed;
+    }
+
+    public synchronized Iso8583Message unpack(byte[] data) {
+        if (data == null)
+            throw new IllegalArgumentException("No message data");
+        long start = System.nanoTime();
+        Reader in = new Reader(data);
+        if (spec.lengthHeader > 0) {
+            int declared = 0;
+            for (int i = 0; i < spec.lengthHeader; i++) {
+                declared = (declared << 8) | in.next();
+            }
+            if (declared != data.length - spec.lengthHeader)
+                throw new IllegalArgumentException("Length header says " + declared + " bytes, got "
+                        + (data.length - spec.lengthHeader));
+        }
+        Iso8583Message message = new Iso8583Message(new String(in.take(4), StandardCharsets.US_ASCII));
+
+        byte[] bitmap = readBitmap(in, 8);
+        if ((bitmap[0] & 0x80) != 0) {
+            byte[] secondary = readBitmap(in, 8);
+            bitmap = Arrays.copyOf(bitmap, 16);
+            System.arraycopy(secondary, 0, bitmap, 8, 8);
+        }
+        for (int field = 2; field <= bitmap.length * 8; field++) {
+            if ((bitmap[(field - 1) / 8] & (0x80 >>> ((field - 1) % 8))) == 0)
+                continue;
+            if (!spec.defines(field))
+                throw new IllegalArgumentException("Field " + field + " is not in spec " + spec.name);
+            message.values[field] = readField(in, field);
+        }
+        if (in.remaining() != 0)
+            throw new IllegalArgumentException(in.remaining() + " trailing bytes after last field");
+
+        unpackCount++;
+        unpackNanos += System.nanoTime() - start;
+        return message;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("spec", spec.name);
+        stats.put("specVersion", spec.version);
+        stats.put("packCount", packCount);
+        stats.put("avgPackUs", packCount > 0 ? packNanos / packCount / 1000.0 : 0.0);
+        stats.put("unpackCount", unpackCount);
+        stats.put("avgUnpackUs", unpackCount > 0 ? unpackNanos / unpackCount / 1000.0 : 0.0);
+        stats.put("largestMessage", largestMessage);
+        stats.put("bufferSize", buffer.length);
+        return stats;
+    }
+
+    private void writeField(int field, byte[] value) {
+        int type = spec.type[field];
+        int max = spec.maxLength[field];
+        int prefix = spec.prefix[field];
+        if (type != Iso8583Spec.B)
+            checkCharacters(field, type, value);
+
+        if (prefix == 0) {
+            if (value.length > max || (type == Iso8583Spec.B && value.length != max))
+                throw new IllegalArgumentException("Field " + field + " must be " + max + " long, got " + value.length);
+            if (type == Iso8583Spec.N) {
+                ensure(max);
+                Arrays.fill(buffer, position, position + max - value.length, (byte) '0');
+                position += max - value.length;
+                writeBytes(value);
+            } else {
+                writeBytes(value);
+                ensure(max - value.length);
+                Arrays.fill(buffer, position, position + max - value.length, (byte) ' ');
+                position += max - value.length;
+            }
+            return;
+        }
+
+        if (value.length > max)
+            throw new IllegalArgumentException("Field " + field + " is limited to " + max + ", got " + value.length);
+        ensure(prefix);
+        int length = value.length;
+        for (int i = prefix - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + length % 10);
+            length /= 10;
+        }
+        position += prefix;
+        writeBytes(value);
+    }
+
+    private byte[] readField(Reader in, int field) {
+        int max = spec.maxLength[field];
+        int prefix = spec.prefix[field];
+        int length = max;
+        if (prefix != 0) {
+            length = 0;
+            for (int i = 0; i < prefix; i++) {
+                int c = in.next();
+                if (c < '0' || c > '9')
+                    throw new IllegalArgumentException("Field " + field + ": bad length prefix");
+                length = length * 10 + (c - '0');
+            }
+            if (length > max)
+                throw new IllegalArgumentException("Field " + field + " is limited to " + max + ", got " + length);
+        }
+        byte[] value = in.take(length);
+        if (spec.type[field] != Iso8583Spec.B)
+            checkCharacters(field, spec.type[field], value);
+        return value;
+    }
+
+    private void writeBitmap(byte[] bitmap) {
+        if (spec.binaryBitmap) {
+            writeBytes(bitmap);
+            return;
+        }
+        ensure(bitmap.length * 2);
+        for (byte b : bitmap) {
+            buffer[position++] = (byte) Character.toUpperCase(Character.forDigit((b >> 4) & 0x0F, 16));
+            buffer[position++] = (byte) Character.toUpperCase(Character.forDigit(b & 0x0F, 16));
+        }
+    }
+
+    private byte[] readBitmap(Reader in, int bytes) {
+        if (spec.binaryBitmap)
+            return in.take(bytes);
+        return Iso8583Message.hex(new String(in.take(bytes * 2), StandardCharsets.US_ASCII));
+    }
+
+    private static void checkCharacters(int field, int type, byte[] value) {
+        for (byte b : value) {
+            int c = b & 0xFF;
+            boolean ok;
+            switch (type) {
+                case Iso8583Spec.N:
+                    ok = c >= '0' && c <= '9';
+                    break;
+                case Iso8583Spec.Z:
+                    ok = (c >= '0' && c <= '9') || c == '=' || c == 'D' || c == 'd' || c == 'F' || c == 'f';
+                    break;
+                case Iso8583Spec.AN:
+                    ok = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == ' ';
+                    break;
+                default:
+                    ok = c >= 0x20 && c < 0x7F;
+                    break;
+            }
+            if (!ok)
+                throw new IllegalArgumentException("Field " + field + ": invalid character 0x" + Integer.toHexString(c));
+        }
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeBytes(byte[] value) {
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, position, value.length);
+        position += value.length;
+    }
+
+    private void ensure(int extra) {
+        if (position + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int offset;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int next() {
+            if (offset >= data.length)
+                throw new IllegalArgumentException("Message truncated at byte " + offset);
+            return data[offset++] & 0xFF;
+        }
+
+        byte[] take(int n) {
+            if (offset + n > data.length)
+                throw new IllegalArgumentException("Message truncated at byte " + offset);
+            byte[] out = Arrays.copyOfRange(data, offset, offset + n);
+            offset += n;
+            return out;
+        }
+
+        int remaining() {
+            return data.length - offset;
+        }
+    }
+}
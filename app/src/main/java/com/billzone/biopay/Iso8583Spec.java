@@ -0,0 +1,104 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+// Lengths count characters, except for binary fields where they count bytes
+public class Iso8583Spec {
+    private static final String SPEC_NAME = "iso8583_spec.json";
+
+    static final int N = 1;
+    static final int AN = 2;
+    static final int ANS = 3;
+    static final int Z = 4;
+    static final int B = 5;
+
+    final String name;
+    final int version;
+    final int lengthHeader;
+    final boolean binaryBitmap;
+    final int[] type = new int[129];
+    final int[] maxLength = new int[129];
+    // 0 for fixed length, otherwise the number of ASCII length digits (LLVAR = 2, LLLVAR = 3)
+    final int[] prefix = new int[129];
+
+    private Iso8583Spec(JSONObject spec) throws JSONException {
+        name = spec.optString("name", "iso8583");
+        version = spec.getInt("version");
+        lengthHeader = spec.optInt("lengthHeader", 2);
+        if (lengthHeader < 0 || lengthHeader > 4)
+            throw new JSONException("lengthHeader must be 0 to 4 bytes");
+        binaryBitmap = !"hex".equals(spec.optString("bitmap", "binary"));
+
+        JSONObject fields = spec.getJSONObject("fields");
+        Iterator<String> keys = fields.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            int field = Integer.parseInt(key);
+            if (field < 2 || field > 128 || field == 65)
+                throw new JSONException("Field " + key + " cannot be defined");
+            JSONObject f = fields.getJSONObject(key);
+            type[field] = typeOf(f.getString("type"), field);
+            maxLength[field] = f.getInt("length");
+            prefix[field] = f.optInt("prefix", 0);
+            if (prefix[field] != 0 && prefix[field] != 2 && prefix[field] != 3)
+                throw new JSONException("Field " + field + ": prefix must be 2 or 3");
+            int limit = prefix[field] == 2 ? 99 : 999;
+            if (maxLength[field] < 1 || maxLength[field] > limit)
+                throw new JSONException("Field " + field + ": bad length " + maxLength[field]);
+        }
+    }
+
+    public static Iso8583Spec load(Context context) throws IOException, JSONException {
+        try (InputStream in = context.getAssets().open(SPEC_NAME)) {
+            return compile(new JSONObject(readAll(in)));
+        }
+    }
+
+    public static Iso8583Spec compile(JSONObject spec) throws JSONException {
+        return new Iso8583Spec(spec);
+    }
+
+    public boolean defines(int field) {
+        return field >= 2 && field <= 128 && type[field] != 0;
+    }
+
+    public boolean isBinary(int field) {
+        return defines(field) && type[field] == B;
+    }
+
+    private static int typeOf(String name, int field) throws JSONException {
+        switch (name) {
+            case "n":
+                return N;
+            case "an":
+                return AN;
+            case "ans":
+                return ANS;
+            case "z":
+                return Z;
+            case "b":
+                return B;
+            default:
+                throw new JSONException("Field " + field + ": unknown type " + name);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,76 @@
+package com.billzone.biopay;
+
+public class IsoTemplate {
+    private static final int ISO_HEADER_LENGTH = 24;
+    private static final int ANSI_HEADER_LENGTH = 26;
+    private static final int MINUTIA_LENGTH = 6;
+
+    public final int width;
+    public final int height;
+    public final int count;
+    public final int[] x;
+    public final int[] y;
+    // Minutia direction in ISO units of 360/256 degrees
+    public final int[] angle;
+
+    private IsoTemplate(int width, int height, int count, int[] x, int[] y, int[] angle) {
+        this.width = width;
+        this.height = height;
+        this.count = count;
+        this.x = x;
+        this.y = y;
+        this.angle = angle;
+    }
+
+    public static IsoTemplate parse(byte[] data) {
+        if (data == null || data.length < ISO_HEADER_LENGTH + 4
+                || data[0] != 'F' || data[1] != 'M' || data[2] != 'R' || data[3] != 0) {
+            throw new IllegalArgumentException("Not an ISO/ANSI minutiae record");
+        }
+
+        boolean iso = readInt(data, 8) == data.length;
+        int offset;
+        int width;
+        int height;
+        if (iso) {
+            width = readShort(data, 14);
+            height = readShort(data, 16);
+            offset = ISO_HEADER_LENGTH;
+        } else {
+            int headerLength = readShort(data, 8) == 0 ? ANSI_HEADER_LENGTH + 4 : ANSI_HEADER_LENGTH;
+            width = readShort(data, headerLength - 10);
+            height = readShort(data, headerLength - 8);
+            offset = headerLength;
+        }
+
+        if (data.length < offset + 4) {
+            throw new IllegalArgumentException("Truncated finger view");
+        }
+        int count = data[offset + 3] & 0xFF;
+        offset += 4;
+        if (data.length < offset + count * MINUTIA_LENGTH) {
+            throw new IllegalArgumentException("Truncated minutiae block");
+        }
+
+        int[] x = new int[count];
+        int[] y = new int[count];
+        int[] angle = new int[count];
+        for (int i = 0; i < count; i++, offset += MINUTIA_LENGTH) {
+            x[i] = readShort(data, offset) & 0x3FFF;
+            y[i] = readShort(data, offset + 2) & 0x3FFF;
+            int raw = data[offset + 4] & 0xFF;
+            // ANSI 378 stores direction in 2 degree units
+            angle[i] = iso ? raw : (raw * 2 * 256 / 360) & 0xFF;
+        }
+        return new IsoTemplate(width, height, count, x, y, angle);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,310 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 400/413/422 dead-letter the refused record, other 4xx park until retryNow(), anything else backs off
+public class JournalForwarder {
+    private static final String TAG = "JournalForwarder";
+    private static final long COALESCE_MS = 500;
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final int MAX_BATCH_RECORDS = 200;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    public interface Uploader {
+        // Returns normally only when the host has stored every record in the batch; throws RejectedException when
+        // sending the same batch again cannot succeed, and any other IOException when it might
+        void upload(List<TransactionJournal.Record> batch) throws IOException;
+    }
+
+    public static class RejectedException extends IOException {
+        public final int status;
+
+        public RejectedException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        // The content is at fault rather than the terminal's credentials or endpoint
+        public boolean blamesRecords() {
+            return status == 400 || status == 413 || status == 422;
+        }
+    }
+
+    public static class HttpUploader implements Uploader {
+        private final String endpoint;
+        private final String terminalId;
+
+        public HttpUploader(String endpoint, String terminalId) {
+            if (endpoint == null || !endpoint.regionMatches(true, 0, "https://", 0, 8))
+                throw new IllegalArgumentException("Journal endpoint must use https");
+            this.endpoint = endpoint;
+            this.terminalId = terminalId;
+        }
+
+        @Override
+        public void upload(List<TransactionJournal.Record> batch) throws IOException {
+            // Payloads are already JSON objects, so the body is assembled around them rather than re-parsed
+            StringBuilder body = new StringBuilder(256 * batch.size());
+            body.append("{\"terminalId\":").append(org.json.JSONObject.quote(terminalId)).append(",\"records\":[");
+            for (int i = 0; i < batch.size(); i++) {
+                TransactionJournal.Record record = batch.get(i);
+                if (i > 0)
+                    body.append(',');
+                body.append("{\"seq\":").append(record.seq)
+                        .append(",\"timestamp\":").append(record.timestamp)
+                        .append(",\"data\":").append(record.payload).append('}');
+            }
+            body.append("]}");
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+            try {
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(15000);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(bytes.length);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Idempotency-Key", terminalId + "-" + batch.get(0).seq + "-"
+                        + batch.get(batch.size() - 1).seq);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(bytes);
+                }
+                int code = connection.getResponseCode();
+                InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null)
+                    in.close();
+                // 408 and 429 ask for a retry; every other 4xx will be answered the same way next time
+                if (code >= 400 && code < 500 && code != 408 && code != 429)
+                    throw new RejectedException(code, "Host rejected the batch with HTTP " + code);
+                if (code < 200 || code >= 300)
+                    throw new IOException("Host answered HTTP " + code);
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private final TransactionJournal journal;
+    private final ScheduledExecutorService worker;
+    private final Random jitter = new Random();
+    private volatile Uploader uploader;
+    private ScheduledFuture<?> scheduled;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private boolean running = false;
+    private boolean rerun = false;
+    private boolean parked = false;
+    private int attempt = 0;
+    private int batchLimit = MAX_BATCH_RECORDS;
+
+    private long batches = 0;
+    private long recordsForwarded = 0;
+    private long failures = 0;
+    private long rejected = 0;
+    private long lastBatchMs = 0;
+    private long nextRetryAt = 0;
+    private String lastError;
+
+    public JournalForwarder(TransactionJournal journal) {
+        this.journal = journal;
+        this.worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-forwarder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setUploader(Uploader uploader) {
+        this.uploader = uploader;
+        retryNow();
+    }
+
+    // New records: upload after the coalescing delay unless a run or a backoff is already scheduled
+    public synchronized void kick() {
+        if (uploader == null || parked)
+            return;
+        if (running) {
+            rerun = true;
+            return;
+        }
+        if (scheduled != null && !scheduled.isDone())
+            return;
+        scheduled = worker.schedule(this::drain, COALESCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Skips any backoff, e.g. when connectivity returns or Flutter asks for a flush
+    public synchronized void retryNow() {
+        if (uploader == null)
+            return;
+        attempt = 0;
+        parked = false;
+        if (running) {
+            rerun = true;
+            return;
+        }
+        if (scheduled != null && !scheduled.isDone())
+            scheduled.cancel(false);
+        scheduled = worker.schedule(this::drain, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public void watchConnectivity(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null)
+            return;
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                Log.d(TAG, "Network available, retrying upload");
+                retryNow();
+            }
+        };
+        try {
+            cm.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), networkCallback);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot watch connectivity", e);
+            networkCallback = null;
+        }
+    }
+
+    public void shutdown(Context context) {
+        if (networkCallback != null) {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm != null)
+                cm.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        worker.shutdownNow();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("configured", uploader != null);
+        stats.put("batches", batches);
+        stats.put("recordsForwarded", recordsForwarded);
+        stats.put("failures", failures);
+        stats.put("rejected", rejected);
+        stats.put("parked", parked);
+        stats.put("batchLimit", batchLimit);
+        stats.put("attempt", attempt);
+        stats.put("lastBatchMs", lastBatchMs);
+        stats.put("nextRetryInMs", nextRetryAt > 0 ? Math.max(0, nextRetryAt - System.currentTimeMillis()) : 0);
+        stats.put("lastError", lastError);
+        return stats;
+    }
+
+    // BASE doubled per failed attempt up to MAX, then jittered to between half and all of that
+    static long backoffDelay(int attempt, double random) {
+        long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        return delay / 2 + (long) (random * delay / 2);
+    }
+
+    private void drain() {
+        Uploader current = uploader;
+        synchronized (this) {
+            running = true;
+            rerun = false;
+        }
+        if (current == null) {
+            synchronized (this) {
+                running = false;
+            }
+            return;
+        }
+        try {
+            List<TransactionJournal.Record> batch;
+            while (!(batch = journal.readPending(currentBatchLimit(), MAX_BATCH_BYTES)).isEmpty()) {
+                long start = System.currentTimeMillis();
+                try {
+                    current.upload(batch);
+                } catch (RejectedException e) {
+                    if (!e.blamesRecords()) {
+                        park(e);
+                        return;
+                    }
+                    isolate(batch, e);
+                    continue;
+                }
+                journal.acknowledge(batch.get(batch.size() - 1).seq);
+                synchronized (this) {
+                    batches++;
+                    recordsForwarded += batch.size();
+                    lastBatchMs = System.currentTimeMillis() - start;
+                    attempt = 0;
+                    nextRetryAt = 0;
+                }
+                if (Thread.currentThread().isInterrupted())
+                    break;
+            }
+            synchronized (this) {
+                running = false;
+                // Records appended while the last batch was going up
+                if (rerun)
+                    scheduled = worker.schedule(this::drain, COALESCE_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Upload failed: " + e.getMessage());
+            synchronized (this) {
+                running = false;
+                failures++;
+                lastError = e.getMessage();
+                long delay = backoffDelay(attempt, jitter.nextDouble());
+                attempt++;
+                nextRetryAt = System.currentTimeMillis() + delay;
+                scheduled = worker.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private synchronized int currentBatchLimit() {
+        return batchLimit;
+    }
+
+    // Halves the batch until the refused record goes alone, then sets it aside so the records behind it can move
+    private void isolate(List<TransactionJournal.Record> batch, RejectedException e) throws IOException {
+        if (batch.size() > 1) {
+            synchronized (this) {
+                batchLimit = Math.max(1, batch.size() / 2);
+            }
+            return;
+        }
+        TransactionJournal.Record record = batch.get(0);
+        journal.deadLetter(record);
+        journal.acknowledge(record.seq);
+        synchronized (this) {
+            rejected++;
+            batchLimit = MAX_BATCH_RECORDS;
+            lastError = "Record " + record.seq + ": " + e.getMessage();
+        }
+    }
+
+    private synchronized void park(RejectedException e) {
+        Log.e(TAG, "Uploads parked: " + e.getMessage());
+        running = false;
+        parked = true;
+        failures++;
+        lastError = e.getMessage();
+        nextRetryAt = 0;
+    }
+}
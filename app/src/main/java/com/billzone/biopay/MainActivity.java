@@ -12,12 +12,18 @@ public class MainActivity extends FlutterActivity {
     private static final String NFCCHANNEL = "com.example.biopay/nfcMethodChannel";
     private static final String PRINTCHANNEL = "com.example.biopay/printMethodChannel";
     private static final String CARDCHANNEL = "com.example.biopay/cardMethodChannel";
+    private static final String ISOCHANNEL = "com.example.biopay/isoMethodChannel";
+    private static final String JOURNALCHANNEL = "com.example.biopay/journalMethodChannel";
+    private static final String JOURNAL_PREFS = "journal";
     private static final int PIN_PAD_REQUEST_CODE = 1001;
 
     private FingerprintReader fingerprintReader;
     private NfcReader nfcReader;
     private ReceiptPrinter receiptPrinter;
     private CardReader cardReader;
+    private Iso8583Packer isoPacker;
+    private TransactionJournal journal;
+    private JournalForwarder journalForwarder;
 
     @Override
     public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
@@ -27,11 +33,36 @@ public class MainActivity extends FlutterActivity {
         nfcReader = new NfcReader(this);
         receiptPrinter = new ReceiptPrinter(this);
         cardReader = new CardReader(this);
+        try {
+            isoPacker = new Iso8583Packer(Iso8583Spec.load(this));
+        } catch (Exception e) {
+            android.util.Log.e("MainActivity", "ISO 8583 spec failed to load", e);
+        }
+        try {
+            journal = new TransactionJournal(new java.io.File(getFilesDir(), "journal"),
+                    TransactionJournal.SyncPolicy.EVERY_RECORD, 1);
+            journalForwarder = new JournalForwarder(journal);
+            journalForwarder.watchConnectivity(this);
+            String endpoint = getSharedPreferences(JOURNAL_PREFS, MODE_PRIVATE).getString("endpoint", null);
+            if (endpoint != null) {
+                try {
+                    journalForwarder.setUploader(new JournalForwarder.HttpUploader(endpoint, cardReader.getSerialNumber()));
+                } catch (IllegalArgumentException e) {
+                    // Saved before https was enforced; Flutter has to set it again
+                    android.util.Log.e("MainActivity", e.getMessage());
+                    getSharedPreferences(JOURNAL_PREFS, MODE_PRIVATE).edit().remove("endpoint").apply();
+                }
+            }
+        } catch (java.io.IOException e) {
+            android.util.Log.e("MainActivity", "Transaction journal failed to open", e);
+        }
 
         setupFingerprintChannel(flutterEngine);
         setupNfcChannel(flutterEngine);
         setupPrintChannel(flutterEngine);
         setupCardChannel(flutterEngine);
+        setupIsoChannel(flutterEngine);
+        setupJournalChannel(flutterEngine);
     }
 
     private void setupFingerprintChannel(FlutterEngine flutterEngine) {
@@ -95,6 +126,253 @@ public class MainActivity extends FlutterActivity {
                             });
                             break;
 
+                        case "verifyAgainstMany":
+                            java.util.List<String> candidateScans = call.argument("candidates");
+                            Number matchThreshold = call.argument("threshold");
+                            boolean earlyExit = Boolean.TRUE.equals(call.argument("earlyExit"));
+                            fingerprintReader.verifyAgainstMany(candidateScans,
+                                    matchThreshold != null ? matchThreshold.doubleValue() : FingerprintIdentifier.DEFAULT_THRESHOLD,
+                                    earlyExit,
+                                    new FingerprintReader.MultiVerifyCallback() {
+                                        @Override
+                                        public void onSuccess(FingerprintIdentifier.ScoreResult scored, double threshold) {
+                                            java.util.List<java.util.Map<String, Object>> ranked = new java.util.ArrayList<>();
+                                            for (int i = 0; i < scored.scores.length; i++) {
+                                                if (Double.isNaN(scored.scores[i]))
+                                                    continue;
+                                                java.util.Map<String, Object> entry = new java.util.HashMap<>();
+                                                entry.put("index", i);
+                                                entry.put("score", scored.scores[i]);
+                                                entry.put("match", scored.scores[i] >= threshold);
+                                                ranked.add(entry);
+                                            }
+                                            java.util.Collections.sort(ranked, (a, b) ->
+                                                    Double.compare((Double) b.get("score"), (Double) a.get("score")));
+
+                                            java.util.Map<String, Object> response = new java.util.HashMap<>();
+                                            response.put("scores", ranked);
+                                            response.put("bestIndex", scored.bestIndex);
+                                            response.put("bestScore", scored.bestIndex >= 0 ? scored.scores[scored.bestIndex] : 0.0);
+                                            response.put("match", scored.bestIndex >= 0 && scored.scores[scored.bestIndex] >= threshold);
+                                            response.put("earlyExit", scored.earlyExit);
+                                            // Scores are on the SourceAFIS scale, not Bione's; see FingerprintIdentifier
+                                            response.put("matcher", FingerprintIdentifier.MATCHER);
+                                            response.put("threshold", threshold);
+                                            result.success(response);
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("FAILED", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "beginCapture":
+                            fingerprintReader.beginCapture(new FingerprintReader.FingerprintCallback() {
+                                @Override
+                                public void onSuccess(String data) {
+                                    result.success(data);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "matchCapture":
+                            String handle = call.argument("handle");
+                            String storedScan = call.argument("existingScan");
+                            fingerprintReader.matchCapture(handle, storedScan, new FingerprintReader.VerifyCallback() {
+                                @Override
+                                public void onSuccess(boolean match) {
+                                    result.success(match);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "enrollTemplate":
+                            String templateId = call.argument("id");
+                            String template = call.argument("template");
+                            fingerprintReader.enrollTemplate(templateId, template, new FingerprintReader.FingerprintCallback() {
+                                @Override
+                                public void onSuccess(String data) {
+                                    result.success(true);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "removeTemplate":
+                            fingerprintReader.removeTemplate(call.argument("id"), new FingerprintReader.FingerprintCallback() {
+                                @Override
+                                public void onSuccess(String data) {
+                                    result.success(Boolean.parseBoolean(data));
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "clearGallery":
+                            fingerprintReader.clearGallery(new FingerprintReader.FingerprintCallback() {
+                                @Override
+                                public void onSuccess(String data) {
+                                    result.success(true);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "compactGallery":
+                            fingerprintReader.compactGallery(new FingerprintReader.FingerprintCallback() {
+                                @Override
+                                public void onSuccess(String data) {
+                                    result.success(Integer.parseInt(data));
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("FAILED", error, null);
+                                }
+                            });
+                            break;
+
+                        case "getGallerySize":
+                            result.success(fingerprintReader.getGallerySize());
+                            break;
+
+                        case "identifyFingerprint":
+                            Number topK = call.argument("topK");
+                            Number threshold = call.argument("threshold");
+                            fingerprintReader.identifyFingerprint(
+                                    topK != null ? topK.intValue() : 5,
+                                    threshold != null ? threshold.doubleValue() : FingerprintIdentifier.DEFAULT_THRESHOLD,
+                                    new FingerprintReader.IdentifyCallback() {
+                                        @Override
+                                        public void onSuccess(java.util.List<FingerprintIdentifier.Candidate> candidates) {
+                                            java.util.List<java.util.Map<String, Object>> ranked = new java.util.ArrayList<>();
+                                            for (FingerprintIdentifier.Candidate candidate : candidates) {
+                                                java.util.Map<String, Object> entry = new java.util.HashMap<>();
+                                                entry.put("id", candidate.id);
+                                                entry.put("score", candidate.score);
+                                                ranked.add(entry);
+                                            }
+                                            result.success(ranked);
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("FAILED", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "startDeduplication":
+                            Number dedupThreshold = call.argument("threshold");
+                            fingerprintReader.startDeduplication(
+                                    dedupThreshold != null ? dedupThreshold.doubleValue() : FingerprintIdentifier.DEFAULT_THRESHOLD,
+                                    new FingerprintReader.FingerprintCallback() {
+                                        @Override
+                                        public void onSuccess(String data) {
+                                            result.success(true);
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("FAILED", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "getDeduplicationStatus":
+                            Number sincePair = call.argument("since");
+                            result.success(fingerprintReader.getDeduplicationStatus(sincePair != null ? sincePair.intValue() : 0));
+                            break;
+
+                        case "cancelDeduplication":
+                            fingerprintReader.cancelDeduplication();
+                            result.success(true);
+                            break;
+
+                        case "setIndexTuning":
+                            Boolean indexEnabled = call.argument("enabled");
+                            Number maxCandidates = call.argument("maxCandidates");
+                            Number minVotes = call.argument("minVotes");
+                            fingerprintReader.setIndexTuning(
+                                    !Boolean.FALSE.equals(indexEnabled),
+                                    maxCandidates != null ? maxCandidates.intValue() : FingerprintIndex.DEFAULT_MAX_CANDIDATES,
+                                    minVotes != null ? minVotes.intValue() : FingerprintIndex.DEFAULT_MIN_VOTES);
+                            result.success(true);
+                            break;
+
+                        case "getIndexReport":
+                            result.success(fingerprintReader.getIndexReport());
+                            break;
+
+                        case "getTemplateCacheStats":
+                            result.success(fingerprintReader.getTemplateCacheStats());
+                            break;
+
+                        case "configureCapture":
+                            Number targetQuality = call.argument("targetQuality");
+                            Number floorQuality = call.argument("floorQuality");
+                            Number deadlineMs = call.argument("deadlineMs");
+                            fingerprintReader.configureCapture(
+                                    targetQuality != null ? targetQuality.intValue() : CaptureStrategy.DEFAULT_TARGET_QUALITY,
+                                    floorQuality != null ? floorQuality.intValue() : CaptureStrategy.DEFAULT_FLOOR_QUALITY,
+                                    deadlineMs != null ? deadlineMs.longValue() : CaptureStrategy.DEFAULT_DEADLINE_MS);
+                            Number handleTtlMs = call.argument("handleTtlMs");
+                            if (handleTtlMs != null) {
+                                fingerprintReader.setCaptureHandleTtlMs(handleTtlMs.longValue());
+                            }
+                            result.success(true);
+                            break;
+
+                        case "getCaptureStats":
+                            result.success(fingerprintReader.getCaptureStats());
+                            break;
+
+                        case "cancelPending":
+                            result.success(fingerprintReader.cancelPending());
+                            break;
+
+                        case "getSchedulerStats":
+                            result.success(DeviceScheduler.getInstance().getStats());
+                            break;
+
+                        case "getScannerStats":
+                            result.success(fingerprintReader.getScannerStats());
+                            break;
+
+                        case "setScannerIdleTimeout":
+                            Number idleTimeoutMs = call.argument("timeoutMs");
+                            if (idleTimeoutMs == null) {
+                                result.error("FAILED", "timeoutMs is required", null);
+                                break;
+                            }
+                            fingerprintReader.setIdleTimeoutMs(idleTimeoutMs.longValue());
+                            result.success(true);
+                            break;
+
                         default:
                             result.notImplemented();
                             break;
@@ -150,6 +428,35 @@ public class MainActivity extends FlutterActivity {
                                         result.error("FAILED", error, null);
                                     }
                                 });
+                    } else if (call.method.equals("printTemplate")) {
+                        String template = call.argument("template");
+                        java.util.Map<String, Object> values = call.argument("values");
+                        receiptPrinter.printTemplate(template, values != null ? values : new java.util.HashMap<>(),
+                                new ReceiptPrinter.PrintCallback() {
+                                    @Override
+                                    public void onSuccess() {
+                                        result.success(true);
+                                    }
+
+                                    @Override
+                                    public void onError(String error) {
+                                        result.error("FAILED", error, null);
+                                    }
+                                });
+                    } else if (call.method.equals("reloadReceiptTemplates")) {
+                        receiptPrinter.reloadTemplates(new ReceiptPrinter.PrintCallback() {
+                            @Override
+                            public void onSuccess() {
+                                result.success(receiptPrinter.getTemplateStats());
+                            }
+
+                            @Override
+                            public void onError(String error) {
+                                result.error("FAILED", error, null);
+                            }
+                        });
+                    } else if (call.method.equals("getReceiptTemplateStats")) {
+                        result.success(receiptPrinter.getTemplateStats());
                     } else {
                         result.notImplemented();
                     }
@@ -188,11 +495,321 @@ public class MainActivity extends FlutterActivity {
                             });
                             break;
 
+                        case "armCardReader":
+                            Number armTimeout = call.argument("timeoutMs");
+                            cardReader.armCardReader(armTimeout != null ? armTimeout.longValue() : 60_000,
+                                    new CardReader.StatusCallback() {
+                                        @Override
+                                        public void onSuccess() {
+                                            result.success(true);
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("CARD_ERROR", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "commitAmount":
+                            String committedAmount = call.argument("amount");
+                            cardReader.commitAmount(committedAmount, new CardReader.CardDataCallback() {
+                                @Override
+                                public void onCardData(java.util.Map<String, String> data) {
+                                    result.success(data);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("CARD_ERROR", error, null);
+                                }
+
+                                @Override
+                                public void onEvent(String event) {
+                                    android.util.Log.d("MainActivity", "onEvent: " + event);
+                                }
+                            });
+                            break;
+
                         case "cancelRead":
                             cardReader.cancelRead();
                             result.success(true);
                             break;
 
+                        case "reloadEmvConfig":
+                            cardReader.reloadEmvConfig(new CardReader.StatusCallback() {
+                                @Override
+                                public void onSuccess() {
+                                    result.success(cardReader.getEmvConfigStats());
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("CARD_ERROR", error, null);
+                                }
+                            });
+                            break;
+
+                        case "getReaderState":
+                            result.success(cardReader.getReaderStats());
+                            break;
+
+                        case "getTransactionTimelines":
+                            result.success(cardReader.getTimelineExport());
+                            break;
+
+                        case "getPinPadStats":
+                            result.success(cardReader.getPinPadStats());
+                            break;
+
+                        case "getApduStats":
+                            result.success(cardReader.getApduSummary());
+                            break;
+
+                        case "resetApduStats":
+                            cardReader.resetApduStats();
+                            result.success(true);
+                            break;
+
+                        case "reloadBinTable":
+                            cardReader.reloadBinTable(new CardReader.StatusCallback() {
+                                @Override
+                                public void onSuccess() {
+                                    result.success(cardReader.getBinTableStats());
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("CARD_ERROR", error, null);
+                                }
+                            });
+                            break;
+
+                        case "getBinTableStats":
+                            result.success(cardReader.getBinTableStats());
+                            break;
+
+                        case "reloadCapks":
+                            cardReader.reloadCapks(new CardReader.StatusCallback() {
+                                @Override
+                                public void onSuccess() {
+                                    result.success(cardReader.getCapkStats());
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("CARD_ERROR", error, null);
+                                }
+                            });
+                            break;
+
+                        case "getCapkStats":
+                            result.success(cardReader.getCapkStats());
+                            break;
+
+                        case "benchmarkCapkLoad":
+                            Number maxKeys = call.argument("maxKeys");
+                            cardReader.benchmarkCapkLoad(maxKeys != null ? maxKeys.intValue() : 64,
+                                    new CardReader.StatusCallback() {
+                                        @Override
+                                        public void onSuccess() {
+                                            result.success(cardReader.getEmvConfigStats());
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("CARD_ERROR", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "loadDukptKey":
+                            cardReader.loadDukptKey(call.argument("ipek"), call.argument("ksn"),
+                                    new CardReader.StatusCallback() {
+                                        @Override
+                                        public void onSuccess() {
+                                            result.success(cardReader.getDukptStats());
+                                        }
+
+                                        @Override
+                                        public void onError(String error) {
+                                            result.error("CARD_ERROR", error, null);
+                                        }
+                                    });
+                            break;
+
+                        case "getDukptStats":
+                            result.success(cardReader.getDukptStats());
+                            break;
+
+                        case "getEmvConfigStats":
+                            result.success(cardReader.getEmvConfigStats());
+                            break;
+
+                        default:
+                            result.notImplemented();
+                            break;
+                    }
+                });
+    }
+
+    private void setupIsoChannel(FlutterEngine flutterEngine) {
+        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), ISOCHANNEL)
+                .setMethodCallHandler((call, result) -> {
+                    if (isoPacker == null) {
+                        result.error("ISO_ERROR", "ISO 8583 spec not loaded", null);
+                        return;
+                    }
+                    switch (call.method) {
+                        case "packMessage":
+                            try {
+                                String mti = call.argument("mti");
+                                Iso8583Message message = new Iso8583Message(mti);
+                                java.util.Map<String, String> card = call.argument("cardData");
+                                if (card != null)
+                                    message.setCardData(card);
+                                java.util.Map<Object, Object> fields = call.argument("fields");
+                                if (fields != null) {
+                                    for (java.util.Map.Entry<Object, Object> entry : fields.entrySet()) {
+                                        int field = Integer.parseInt(String.valueOf(entry.getKey()));
+                                        Object value = entry.getValue();
+                                        if (value instanceof byte[])
+                                            message.set(field, (byte[]) value);
+                                        else if (value != null && isoPacker.getSpec().isBinary(field))
+                                            message.set(field, Iso8583Message.hex(String.valueOf(value)));
+                                        else
+                                            message.set(field, value != null ? String.valueOf(value) : null);
+                                    }
+                                }
+                                result.success(isoPacker.pack(message));
+                            } catch (IllegalArgumentException e) {
+                                result.error("ISO_ERROR", e.getMessage(), null);
+                            }
+                            break;
+
+                        case "unpackMessage":
+                            try {
+                                byte[] data = call.argument("data");
+                                Iso8583Message message = isoPacker.unpack(data);
+                                java.util.Map<String, Object> fields = new java.util.HashMap<>();
+                                for (int field = 2; field <= 128; field++) {
+                                    if (!message.has(field))
+                                        continue;
+                                    if (isoPacker.getSpec().isBinary(field))
+                                        fields.put(String.valueOf(field), message.getBytes(field));
+                                    else
+                                        fields.put(String.valueOf(field), message.getString(field));
+                                }
+                                java.util.Map<String, Object> unpacked = new java.util.HashMap<>();
+                                unpacked.put("mti", message.getMti());
+                                unpacked.put("fields", fields);
+                                result.success(unpacked);
+                            } catch (IllegalArgumentException e) {
+                                result.error("ISO_ERROR", e.getMessage(), null);
+                            }
+                            break;
+
+                        case "getIsoStats":
+                            result.success(isoPacker.getStats());
+                            break;
+
+                        default:
+                            result.notImplemented();
+                            break;
+                    }
+                });
+    }
+
+    private void setupJournalChannel(FlutterEngine flutterEngine) {
+        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), JOURNALCHANNEL)
+                .setMethodCallHandler((call, result) -> {
+                    if (journal == null) {
+                        result.error("JOURNAL_ERROR", "Transaction journal not available", null);
+                        return;
+                    }
+                    switch (call.method) {
+                        case "recordTransaction":
+                            String type = call.argument("type");
+                            java.util.Map<String, Object> data = call.argument("data");
+                            org.json.JSONObject record = new org.json.JSONObject();
+                            try {
+                                org.json.JSONObject fields = data != null ? new org.json.JSONObject(data) : new org.json.JSONObject();
+                                int stripped = TransactionJournal.stripSensitive(fields);
+                                if (stripped > 0)
+                                    android.util.Log.d("MainActivity", "Dropped " + stripped + " sensitive card fields before journaling");
+                                record.put("type", type != null ? type : "card");
+                                record.put("data", fields);
+                            } catch (org.json.JSONException e) {
+                                result.error("JOURNAL_ERROR", e.getMessage(), null);
+                                break;
+                            }
+                            journal.appendAsync(record.toString(), new TransactionJournal.AppendCallback() {
+                                @Override
+                                public void onAppended(long seq) {
+                                    journalForwarder.kick();
+                                    result.success(seq);
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    result.error("JOURNAL_ERROR", error, null);
+                                }
+                            });
+                            break;
+
+                        case "setJournalEndpoint":
+                            String endpoint = call.argument("url");
+                            android.content.SharedPreferences.Editor editor = getSharedPreferences(JOURNAL_PREFS, MODE_PRIVATE).edit();
+                            if (endpoint == null || endpoint.isEmpty()) {
+                                editor.remove("endpoint").apply();
+                                journalForwarder.setUploader(null);
+                            } else {
+                                JournalForwarder.HttpUploader uploader;
+                                try {
+                                    uploader = new JournalForwarder.HttpUploader(endpoint, cardReader.getSerialNumber());
+                                } catch (IllegalArgumentException e) {
+                                    result.error("JOURNAL_ERROR", e.getMessage(), null);
+                                    break;
+                                }
+                                editor.putString("endpoint", endpoint).apply();
+                                journalForwarder.setUploader(uploader);
+                            }
+                            result.success(true);
+                            break;
+
+                        case "flushJournal":
+                            journalForwarder.retryNow();
+                            result.success(journal.pendingCount());
+                            break;
+
+                        case "getRejectedTransactions":
+                            // Records the host refused outright; they are no longer retried
+                            try {
+                                java.util.List<java.util.Map<String, Object>> rejected = new java.util.ArrayList<>();
+                                for (TransactionJournal.Record r : journal.readDeadLetters(500)) {
+                                    java.util.Map<String, Object> m = new java.util.HashMap<>();
+                                    m.put("seq", r.seq);
+                                    m.put("timestamp", r.timestamp);
+                                    m.put("record", r.payload);
+                                    rejected.add(m);
+                                }
+                                result.success(rejected);
+                            } catch (java.io.IOException e) {
+                                result.error("JOURNAL_ERROR", e.getMessage(), null);
+                            }
+                            break;
+
+                        case "clearRejectedTransactions":
+                            journal.clearDeadLetters();
+                            result.success(true);
+                            break;
+
+                        case "getJournalStats":
+                            java.util.Map<String, Object> stats = journal.getStats();
+                            stats.put("forwarder", journalForwarder.getStats());
+                            result.success(stats);
+                            break;
+
                         default:
                             result.notImplemented();
                             break;
@@ -200,6 +817,23 @@ public class MainActivity extends FlutterActivity {
                 });
     }
 
+    @Override
+    protected void onDestroy() {
+        if (fingerprintReader != null) {
+            fingerprintReader.shutdown();
+        }
+        if (cardReader != null) {
+            cardReader.shutdown();
+        }
+        if (journalForwarder != null) {
+            journalForwarder.shutdown(this);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, android.content.Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
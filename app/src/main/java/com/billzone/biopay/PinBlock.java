@@ -0,0 +1,136 @@
+package com.billzone.biopay;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+// ISO 9564-1 formats 0 (TDES) and 4 (AES)
+public class PinBlock {
+    private PinBlock() {
+    }
+
+    public static byte[] format0(String pin, String pan) {
+        checkPin(pin);
+        byte[] block = pinField0(pin);
+        byte[] panField = panField0(pan);
+        for (int i = 0; i < 8; i++) {
+            block[i] ^= panField[i];
+        }
+        return block;
+    }
+
+    // Recovers the PIN from a clear format 0 block; used by the DUKPT known-answer self test
+    public static String pinFromFormat0(byte[] block, String pan) {
+        byte[] pinField = panField0(pan);
+        for (int i = 0; i < 8; i++) {
+            pinField[i] ^= block[i];
+        }
+        int length = pinField[0] & 0x0F;
+        if ((pinField[0] & 0xF0) != 0 || length < 4 || length > 12)
+            throw new IllegalArgumentException("Not a format 0 PIN block");
+        StringBuilder pin = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int b = pinField[1 + i / 2] & 0xFF;
+            pin.append((char) ('0' + (i % 2 == 0 ? b >> 4 : b & 0x0F)));
+        }
+        return pin.toString();
+    }
+
+    public static byte[] encryptFormat4(String pin, String pan, byte[] aesKey, SecureRandom random)
+            throws GeneralSecurityException {
+        checkPin(pin);
+        byte[] pinField = new byte[16];
+        int[] nibbles = new int[16];
+        nibbles[0] = 4;
+        nibbles[1] = pin.length();
+        for (int i = 0; i < 14; i++) {
+            nibbles[2 + i] = i < pin.length() ? pin.charAt(i) - '0' : 0xA;
+        }
+        for (int i = 0; i < 8; i++) {
+            pinField[i] = (byte) ((nibbles[i * 2] << 4) | nibbles[i * 2 + 1]);
+        }
+        byte[] fill = new byte[8];
+        random.nextBytes(fill);
+        System.arraycopy(fill, 0, pinField, 8, 8);
+
+        // PAN field: length beyond 12 digits, the PAN, then zero padding
+        String digits = panDigits(pan);
+        if (digits.length() < 12 || digits.length() > 19)
+            throw new IllegalArgumentException("PAN must have 12 to 19 digits");
+        byte[] panField = new byte[16];
+        int[] panNibbles = new int[32];
+        panNibbles[0] = digits.length() - 12;
+        for (int i = 0; i < digits.length(); i++) {
+            panNibbles[1 + i] = digits.charAt(i) - '0';
+        }
+        for (int i = 0; i < 16; i++) {
+            panField[i] = (byte) ((panNibbles[i * 2] << 4) | panNibbles[i * 2 + 1]);
+        }
+
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+        byte[] intermediate = aes.doFinal(pinField);
+        for (int i = 0; i < 16; i++) {
+            intermediate[i] ^= panField[i];
+        }
+        byte[] block = aes.doFinal(intermediate);
+        Arrays.fill(pinField, (byte) 0);
+        Arrays.fill(intermediate, (byte) 0);
+        return block;
+    }
+
+    // Control nibble 0, PIN length, PIN digits, F padding
+    private static byte[] pinField0(String pin) {
+        byte[] field = new byte[8];
+        field[0] = (byte) pin.length();
+        for (int i = 0; i < 14; i++) {
+            int nibble = i < pin.length() ? pin.charAt(i) - '0' : 0xF;
+            int n = 2 + i;
+            field[n / 2] |= (byte) (n % 2 == 0 ? nibble << 4 : nibble);
+        }
+        return field;
+    }
+
+    // Four zero nibbles, then the rightmost 12 PAN digits excluding the check digit
+    private static byte[] panField0(String pan) {
+        String digits = panDigits(pan);
+        String pan12 = digits.substring(Math.max(0, digits.length() - 13), digits.length() - 1);
+        byte[] field = new byte[8];
+        int n = 16 - pan12.length();
+        for (int i = 0; i < pan12.length(); i++, n++) {
+            int nibble = pan12.charAt(i) - '0';
+            field[n / 2] |= (byte) (n % 2 == 0 ? nibble << 4 : nibble);
+        }
+        return field;
+    }
+
+    private static void checkPin(String pin) {
+        if (pin == null || pin.length() < 4 || pin.length() > 12)
+            throw new IllegalArgumentException("PIN must have 4 to 12 digits");
+        for (int i = 0; i < pin.length(); i++) {
+            if (pin.charAt(i) < '0' || pin.charAt(i) > '9')
+                throw new IllegalArgumentException("PIN must be numeric");
+        }
+    }
+
+    private static String panDigits(String pan) {
+        if (pan == null)
+            throw new IllegalArgumentException("PAN required");
+        StringBuilder digits = new StringBuilder(pan.length());
+        for (int i = 0; i < pan.length(); i++) {
+            char c = pan.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+            else if (c == 'F' || c == 'f')
+                break;
+            else
+                throw new IllegalArgumentException("PAN must be numeric");
+        }
+        if (digits.length() < 2)
+            throw new IllegalArgumentException("PAN too short");
+        return digits.toString();
+    }
+}
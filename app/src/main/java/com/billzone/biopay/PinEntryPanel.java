@@ -0,0 +1,214 @@
+package com.billzone.biopay;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.media.AudioManager;
+import android.media.ToneGenerator;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.Button;
+import android.widget.TextView;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+// Inflated once and reused; create it on the UI thread, show() from any thread
+public class PinEntryPanel {
+    private static final String TAG = "PinEntryPanel";
+
+    public interface Listener {
+        void onPin(String pin);
+
+        void onCancel();
+    }
+
+    private final Activity activity;
+    private final Dialog dialog;
+    private final View root;
+    private final TextView pinDisplay;
+    private final TextView tvRetryMessage;
+    private final Button[] digitButtons = new Button[10];
+    private final int[] keyDigits = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    private final Button btnConfirm;
+    private final ToneGenerator toneGenerator;
+    private final SecureRandom random = new SecureRandom();
+    private final StringBuilder pinBuilder = new StringBuilder();
+
+    private Listener listener;
+    private int minLength = 4;
+    private int maxLength = 12;
+
+    private long shows = 0;
+    private long totalTtiMs = 0;
+    private long maxTtiMs = 0;
+    private long lastTtiMs = 0;
+    private long firstTtiMs = -1;
+
+    public PinEntryPanel(Activity activity) {
+        this.activity = activity;
+        long start = System.nanoTime();
+        root = activity.getLayoutInflater().inflate(R.layout.activity_custom_pinpad, null);
+        dialog = new Dialog(activity, android.R.style.Theme_Light_NoTitleBar_Fullscreen);
+        dialog.setContentView(root);
+        dialog.setCancelable(true);
+        dialog.setOnCancelListener(d -> finish(null));
+
+        pinDisplay = root.findViewById(R.id.pinDisplay);
+        tvRetryMessage = root.findViewById(R.id.tvRetryMessage);
+        btnConfirm = root.findViewById(R.id.btnConfirm);
+        Button btnClear = root.findViewById(R.id.btnClear);
+        Button btnCancel = root.findViewById(R.id.btnCancel);
+        int[] ids = { R.id.btn0, R.id.btn1, R.id.btn2, R.id.btn3, R.id.btn4, R.id.btn5, R.id.btn6, R.id.btn7,
+                R.id.btn8, R.id.btn9 };
+        for (int i = 0; i < 10; i++) {
+            final int slot = i;
+            digitButtons[i] = root.findViewById(ids[i]);
+            // Listeners read the slot's current digit, so a shuffle only has to relabel the buttons
+            digitButtons[i].setOnClickListener(v -> onDigitClick(keyDigits[slot]));
+        }
+
+        toneGenerator = new ToneGenerator(AudioManager.STREAM_DTMF, 80);
+
+        btnConfirm.setOnClickListener(v -> {
+            if (pinBuilder.length() >= minLength) {
+                playBeep();
+                finish(pinBuilder.toString());
+            }
+        });
+        btnClear.setOnClickListener(v -> {
+            if (pinBuilder.length() > 0) {
+                playBeep();
+                pinBuilder.deleteCharAt(pinBuilder.length() - 1);
+                updatePinDisplay();
+            }
+        });
+        btnCancel.setOnClickListener(v -> {
+            playBeep();
+            finish(null);
+        });
+        Log.d(TAG, "PIN panel prepared in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    public void show(int minLength, int maxLength, int retryCount, Listener listener) {
+        long requestedAt = System.nanoTime();
+        activity.runOnUiThread(() -> {
+            if (this.listener != null) {
+                // An abandoned attempt is still on screen; it loses to the new one
+                Listener previous = this.listener;
+                this.listener = null;
+                previous.onCancel();
+            }
+            this.listener = listener;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            pinBuilder.setLength(0);
+            updatePinDisplay();
+            shuffleKeys();
+            if (retryCount > 0) {
+                tvRetryMessage.setVisibility(View.VISIBLE);
+                tvRetryMessage.setText("Incorrect PIN. Attempt " + (retryCount + 1) + " of 3");
+            } else {
+                tvRetryMessage.setVisibility(View.GONE);
+            }
+
+            ViewTreeObserver observer = root.getViewTreeObserver();
+            observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    root.getViewTreeObserver().removeOnPreDrawListener(this);
+                    recordTti(requestedAt);
+                    return true;
+                }
+            });
+            if (!dialog.isShowing())
+                dialog.show();
+        });
+    }
+
+    public void dismiss() {
+        activity.runOnUiThread(() -> {
+            listener = null;
+            pinBuilder.setLength(0);
+            if (dialog.isShowing())
+                dialog.dismiss();
+        });
+    }
+
+    // An attempt still on screen is cancelled, so whoever waits on it is let go
+    public void release() {
+        activity.runOnUiThread(() -> {
+            finish(null);
+            toneGenerator.release();
+        });
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("shows", shows);
+        stats.put("lastTtiMs", lastTtiMs);
+        stats.put("avgTtiMs", shows == 0 ? 0 : totalTtiMs / shows);
+        stats.put("maxTtiMs", maxTtiMs);
+        // The first show also pays for creating the window
+        stats.put("firstTtiMs", firstTtiMs);
+        return stats;
+    }
+
+    private synchronized void recordTti(long requestedAt) {
+        lastTtiMs = (System.nanoTime() - requestedAt) / 1_000_000;
+        if (firstTtiMs < 0)
+            firstTtiMs = lastTtiMs;
+        shows++;
+        totalTtiMs += lastTtiMs;
+        maxTtiMs = Math.max(maxTtiMs, lastTtiMs);
+        Log.d(TAG, "PIN pad interactive after " + lastTtiMs + " ms");
+    }
+
+    private void finish(String pin) {
+        Listener target = listener;
+        listener = null;
+        pinBuilder.setLength(0);
+        if (dialog.isShowing())
+            dialog.dismiss();
+        if (target == null)
+            return;
+        if (pin != null)
+            target.onPin(pin);
+        else
+            target.onCancel();
+    }
+
+    private void shuffleKeys() {
+        for (int i = keyDigits.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = keyDigits[i];
+            keyDigits[i] = keyDigits[j];
+            keyDigits[j] = t;
+        }
+        for (int i = 0; i < 10; i++) {
+            digitButtons[i].setText(String.valueOf(keyDigits[i]));
+        }
+    }
+
+    private void onDigitClick(int digit) {
+        if (pinBuilder.length() < maxLength) {
+            playBeep();
+            pinBuilder.append(digit);
+            updatePinDisplay();
+        }
+    }
+
+    private void playBeep() {
+        toneGenerator.startTone(ToneGenerator.TONE_DTMF_9, 100);
+    }
+
+    private void updatePinDisplay() {
+        StringBuilder display = new StringBuilder();
+        for (int i = 0; i < pinBuilder.length(); i++) {
+            display.append("●");
+        }
+        pinDisplay.setText(display.toString());
+        btnConfirm.setEnabled(pinBuilder.length() >= minLength);
+    }
+}
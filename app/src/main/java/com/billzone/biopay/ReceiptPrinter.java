@@ -4,20 +4,47 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.Layout;
+import android.util.Log;
 
 import com.zcs.sdk.DriverManager;
 import com.zcs.sdk.Printer;
 import com.zcs.sdk.SdkResult;
 import com.zcs.sdk.Sys;
 import com.zcs.sdk.print.PrnStrFormat;
-import com.zcs.sdk.print.PrnTextFont;
-import com.zcs.sdk.print.PrnTextStyle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ReceiptPrinter {
+    private static final String TAG = "ReceiptPrinter";
+    private static final String PAYMENT_TEMPLATE = "payment";
+
     private Context context;
     private DriverManager driverManager;
     private Sys sys;
     private Printer printer;
+    private DeviceScheduler scheduler = DeviceScheduler.getInstance();
+    private final ReceiptTemplates templates;
+    private Bitmap logo;
+    private long prints = 0;
+    private long lastRenderUs = 0;
+
+    // Logo decoded on first use and kept; text goes straight into the printer buffer
+    private final ReceiptTemplates.Sink sink = new ReceiptTemplates.Sink() {
+        @Override
+        public void logo(Layout.Alignment align) {
+            if (logo == null)
+                logo = BitmapFactory.decodeResource(context.getResources(), R.drawable.icon);
+            if (logo != null)
+                printer.setPrintAppendBitmap(logo, align);
+        }
+
+        @Override
+        public void text(String text, PrnStrFormat format) {
+            printer.setPrintAppendString(text, format);
+        }
+    };
 
     public interface PrintCallback {
         void onSuccess();
@@ -29,84 +56,49 @@ public class ReceiptPrinter {
         this.driverManager = DriverManager.getInstance();
         this.sys = driverManager.getBaseSysDevice();
         this.printer = driverManager.getPrinter();
+        this.templates = new ReceiptTemplates(context);
     }
 
     public void printReceipt(String amount, String date, boolean isSuccessful, String terminalNo,
                              String reference, boolean isBiometric, boolean isCustomerReceipt,
                              String fullName, String bankName, PrintCallback callback) {
-        new Thread(() -> {
+        Map<String, Object> values = new HashMap<>();
+        values.put("amount", amount);
+        values.put("date", date);
+        values.put("isSuccessful", isSuccessful);
+        values.put("terminalNo", terminalNo);
+        values.put("reference", reference);
+        values.put("isBiometric", isBiometric);
+        values.put("isCustomerReceipt", isCustomerReceipt);
+        values.put("fullName", fullName);
+        values.put("bankName", bankName);
+        printTemplate(PAYMENT_TEMPLATE, values, callback);
+    }
+
+    public void printTemplate(String name, Map<String, ?> values, PrintCallback callback) {
+        Runnable print = () -> {
             initSdk();
 
             try {
+                templates.ensureLoaded();
+                ReceiptTemplates.Template template = templates.get(name);
+                if (template == null) {
+                    callback.onError("Unknown receipt template: " + name);
+                    return;
+                }
+
                 if (printer.getPrinterStatus() == SdkResult.SDK_PRN_STATUS_PAPEROUT) {
                     callback.onError("Out of paper!");
                     return;
                 }
 
-                Bitmap logo = BitmapFactory.decodeResource(context.getResources(), R.drawable.icon);
-                if (logo != null) {
-                    printer.setPrintAppendBitmap(logo, Layout.Alignment.ALIGN_CENTER);
+                long start = System.nanoTime();
+                template.render(values, sink);
+                synchronized (this) {
+                    prints++;
+                    lastRenderUs = (System.nanoTime() - start) / 1000;
                 }
 
-                PrnStrFormat centerBig = new PrnStrFormat();
-                centerBig.setAli(Layout.Alignment.ALIGN_CENTER);
-                centerBig.setTextSize(30);
-                centerBig.setStyle(PrnTextStyle.BOLD);
-                centerBig.setFont(PrnTextFont.DEFAULT);
-
-                printer.setPrintAppendString("-----------------------------", centerBig);
-                printer.setPrintAppendString(
-                        isCustomerReceipt ? "*** Customer Copy ***" : "*** Agent/Merchant Copy ***", centerBig);
-                printer.setPrintAppendString("-----------------------------", centerBig);
-
-                PrnStrFormat leftNormal = new PrnStrFormat();
-                leftNormal.setAli(Layout.Alignment.ALIGN_NORMAL);
-                leftNormal.setTextSize(22);
-                leftNormal.setStyle(PrnTextStyle.NORMAL);
-
-                printKeyValue("To", safe(valueOrEmpty(fullName)), leftNormal);
-                printKeyValue("Bank", safe(valueOrEmpty(bankName)), leftNormal);
-                printKeyValue("Payment Method", isBiometric ? "Biometric" : "Card", leftNormal);
-                printKeyValue("Terminal No", safe(terminalNo), leftNormal);
-                printKeyValue("Reference", safe(reference), leftNormal);
-                printKeyValue("Date", safe(date), leftNormal);
-
-                printer.setPrintAppendString(" ", leftNormal);
-
-                PrnStrFormat centerAmount = new PrnStrFormat();
-                centerAmount.setAli(Layout.Alignment.ALIGN_CENTER);
-                centerAmount.setTextSize(28);
-                centerAmount.setStyle(PrnTextStyle.NORMAL);
-
-                printer.setPrintAppendString("Payment of N" + safe(amount) +
-                        (isSuccessful ? " Successful" : " Failed"), centerAmount);
-
-                PrnStrFormat centerStatus = new PrnStrFormat();
-                centerStatus.setAli(Layout.Alignment.ALIGN_CENTER);
-                centerStatus.setTextSize(40);
-                centerStatus.setStyle(PrnTextStyle.BOLD);
-                printer.setPrintAppendString(isSuccessful ? "SUCCESSFUL" : "FAILED", centerStatus);
-
-                PrnStrFormat sep = new PrnStrFormat();
-                sep.setAli(Layout.Alignment.ALIGN_CENTER);
-                sep.setTextSize(22);
-                sep.setStyle(PrnTextStyle.NORMAL);
-                printer.setPrintAppendString("-----------------------------\n\n", sep);
-
-                leftNormal.setTextSize(22);
-                printer.setPrintAppendString("Amount: N" + safe(amount), leftNormal);
-
-                leftNormal.setTextSize(20);
-                printer.setPrintAppendString("\nPlease retain your receipt", leftNormal);
-                printer.setPrintAppendString("Thank You", leftNormal);
-                printer.setPrintAppendString("\n\n", leftNormal);
-
-                PrnStrFormat rightSmall = new PrnStrFormat();
-                rightSmall.setAli(Layout.Alignment.ALIGN_OPPOSITE);
-                rightSmall.setTextSize(18);
-                rightSmall.setStyle(PrnTextStyle.NORMAL);
-                printer.setPrintAppendString("Powered by BioPay", rightSmall);
-
                 int printStatus = printer.setPrintStart();
                 if (printStatus == SdkResult.SDK_PRN_STATUS_PAPEROUT) {
                     callback.onError("Out of paper!");
@@ -116,7 +108,37 @@ public class ReceiptPrinter {
             } catch (Exception e) {
                 callback.onError("Print error: " + e.getMessage());
             }
-        }).start();
+        };
+
+        try {
+            scheduler.submit(DeviceScheduler.Device.PRINTER, print, () -> callback.onError("Print cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
+    }
+
+    // Picks up a newer filesDir/receipts/receipt_templates.json without a restart
+    public void reloadTemplates(PrintCallback callback) {
+        try {
+            scheduler.submit(DeviceScheduler.Device.BACKGROUND, () -> {
+                try {
+                    templates.load();
+                    callback.onSuccess();
+                } catch (Exception e) {
+                    Log.e(TAG, "Receipt template load failed", e);
+                    callback.onError("Receipt template load failed: " + e.getMessage());
+                }
+            }, () -> callback.onError("Receipt template load cancelled"));
+        } catch (RejectedExecutionException e) {
+            callback.onError("Device busy");
+        }
+    }
+
+    public synchronized Map<String, Object> getTemplateStats() {
+        Map<String, Object> stats = templates.getStats();
+        stats.put("prints", prints);
+        stats.put("lastRenderUs", lastRenderUs);
+        return stats;
     }
 
     private void initSdk() {
@@ -127,26 +149,4 @@ public class ReceiptPrinter {
             sys.sdkInit();
         }
     }
-
-    private String safe(String s) {
-        return s == null ? "" : s;
-    }
-
-    private String valueOrEmpty(String s) {
-        return (s == null || s.trim().isEmpty()) ? "-" : s.trim();
-    }
-
-    private void printKeyValue(String key, String value, PrnStrFormat baseFormat) {
-        PrnStrFormat left = new PrnStrFormat();
-        left.setAli(Layout.Alignment.ALIGN_NORMAL);
-        left.setTextSize(baseFormat.getTextSize());
-        left.setStyle(baseFormat.getStyle());
-        printer.setPrintAppendString(key + ": ", left);
-
-        PrnStrFormat right = new PrnStrFormat();
-        right.setAli(Layout.Alignment.ALIGN_OPPOSITE);
-        right.setTextSize(baseFormat.getTextSize());
-        right.setStyle(baseFormat.getStyle());
-        printer.setPrintAppendString(value + "\n", right);
-    }
 }
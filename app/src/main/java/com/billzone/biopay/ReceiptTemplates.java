@@ -0,0 +1,397 @@
+package com.billzone.biopay;
+
+import android.content.Context;
+import android.text.Layout;
+import android.util.Log;
+
+import com.zcs.sdk.print.PrnStrFormat;
+import com.zcs.sdk.print.PrnTextFont;
+import com.zcs.sdk.print.PrnTextStyle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Placeholders: {name}, {name|default} and {name?yes:no}; "if": "name" or "!name" makes an operation conditional
+public class ReceiptTemplates {
+    private static final String TAG = "ReceiptTemplates";
+    private static final String TEMPLATES_NAME = "receipt_templates.json";
+
+    private static final int OP_LOGO = 1;
+    private static final int OP_TEXT = 2;
+    private static final int OP_KEY_VALUE = 3;
+
+    private static final int PART_LITERAL = 0;
+    private static final int PART_VALUE = 1;
+    private static final int PART_DEFAULT = 2;
+    private static final int PART_CHOICE = 3;
+
+    // Where a rendered template goes; ReceiptPrinter forwards to the printer buffer
+    public interface Sink {
+        void logo(Layout.Alignment align);
+        void text(String text, PrnStrFormat format);
+    }
+
+    private static class Text {
+        final int[] kinds;
+        final String[] names;
+        final String[] first;
+        final String[] second;
+
+        Text(int[] kinds, String[] names, String[] first, String[] second) {
+            this.kinds = kinds;
+            this.names = names;
+            this.first = first;
+            this.second = second;
+        }
+
+        void bind(Map<String, ?> values, StringBuilder out) {
+            for (int i = 0; i < kinds.length; i++) {
+                switch (kinds[i]) {
+                    case PART_LITERAL:
+                        out.append(first[i]);
+                        break;
+                    case PART_VALUE: {
+                        Object value = values.get(names[i]);
+                        if (value != null)
+                            out.append(value);
+                        break;
+                    }
+                    case PART_DEFAULT: {
+                        Object value = values.get(names[i]);
+                        String s = value != null ? value.toString().trim() : "";
+                        out.append(s.isEmpty() ? first[i] : s);
+                        break;
+                    }
+                    default:
+                        out.append(isTrue(values.get(names[i])) ? first[i] : second[i]);
+                        break;
+                }
+            }
+        }
+    }
+
+    private static class Op {
+        final int kind;
+        final String condition;
+        final boolean negate;
+        final Layout.Alignment align;
+        final PrnStrFormat format;
+        final PrnStrFormat valueFormat;
+        final Text text;
+        final Text value;
+
+        Op(int kind, String condition, boolean negate, Layout.Alignment align, PrnStrFormat format,
+           PrnStrFormat valueFormat, Text text, Text value) {
+            this.kind = kind;
+            this.condition = condition;
+            this.negate = negate;
+            this.align = align;
+            this.format = format;
+            this.valueFormat = valueFormat;
+            this.text = text;
+            this.value = value;
+        }
+    }
+
+    public static class Template {
+        public final String name;
+        private final Op[] ops;
+
+        Template(String name, Op[] ops) {
+            this.name = name;
+            this.ops = ops;
+        }
+
+        public void render(Map<String, ?> values, Sink sink) {
+            StringBuilder line = new StringBuilder(64);
+            for (Op op : ops) {
+                if (op.condition != null && isTrue(values.get(op.condition)) == op.negate)
+                    continue;
+                switch (op.kind) {
+                    case OP_LOGO:
+                        sink.logo(op.align);
+                        break;
+                    case OP_TEXT:
+                        line.setLength(0);
+                        op.text.bind(values, line);
+                        sink.text(line.toString(), op.format);
+                        break;
+                    default:
+                        line.setLength(0);
+                        op.text.bind(values, line);
+                        sink.text(line.append(": ").toString(), op.format);
+                        line.setLength(0);
+                        op.value.bind(values, line);
+                        sink.text(line.append('\n').toString(), op.valueFormat);
+                        break;
+                }
+            }
+        }
+    }
+
+    static class Compiled {
+        final int version;
+        final String source;
+        final int formats;
+        final Map<String, Template> templates;
+
+        Compiled(int version, String source, int formats, Map<String, Template> templates) {
+            this.version = version;
+            this.source = source;
+            this.formats = formats;
+            this.templates = templates;
+        }
+    }
+
+    private final Context context;
+    private final File overrideFile;
+    private final AtomicReference<Compiled> current = new AtomicReference<>();
+    private long loads = 0;
+    private long lastLoadMs = 0;
+
+    public ReceiptTemplates(Context context) {
+        this.context = context;
+        this.overrideFile = new File(new File(context.getFilesDir(), "receipts"), TEMPLATES_NAME);
+    }
+
+    public void ensureLoaded() throws IOException, JSONException {
+        if (current.get() == null) {
+            synchronized (this) {
+                if (current.get() == null)
+                    load();
+            }
+        }
+    }
+
+    // A print in progress keeps the template it already looked up
+    public synchronized void load() throws IOException, JSONException {
+        long start = System.nanoTime();
+        String[] source = new String[1];
+        JSONObject config = readTemplates(source);
+        Compiled compiled;
+        try {
+            compiled = compile(config, source[0]);
+        } catch (JSONException e) {
+            if (!overrideFile.getPath().equals(source[0]))
+                throw e;
+            Log.e(TAG, "Ignoring " + overrideFile + ": " + e.getMessage());
+            compiled = compile(readBundled(), "assets/" + TEMPLATES_NAME);
+        }
+        current.set(compiled);
+        loads++;
+        lastLoadMs = (System.nanoTime() - start) / 1_000_000;
+        Log.d(TAG, "Receipt templates v" + compiled.version + " from " + compiled.source + " ("
+                + compiled.templates.size() + " templates, " + compiled.formats + " formats) in " + lastLoadMs + " ms");
+    }
+
+    public Template get(String name) {
+        Compiled compiled = current.get();
+        return compiled != null ? compiled.templates.get(name) : null;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Compiled compiled = current.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loaded", compiled != null);
+        stats.put("version", compiled != null ? compiled.version : -1);
+        stats.put("source", compiled != null ? compiled.source : null);
+        stats.put("templates", compiled != null ? new ArrayList<>(compiled.templates.keySet()) : new ArrayList<String>());
+        stats.put("formats", compiled != null ? compiled.formats : 0);
+        stats.put("loads", loads);
+        stats.put("lastLoadMs", lastLoadMs);
+        return stats;
+    }
+
+    static Compiled compile(JSONObject config, String source) throws JSONException {
+        int version = config.getInt("version");
+        Map<String, PrnStrFormat> formats = new HashMap<>();
+        JSONObject formatSpecs = config.getJSONObject("formats");
+        Iterator<String> names = formatSpecs.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            formats.put(name, format(formatSpecs.getJSONObject(name), name));
+        }
+
+        Map<String, Template> templates = new HashMap<>();
+        JSONObject templateSpecs = config.getJSONObject("templates");
+        Iterator<String> templateNames = templateSpecs.keys();
+        while (templateNames.hasNext()) {
+            String name = templateNames.next();
+            JSONArray opSpecs = templateSpecs.getJSONArray(name);
+            Op[] ops = new Op[opSpecs.length()];
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = op(opSpecs.getJSONObject(i), formats, name + "[" + i + "]");
+            }
+            templates.put(name, new Template(name, ops));
+        }
+        return new Compiled(version, source, formats.size(), templates);
+    }
+
+    private static Op op(JSONObject spec, Map<String, PrnStrFormat> formats, String where) throws JSONException {
+        String condition = spec.optString("if", "");
+        boolean negate = condition.startsWith("!");
+        if (negate)
+            condition = condition.substring(1);
+        if (condition.isEmpty())
+            condition = null;
+
+        String kind = spec.getString("op");
+        switch (kind) {
+            case "logo":
+                return new Op(OP_LOGO, condition, negate, align(spec.optString("align", "center"), where),
+                        null, null, null, null);
+            case "text":
+                return new Op(OP_TEXT, condition, negate, null, lookup(formats, spec.getString("format"), where),
+                        null, text(spec.getString("text"), where), null);
+            case "keyValue":
+                return new Op(OP_KEY_VALUE, condition, negate, null, lookup(formats, spec.getString("format"), where),
+                        lookup(formats, spec.getString("valueFormat"), where),
+                        text(spec.getString("label"), where), text(spec.getString("value"), where));
+            default:
+                throw new JSONException(where + ": unknown op " + kind);
+        }
+    }
+
+    private static PrnStrFormat format(JSONObject spec, String name) throws JSONException {
+        PrnStrFormat format = new PrnStrFormat();
+        format.setAli(align(spec.optString("align", "left"), "format " + name));
+        format.setTextSize(spec.getInt("size"));
+        try {
+            format.setStyle(PrnTextStyle.valueOf(spec.optString("style", "normal").toUpperCase()));
+            if (spec.has("font"))
+                format.setFont(PrnTextFont.valueOf(spec.getString("font").toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("format " + name + ": " + e.getMessage());
+        }
+        return format;
+    }
+
+    private static Layout.Alignment align(String align, String where) throws JSONException {
+        switch (align) {
+            case "left":
+                return Layout.Alignment.ALIGN_NORMAL;
+            case "center":
+                return Layout.Alignment.ALIGN_CENTER;
+            case "right":
+                return Layout.Alignment.ALIGN_OPPOSITE;
+            default:
+                throw new JSONException(where + ": unknown alignment " + align);
+        }
+    }
+
+    private static PrnStrFormat lookup(Map<String, PrnStrFormat> formats, String name, String where)
+            throws JSONException {
+        PrnStrFormat format = formats.get(name);
+        if (format == null)
+            throw new JSONException(where + ": unknown format " + name);
+        return format;
+    }
+
+    // Splits "Payment of N{amount}{ok? Successful: Failed}" into literal and placeholder parts
+    private static Text text(String source, String where) throws JSONException {
+        List<Integer> kinds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        int i = 0;
+        while (i < source.length()) {
+            int open = source.indexOf('{', i);
+            if (open < 0)
+                open = source.length();
+            if (open > i) {
+                kinds.add(PART_LITERAL);
+                names.add(null);
+                first.add(source.substring(i, open));
+                second.add(null);
+            }
+            if (open == source.length())
+                break;
+            int close = source.indexOf('}', open);
+            if (close < 0)
+                throw new JSONException(where + ": unclosed placeholder in \"" + source + "\"");
+            String body = source.substring(open + 1, close);
+            int question = body.indexOf('?');
+            int bar = body.indexOf('|');
+            if (question > 0) {
+                int colon = body.indexOf(':', question);
+                if (colon < 0)
+                    throw new JSONException(where + ": choice needs yes:no in {" + body + "}");
+                kinds.add(PART_CHOICE);
+                names.add(body.substring(0, question));
+                first.add(body.substring(question + 1, colon));
+                second.add(body.substring(colon + 1));
+            } else if (bar > 0) {
+                kinds.add(PART_DEFAULT);
+                names.add(body.substring(0, bar));
+                first.add(body.substring(bar + 1));
+                second.add(null);
+            } else if (!body.isEmpty()) {
+                kinds.add(PART_VALUE);
+                names.add(body);
+                first.add(null);
+                second.add(null);
+            } else {
+                throw new JSONException(where + ": empty placeholder");
+            }
+            i = close + 1;
+        }
+        int[] kindArray = new int[kinds.size()];
+        for (int k = 0; k < kindArray.length; k++) {
+            kindArray[k] = kinds.get(k);
+        }
+        return new Text(kindArray, names.toArray(new String[0]), first.toArray(new String[0]),
+                second.toArray(new String[0]));
+    }
+
+    private static boolean isTrue(Object value) {
+        return value instanceof Boolean ? (Boolean) value : value != null && "true".equalsIgnoreCase(value.toString());
+    }
+
+    private JSONObject readTemplates(String[] source) throws IOException, JSONException {
+        JSONObject bundled = readBundled();
+        if (overrideFile.exists()) {
+            try (InputStream in = new FileInputStream(overrideFile)) {
+                JSONObject override = new JSONObject(readAll(in));
+                if (override.getInt("version") > bundled.getInt("version")) {
+                    source[0] = overrideFile.getPath();
+                    return override;
+                }
+                Log.d(TAG, "Ignoring " + overrideFile + ": not newer than the bundled templates");
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Ignoring unreadable " + overrideFile + ": " + e.getMessage());
+            }
+        }
+        source[0] = "assets/" + TEMPLATES_NAME;
+        return bundled;
+    }
+
+    private JSONObject readBundled() throws IOException, JSONException {
+        try (InputStream in = context.getAssets().open(TEMPLATES_NAME)) {
+            return new JSONObject(readAll(in));
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package com.billzone.biopay;
+
+import com.machinezoo.sourceafis.FingerprintCompatibility;
+import com.machinezoo.sourceafis.FingerprintTemplate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keyed by the Base64 string itself: hashing it costs far less than the decode a hit saves
+public class TemplateCache {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024;
+
+    public static class CachedTemplate {
+        public final byte[] raw;
+        private volatile FingerprintTemplate parsed;
+
+        CachedTemplate(byte[] raw) {
+            this.raw = raw;
+        }
+
+        public FingerprintTemplate template() {
+            FingerprintTemplate t = parsed;
+            if (t == null) {
+                t = FingerprintCompatibility.importTemplate(raw);
+                parsed = t;
+            }
+            return t;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedTemplate> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public TemplateCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public TemplateCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public CachedTemplate get(String templateBase64) {
+        synchronized (this) {
+            CachedTemplate cached = entries.get(templateBase64);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        byte[] raw = android.util.Base64.decode(templateBase64, android.util.Base64.NO_WRAP);
+        if (raw == null || raw.length == 0) {
+            throw new IllegalArgumentException("Empty template");
+        }
+        CachedTemplate created = new CachedTemplate(raw);
+
+        synchronized (this) {
+            CachedTemplate raced = entries.get(templateBase64);
+            if (raced != null)
+                return raced;
+            entries.put(templateBase64, created);
+            bytes += footprint(templateBase64, created);
+            evict();
+        }
+        return created;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, CachedTemplate>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, CachedTemplate> eldest = it.next();
+            bytes -= footprint(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // The key string is held too, so it counts against the byte budget
+    private static long footprint(String key, CachedTemplate template) {
+        return key.length() + template.raw.length;
+    }
+}
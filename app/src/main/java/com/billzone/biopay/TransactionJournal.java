@@ -0,0 +1,560 @@
+package com.billzone.biopay;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Record: [length][crc32][seq][timestamp][payload], the CRC covering everything after it
+public class TransactionJournal {
+    private static final String TAG = "TransactionJournal";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_FILE = "acked";
+    private static final String DEAD_LETTER_FILE = "rejected";
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final int MAX_PAYLOAD = 64 * 1024;
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+    // Records outlive the authorisation, so card secrets never reach the journal
+    private static final String[] SENSITIVE_KEYS = { "track2", "pin", "pinBlock" };
+
+    public enum SyncPolicy {
+        // fsync after every record: nothing acknowledged to Flutter is lost on power failure
+        EVERY_RECORD,
+        // fsync once every syncEvery records and on roll/close; a power cut can lose the unsynced tail
+        BATCHED,
+        // leave it to the kernel; survives an app kill but not a power cut
+        NONE
+    }
+
+    public interface AppendCallback {
+        void onAppended(long seq);
+
+        void onError(String error);
+    }
+
+    public static class Record {
+        public final long seq;
+        public final long timestamp;
+        public final String payload;
+
+        Record(long seq, long timestamp, String payload) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final long firstSeq;
+        long lastSeq;
+        long size;
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+        }
+    }
+
+    private final File dir;
+    private final SyncPolicy syncPolicy;
+    private final int syncEvery;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final ExecutorService appender = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-append");
+        t.setDaemon(true);
+        return t;
+    });
+    private RandomAccessFile current;
+    private long nextSeq = 1;
+    private long ackedSeq = 0;
+    private int unsynced = 0;
+
+    private long appended = 0;
+    private long appendNanos = 0;
+    private long maxAppendNanos = 0;
+    private long compactedSegments = 0;
+    private long recoveryMs = 0;
+    private long recoveredRecords = 0;
+    private long truncatedBytes = 0;
+    private long deadLetters = 0;
+
+    public TransactionJournal(File dir, SyncPolicy syncPolicy, int syncEvery) throws IOException {
+        this.dir = dir;
+        this.syncPolicy = syncPolicy;
+        this.syncEvery = Math.max(1, syncEvery);
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        recover();
+    }
+
+    public synchronized long append(String payload) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        if (data.length > MAX_PAYLOAD)
+            throw new IOException("Journal record of " + data.length + " bytes is too large");
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || (segment.size + HEADER_BYTES + data.length > SEGMENT_BYTES && segment.lastSeq >= segment.firstSeq))
+            segment = roll();
+
+        long seq = nextSeq;
+        byte[] record = encode(seq, System.currentTimeMillis(), data);
+
+        current.seek(segment.size);
+        current.write(record);
+        if (syncPolicy == SyncPolicy.EVERY_RECORD || (syncPolicy == SyncPolicy.BATCHED && ++unsynced >= syncEvery)) {
+            current.getFD().sync();
+            unsynced = 0;
+        }
+        segment.size += record.length;
+        segment.lastSeq = seq;
+        nextSeq = seq + 1;
+
+        long elapsed = System.nanoTime() - start;
+        appended++;
+        appendNanos += elapsed;
+        maxAppendNanos = Math.max(maxAppendNanos, elapsed);
+        return seq;
+    }
+
+    // Appends on the journal thread, in the order the calls were made; the callback runs there too
+    public void appendAsync(String payload, AppendCallback callback) {
+        try {
+            appender.execute(() -> {
+                long seq;
+                try {
+                    seq = append(payload);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Append failed", e);
+                    callback.onError(e.getMessage());
+                    return;
+                }
+                callback.onAppended(seq);
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onError("Transaction journal closed");
+        }
+    }
+
+    public synchronized void sync() throws IOException {
+        if (current != null && unsynced > 0) {
+            current.getFD().sync();
+            unsynced = 0;
+        }
+    }
+
+    // Unacknowledged records in sequence order, capped by count and total payload size
+    public synchronized List<Record> readPending(int maxRecords, int maxBytes) throws IOException {
+        List<Record> pending = new ArrayList<>();
+        int bytes = 0;
+        for (Segment segment : segments) {
+            if (segment.lastSeq <= ackedSeq)
+                continue;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+                long offset = 0;
+                while (offset < segment.size) {
+                    int length = in.readInt();
+                    in.readInt();
+                    long seq = in.readLong();
+                    long timestamp = in.readLong();
+                    offset += HEADER_BYTES + length;
+                    if (seq <= ackedSeq) {
+                        skipFully(in, length);
+                        continue;
+                    }
+                    if (!pending.isEmpty() && (pending.size() >= maxRecords || bytes + length > maxBytes))
+                        return pending;
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    pending.add(new Record(seq, timestamp, new String(data, StandardCharsets.UTF_8)));
+                    bytes += length;
+                }
+            }
+        }
+        return pending;
+    }
+
+    public synchronized void acknowledge(long seq) throws IOException {
+        seq = Math.min(seq, nextSeq - 1);
+        if (seq <= ackedSeq)
+            return;
+        ackedSeq = seq;
+        writeAck();
+        compact();
+    }
+
+    // Keeps a copy of a record the host will never accept; the caller acknowledges it afterwards
+    public synchronized void deadLetter(Record record) throws IOException {
+        File file = new File(dir, DEAD_LETTER_FILE);
+        boolean created = !file.exists();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(encode(record.seq, record.timestamp, record.payload.getBytes(StandardCharsets.UTF_8)));
+            out.getFD().sync();
+        }
+        if (created)
+            FileSync.syncDirectory(dir);
+        deadLetters++;
+        Log.e(TAG, "Record " + record.seq + " moved to the dead-letter file");
+    }
+
+    // Dead-lettered records in the order they were rejected, stopping at a torn tail
+    public synchronized List<Record> readDeadLetters(int maxRecords) throws IOException {
+        List<Record> records = new ArrayList<>();
+        File file = new File(dir, DEAD_LETTER_FILE);
+        if (!file.exists())
+            return records;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long remaining = file.length();
+            byte[] header = new byte[HEADER_BYTES];
+            while (records.size() < maxRecords && remaining >= HEADER_BYTES) {
+                in.readFully(header);
+                int length = getInt(header, 0);
+                if (length < 0 || length > MAX_PAYLOAD || HEADER_BYTES + length > remaining)
+                    break;
+                byte[] data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(header, 8, HEADER_BYTES - 8);
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != getInt(header, 4))
+                    break;
+                records.add(new Record(getLong(header, 8), getLong(header, 16), new String(data, StandardCharsets.UTF_8)));
+                remaining -= HEADER_BYTES + length;
+            }
+        }
+        return records;
+    }
+
+    public synchronized void clearDeadLetters() {
+        File file = new File(dir, DEAD_LETTER_FILE);
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "Cannot delete " + file);
+        deadLetters = 0;
+    }
+
+    public synchronized long pendingCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            if (segment.lastSeq > ackedSeq)
+                count += segment.lastSeq - Math.max(ackedSeq + 1, segment.firstSeq) + 1;
+        }
+        return count;
+    }
+
+    // Lets queued appends finish, then syncs and closes the open segment
+    public void close() {
+        appender.shutdown();
+        try {
+            if (!appender.awaitTermination(5, TimeUnit.SECONDS))
+                Log.e(TAG, "Queued appends still running at close");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSegment();
+    }
+
+    private synchronized void closeSegment() {
+        try {
+            if (current != null) {
+                current.getFD().sync();
+                current.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Close failed", e);
+        }
+        current = null;
+    }
+
+    // Removes the sensitive keys at any depth and returns how many were dropped
+    public static int stripSensitive(JSONObject object) {
+        int removed = 0;
+        List<String> keys = new ArrayList<>();
+        for (Iterator<String> it = object.keys(); it.hasNext(); )
+            keys.add(it.next());
+        for (String key : keys) {
+            if (isSensitive(key)) {
+                object.remove(key);
+                removed++;
+            } else {
+                removed += stripValue(object.opt(key));
+            }
+        }
+        return removed;
+    }
+
+    private static int stripValue(Object value) {
+        if (value instanceof JSONObject)
+            return stripSensitive((JSONObject) value);
+        int removed = 0;
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++)
+                removed += stripValue(array.opt(i));
+        }
+        return removed;
+    }
+
+    private static boolean isSensitive(String key) {
+        for (String sensitive : SENSITIVE_KEYS) {
+            if (sensitive.equalsIgnoreCase(key))
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("syncPolicy", syncPolicy.name());
+        stats.put("segments", segments.size());
+        stats.put("nextSeq", nextSeq);
+        stats.put("ackedSeq", ackedSeq);
+        stats.put("pending", pendingCount());
+        stats.put("appended", appended);
+        stats.put("avgAppendUs", appended > 0 ? appendNanos / appended / 1000.0 : 0.0);
+        stats.put("maxAppendUs", maxAppendNanos / 1000.0);
+        stats.put("compactedSegments", compactedSegments);
+        stats.put("recoveryMs", recoveryMs);
+        stats.put("recoveredRecords", recoveredRecords);
+        stats.put("truncatedBytes", truncatedBytes);
+        stats.put("deadLetters", deadLetters);
+        return stats;
+    }
+
+    private Segment roll() throws IOException {
+        if (current != null) {
+            current.getFD().sync();
+            current.close();
+            unsynced = 0;
+        }
+        Segment segment = new Segment(new File(dir, String.format(Locale.US, "%016d%s", nextSeq, SEGMENT_SUFFIX)), nextSeq);
+        current = new RandomAccessFile(segment.file, "rw");
+        current.setLength(0);
+        FileSync.syncDirectory(dir);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void compact() {
+        long before = compactedSegments;
+        while (!segments.isEmpty() && segments.get(0).lastSeq <= ackedSeq) {
+            Segment segment = segments.get(0);
+            boolean active = segments.size() == 1 && current != null;
+            if (active && segment.lastSeq < segment.firstSeq)
+                break;
+            if (active) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Close failed", e);
+                }
+                current = null;
+                unsynced = 0;
+            }
+            if (!segment.file.delete())
+                Log.e(TAG, "Cannot delete " + segment.file);
+            segments.remove(0);
+            compactedSegments++;
+        }
+        if (compactedSegments != before)
+            FileSync.syncDirectory(dir);
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        readAck();
+        File[] files = dir.listFiles();
+        List<Segment> found = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX))
+                    continue;
+                try {
+                    found.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        Collections.sort(found, (a, b) -> Long.compare(a.firstSeq, b.firstSeq));
+
+        long expected = -1;
+        boolean removed = false;
+        for (Segment segment : found) {
+            if (expected != -1 && segment.firstSeq != expected)
+                Log.e(TAG, "Sequence gap before " + segment.file.getName() + ", expected " + expected);
+            scan(segment);
+            if (segment.size == 0) {
+                if (!segment.file.delete())
+                    Log.e(TAG, "Cannot delete " + segment.file);
+                removed = true;
+                continue;
+            }
+            segments.add(segment);
+            expected = segment.lastSeq + 1;
+        }
+        if (removed)
+            FileSync.syncDirectory(dir);
+
+        deadLetters = readDeadLetters(Integer.MAX_VALUE).size();
+
+        nextSeq = ackedSeq + 1;
+        if (!segments.isEmpty())
+            nextSeq = Math.max(nextSeq, segments.get(segments.size() - 1).lastSeq + 1);
+        compact();
+        // New records always start a fresh segment so nothing is ever appended after a repaired tail
+        recoveryMs = System.currentTimeMillis() - start;
+        Log.d(TAG, "Recovered " + recoveredRecords + " records in " + segments.size() + " segments, pending "
+                + pendingCount() + ", " + recoveryMs + " ms");
+    }
+
+    // Walks a segment's records, truncating the file at the first one that is short, corrupt or out of sequence
+    private void scan(Segment segment) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+            long fileLength = raf.length();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            byte[] header = new byte[HEADER_BYTES];
+            byte[] data = new byte[1024];
+            long offset = 0;
+            long expected = segment.firstSeq;
+            while (offset + HEADER_BYTES <= fileLength) {
+                in.readFully(header);
+                int length = getInt(header, 0);
+                if (length < 0 || length > MAX_PAYLOAD || offset + HEADER_BYTES + length > fileLength)
+                    break;
+                if (getLong(header, 8) != expected)
+                    break;
+                if (data.length < length)
+                    data = new byte[length];
+                in.readFully(data, 0, length);
+                crc.reset();
+                crc.update(header, 8, HEADER_BYTES - 8);
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != getInt(header, 4))
+                    break;
+                offset += HEADER_BYTES + length;
+                segment.lastSeq = expected++;
+                recoveredRecords++;
+            }
+            if (offset < fileLength) {
+                Log.e(TAG, "Truncating " + segment.file.getName() + " at " + offset + " of " + fileLength);
+                truncatedBytes += fileLength - offset;
+                raf.setLength(offset);
+                raf.getFD().sync();
+            }
+            segment.size = offset;
+        }
+    }
+
+    private void readAck() {
+        File file = new File(dir, ACK_FILE);
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            long seq = in.readLong();
+            int check = in.readInt();
+            crc.reset();
+            crc.update(longBytes(seq));
+            if ((int) crc.getValue() == check)
+                ackedSeq = seq;
+            else
+                Log.e(TAG, "Ack file corrupt, resending from the start");
+        } catch (IOException e) {
+            Log.e(TAG, "Ack file unreadable, resending from the start", e);
+        }
+    }
+
+    private void writeAck() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(ackedSeq);
+        crc.reset();
+        crc.update(longBytes(ackedSeq));
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File file = new File(dir, ACK_FILE);
+        File tmp = new File(dir, ACK_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(bytes.toByteArray());
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        FileSync.syncDirectory(dir);
+    }
+
+    // [payload length][CRC32 of the rest][sequence][timestamp][payload]
+    private byte[] encode(long seq, long timestamp, byte[] data) {
+        byte[] record = new byte[HEADER_BYTES + data.length];
+        putInt(record, 0, data.length);
+        putLong(record, 8, seq);
+        putLong(record, 16, timestamp);
+        System.arraycopy(data, 0, record, HEADER_BYTES, data.length);
+        crc.reset();
+        crc.update(record, 8, record.length - 8);
+        putInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new IOException("Segment ended early");
+            n -= skipped;
+        }
+    }
+
+    private static byte[] longBytes(long v) {
+        byte[] b = new byte[8];
+        putLong(b, 0, v);
+        return b;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,148 @@
+package com.billzone.biopay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TransactionTimeline {
+    private static final int DEFAULT_CAPACITY = 50;
+
+    public enum Phase {
+        SEARCH_START,
+        CARD_DETECTED,
+        CARD_RESET,
+        AMOUNT_COMMITTED,
+        KERNEL_STARTED,
+        APP_SELECTED,
+        CARD_NUMBER_CONFIRMED,
+        PIN_PAD_LAUNCHED,
+        PIN_ENTERED,
+        ONLINE_PROC,
+        DATA_DELIVERED
+    }
+
+    public static class Timeline {
+        final long startedAtMs = System.currentTimeMillis();
+        final long[] stamps = new long[Phase.values().length];
+        volatile String entryMode = "";
+        volatile String outcome = "";
+
+        // Keeps the first stamp of a phase, so PIN retries report time to the first prompt
+        public void mark(Phase phase) {
+            synchronized (stamps) {
+                if (stamps[phase.ordinal()] == 0)
+                    stamps[phase.ordinal()] = System.nanoTime();
+            }
+        }
+
+        public void setEntryMode(String entryMode) {
+            this.entryMode = entryMode;
+        }
+
+        long[] snapshot() {
+            synchronized (stamps) {
+                return stamps.clone();
+            }
+        }
+    }
+
+    private final Timeline[] ring;
+    private int next = 0;
+    private int size = 0;
+
+    public TransactionTimeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransactionTimeline(int capacity) {
+        this.ring = new Timeline[capacity];
+    }
+
+    public Timeline begin() {
+        Timeline timeline = new Timeline();
+        timeline.mark(Phase.SEARCH_START);
+        return timeline;
+    }
+
+    public synchronized void finish(Timeline timeline, String outcome) {
+        if (timeline == null || !timeline.outcome.isEmpty())
+            return;
+        timeline.outcome = outcome;
+        ring[next] = timeline;
+        next = (next + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+    }
+
+    public synchronized Map<String, Object> export() {
+        Phase[] phases = Phase.values();
+        List<List<Double>> sincePrevious = new ArrayList<>();
+        List<List<Double>> sinceStart = new ArrayList<>();
+        for (int p = 0; p < phases.length; p++) {
+            sincePrevious.add(new ArrayList<>());
+            sinceStart.add(new ArrayList<>());
+        }
+
+        List<Map<String, Object>> recent = new ArrayList<>();
+        for (int k = 0; k < size; k++) {
+            Timeline t = ring[(next - size + k + ring.length) % ring.length];
+            long[] stamps = t.snapshot();
+            long start = stamps[0];
+            long previous = start;
+            Map<String, Object> offsets = new HashMap<>();
+            for (int p = 1; p < phases.length; p++) {
+                if (stamps[p] == 0)
+                    continue;
+                sincePrevious.get(p).add((stamps[p] - previous) / 1e6);
+                sinceStart.get(p).add((stamps[p] - start) / 1e6);
+                offsets.put(phases[p].name(), (stamps[p] - start) / 1_000_000);
+                previous = stamps[p];
+            }
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("startedAtMs", t.startedAtMs);
+            entry.put("entryMode", t.entryMode);
+            entry.put("outcome", t.outcome);
+            entry.put("offsetsMs", offsets);
+            recent.add(entry);
+        }
+
+        Map<String, Object> perPhase = new HashMap<>();
+        for (int p = 1; p < phases.length; p++) {
+            if (sincePrevious.get(p).isEmpty())
+                continue;
+            Map<String, Object> s = new HashMap<>();
+            s.put("count", sincePrevious.get(p).size());
+            s.put("phaseMs", percentiles(sincePrevious.get(p)));
+            s.put("elapsedMs", percentiles(sinceStart.get(p)));
+            perPhase.put(phases[p].name(), s);
+        }
+
+        Map<String, Object> export = new HashMap<>();
+        export.put("timelines", size);
+        export.put("capacity", ring.length);
+        export.put("phases", perPhase);
+        export.put("recent", recent);
+        return export;
+    }
+
+    private static Map<String, Object> percentiles(List<Double> values) {
+        double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        Map<String, Object> out = new HashMap<>();
+        out.put("p50", rank(sorted, 0.50));
+        out.put("p95", rank(sorted, 0.95));
+        out.put("p99", rank(sorted, 0.99));
+        out.put("max", sorted[sorted.length - 1]);
+        return out;
+    }
+
+    // Nearest-rank percentile
+    private static double rank(double[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
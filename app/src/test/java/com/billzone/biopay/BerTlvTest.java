@@ -0,0 +1,193 @@
+package com.billzone.biopay;
+
+import static com.billzone.biopay.TestSupport.concat;
+import static com.billzone.biopay.TestSupport.expectRejected;
+import static com.billzone.biopay.TestSupport.filled;
+import static com.billzone.biopay.TestSupport.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class BerTlvTest {
+
+    @Test
+    public void parsesTwoAndThreeByteTags() {
+        // 9F26 (two bytes) and DF8101 (three bytes, continuation bit on the second byte)
+        byte[] data = hex("9F2608A1B2C3D4E5F60718" + "DF810102BEEF");
+        BerTlv tlv = BerTlv.parse(data);
+
+        assertEquals(2, tlv.size());
+        assertEquals(0x9F26, tlv.tagAt(0));
+        assertEquals(0xDF8101, tlv.tagAt(1));
+        assertArrayEquals(hex("A1B2C3D4E5F60718"), tlv.valueBytes(0x9F26));
+        assertArrayEquals(hex("BEEF"), tlv.valueBytes(0xDF8101));
+    }
+
+    @Test
+    public void descendsIntoConstructedTags() {
+        byte[] data = hex("7008" + "5A024012" + "5F340101");
+        BerTlv tlv = BerTlv.parse(data);
+
+        assertTrue(tlv.has(0x70));
+        assertTrue(tlv.has(0x5A));
+        assertEquals(1, tlv.bcdValue(0x5F34));
+        assertEquals(8, tlv.valueLength(0x70));
+    }
+
+    @Test
+    public void skipsPaddingBetweenElements() {
+        BerTlv tlv = BerTlv.parse(hex("00FF9501800000FF"));
+        assertEquals(1, tlv.size());
+        assertEquals(0x80, tlv.longValue(0x95));
+    }
+
+    @Test
+    public void readsLongFormLengths() {
+        byte[] short81 = filled(200, (byte) 0x11);
+        byte[] long82 = filled(300, (byte) 0x22);
+        byte[] data = concat(hex("9F4681C8"), short81, hex("9F4882012C"), long82);
+        BerTlv tlv = BerTlv.parse(data);
+
+        assertEquals(200, tlv.valueLength(0x9F46));
+        assertEquals(300, tlv.valueLength(0x9F48));
+        assertArrayEquals(long82, tlv.valueBytes(0x9F48));
+        assertEquals(data.length - 300, tlv.valueOffset(0x9F48));
+    }
+
+    @Test
+    public void rejectsTruncatedInput() {
+        String[] truncated = {
+                "9F", // tag continuation missing
+                "9F26", // length missing
+                "9F2608A1B2", // value shorter than its length
+                "9F2682", // long-form length bytes missing
+                "9F268201", // long-form length cut short
+                "7005" + "5A034012", // inner element overruns the outer
+        };
+        for (String input : truncated) {
+            try {
+                BerTlv.parse(hex(input));
+                fail("Accepted truncated " + input);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsIndefiniteAndOversizedLengths() {
+        expectRejected(() -> BerTlv.parse(hex("708000")), null);
+        expectRejected(() -> BerTlv.parse(hex("9F268401000000")), null);
+    }
+
+    @Test
+    public void parsesAWindowOfALargerBuffer() {
+        byte[] data = hex("DEAD" + "5F2A020566" + "BEEF");
+        BerTlv tlv = BerTlv.parse(data, 2, 5);
+        assertEquals(1, tlv.size());
+        assertEquals(566, tlv.bcdValue(0x5F2A));
+    }
+
+    @Test
+    public void absentTagsReportMissing() {
+        BerTlv tlv = BerTlv.parse(hex("9A03260418"));
+        assertFalse(tlv.has(0x9F02));
+        assertEquals(-1, tlv.find(0x9F02));
+        assertEquals(-1, tlv.valueOffset(0x9F02));
+        assertEquals(-1, tlv.longValue(0x9F02));
+        assertEquals(-1, tlv.bcdValue(0x9F02));
+        assertNull(tlv.value(0x9F02));
+        assertNull(tlv.valueBytes(0x9F02));
+    }
+
+    @Test
+    public void bcdValueRejectsNonDecimalNibbles() {
+        BerTlv tlv = BerTlv.parse(hex("5F34011A"));
+        assertEquals(-1, tlv.bcdValue(0x5F34));
+        assertEquals(0x1A, tlv.longValue(0x5F34));
+    }
+
+    @Test
+    public void buildThenParseRoundTrips() {
+        byte[] small = hex("000000010000");
+        byte[] medium = filled(129, (byte) 0x33);
+        byte[] large = filled(70000, (byte) 0x44);
+        byte[] data = new BerTlv.Builder(8)
+                .add(0x9F02, small)
+                .add(0x5F34, hex("01"))
+                .add(0xDF8101, medium)
+                .add(0x9F4B, large)
+                .add(0x95, new byte[0])
+                .toByteArray();
+        BerTlv tlv = BerTlv.parse(data);
+
+        assertEquals(5, tlv.size());
+        assertArrayEquals(small, tlv.valueBytes(0x9F02));
+        assertArrayEquals(medium, tlv.valueBytes(0xDF8101));
+        assertArrayEquals(large, tlv.valueBytes(0x9F4B));
+        assertEquals(0, tlv.valueLength(0x95));
+        // 70000 needs the three byte 83 form
+        assertEquals((byte) 0x83, data[tlv.valueOffset(0x9F4B) - 4]);
+    }
+
+    @Test
+    public void builderCopiesOnlyTagsThatArePresent() {
+        BerTlv source = BerTlv.parse(hex("9F2701809F3602001C"));
+        byte[] copied = new BerTlv.Builder()
+                .copy(source, 0x9F36)
+                .copy(source, 0x9F10)
+                .add(0x9F27, source.value(0x9F27))
+                .toByteArray();
+        assertArrayEquals(hex("9F3602001C" + "9F270180"), copied);
+    }
+
+    @Test
+    public void panSequenceNumberDecodesAsBcd() {
+        // Field 55 as the kernel packs it; the old substring(4, 8) read "0101" and reported PSN 01 as 257
+        byte[] field55 = hex("9F2701805F3401019F360200A1");
+        long psn = BerTlv.parse(field55).bcdValue(0x5F34);
+        assertEquals("001", String.format("%03d", psn));
+
+        assertEquals("012", String.format("%03d", BerTlv.parse(hex("5F340112")).bcdValue(0x5F34)));
+    }
+
+    @Test
+    public void parsesField55Quickly() {
+        byte[] field55 = new BerTlv.Builder()
+                .add(0x9F26, filled(8, (byte) 0xA5))
+                .add(0x9F27, hex("80"))
+                .add(0x9F10, filled(18, (byte) 0x06))
+                .add(0x9F37, hex("1A2B3C4D"))
+                .add(0x9F36, hex("001C"))
+                .add(0x95, hex("0000008000"))
+                .add(0x9A, hex("261018"))
+                .add(0x9C, hex("00"))
+                .add(0x9F02, hex("000000010000"))
+                .add(0x5F2A, hex("0566"))
+                .add(0x82, hex("3900"))
+                .add(0x9F1A, hex("0566"))
+                .add(0x84, hex("A0000000041010"))
+                .add(0x5F34, hex("01"))
+                .toByteArray();
+
+        int iterations = 200000;
+        long sink = 0;
+        for (int i = 0; i < iterations / 10; i++) {
+            sink += BerTlv.parse(field55).bcdValue(0x5F34);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += BerTlv.parse(field55).bcdValue(0x5F34);
+        }
+        long perParseNs = (System.nanoTime() - start) / iterations;
+
+        assertEquals(iterations + iterations / 10, sink);
+        // Generous bound: this is a regression tripwire, not a measurement
+        assertTrue("Parse took " + perParseNs + " ns", perParseNs < 50000);
+    }
+}
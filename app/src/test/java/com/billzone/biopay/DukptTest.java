@@ -0,0 +1,137 @@
+package com.billzone.biopay;
+
+import static com.billzone.biopay.TestSupport.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+public class DukptTest {
+    // ANSI X9.24-1 sample data
+    private static final byte[] BDK = hex("0123456789ABCDEFFEDCBA9876543210");
+    private static final byte[] INITIAL_KSN = hex("FFFF9876543210E00000");
+    private static final byte[] IPEK = hex("6AC292FAA1315B4D858AB3A3D7D5933A");
+    private static final String PIN = "1234";
+    private static final String PAN = "4012345678909";
+    private static final String[] PIN_BLOCKS = {
+            "1B9C1845EB993A7A", "10A01C8D02C69107", "18DC07B94797B466",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void selfTestPasses() {
+        assertTrue(Dukpt.selfTest());
+    }
+
+    @Test
+    public void derivesTheSampleIpek() throws Exception {
+        assertArrayEquals(IPEK, Dukpt.deriveIpek(BDK, INITIAL_KSN));
+    }
+
+    @Test
+    public void format0BlockMatchesTheSample() {
+        byte[] clear = PinBlock.format0(PIN, PAN);
+        assertEquals("041274EDCBA9876F", Dukpt.hexString(clear));
+        assertEquals(PIN, PinBlock.pinFromFormat0(clear, PAN));
+    }
+
+    @Test
+    public void format4BlockDeciphersToTheIsoFields() throws Exception {
+        byte[] key = hex("00112233445566778899AABBCCDDEEFF");
+        byte[] fill = hex("0123456789ABCDEF");
+        SecureRandom fixedFill = new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                System.arraycopy(fill, 0, bytes, 0, bytes.length);
+            }
+        };
+        byte[] block = PinBlock.encryptFormat4("1234", "432198765432109870", key, fixedFill);
+
+        // ISO 9564-1 format 4: control 4, length 4, PIN, A fill to 16 nibbles, then the random half;
+        // PAN field: 18 - 12 = 6, the PAN, zero padding
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+        byte[] intermediate = aes.doFinal(block);
+        byte[] panField = hex("64321987654321098700000000000000");
+        for (int i = 0; i < 16; i++)
+            intermediate[i] ^= panField[i];
+        assertEquals("441234AAAAAAAAAA0123456789ABCDEF", Dukpt.hexString(aes.doFinal(intermediate)));
+
+        // Twelve-digit PAN: length nibble 0
+        block = PinBlock.encryptFormat4("123456789012", "123456789012", key, fixedFill);
+        intermediate = aes.doFinal(block);
+        panField = hex("01234567890120000000000000000000");
+        for (int i = 0; i < 16; i++)
+            intermediate[i] ^= panField[i];
+        assertEquals("4C123456789012AA0123456789ABCDEF", Dukpt.hexString(aes.doFinal(intermediate)));
+    }
+
+    @Test
+    public void encipheresTheSamplePinBlocks() throws Exception {
+        Dukpt dukpt = new Dukpt(null);
+        dukpt.loadInitialKey(IPEK, INITIAL_KSN);
+        byte[] clear = PinBlock.format0(PIN, PAN);
+        for (int i = 0; i < PIN_BLOCKS.length; i++) {
+            Dukpt.Result r = dukpt.encryptPinBlock(clear);
+            assertEquals(PIN_BLOCKS[i], Dukpt.hexString(r.pinBlock));
+            assertEquals("FFFF9876543210E0000" + (i + 1), Dukpt.hexString(r.ksn));
+        }
+    }
+
+    @Test
+    public void restartContinuesFromTheNextCounter() throws Exception {
+        File state = new File(folder.getRoot(), "dukpt.bin");
+        byte[] clear = PinBlock.format0(PIN, PAN);
+
+        Dukpt first = new Dukpt(state);
+        first.loadInitialKey(IPEK, INITIAL_KSN);
+        assertEquals(PIN_BLOCKS[0], Dukpt.hexString(first.encryptPinBlock(clear).pinBlock));
+        // Let the background step persist the advanced registers before "restarting"
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Integer.valueOf(2).equals(first.getStats().get("counter")) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        Dukpt second = new Dukpt(state);
+        Dukpt.Result r = second.encryptPinBlock(clear);
+        assertEquals(PIN_BLOCKS[1], Dukpt.hexString(r.pinBlock));
+        assertEquals("FFFF9876543210E00002", Dukpt.hexString(r.ksn));
+    }
+
+    @Test
+    public void usedFlagOnDiskSkipsTheKey() throws Exception {
+        File state = new File(folder.getRoot(), "dukpt.bin");
+        Dukpt dukpt = new Dukpt(state);
+        dukpt.loadInitialKey(IPEK, INITIAL_KSN);
+
+        // As markUsed leaves it when the process dies before the background step
+        try (RandomAccessFile raf = new RandomAccessFile(state, "rw")) {
+            raf.seek(4 + 10 + 4);
+            raf.writeBoolean(true);
+        }
+        Dukpt restarted = new Dukpt(state);
+        Dukpt.Result r = restarted.encryptPinBlock(PinBlock.format0(PIN, PAN));
+        assertEquals(PIN_BLOCKS[1], Dukpt.hexString(r.pinBlock));
+    }
+
+    @Test
+    public void reportsSelfTestAndCounterInStats() throws Exception {
+        Dukpt dukpt = new Dukpt(new File(folder.getRoot(), "dukpt.bin"));
+        assertFalse((Boolean) dukpt.getStats().get("loaded"));
+        dukpt.loadInitialKey(IPEK, INITIAL_KSN);
+        assertTrue((Boolean) dukpt.getStats().get("selfTest"));
+        assertEquals(1, dukpt.getStats().get("counter"));
+    }
+}
@@ -0,0 +1,160 @@
+package com.billzone.biopay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Stand-in acquirer host on a loopback socket, answering each 0200 with a 0210 that echoes the matching keys
+public class Iso8583LoopbackHostTest {
+    private static final int[] ECHOED = { 2, 3, 4, 11, 41, 49 };
+
+    private Iso8583Spec spec;
+    private ServerSocket server;
+    private Thread host;
+    private final AtomicReference<Throwable> hostError = new AtomicReference<>();
+
+    @Before
+    public void startHost() throws Exception {
+        spec = Iso8583PackerTest.bundledSpec();
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        host = new Thread(this::serve, "iso-loopback-host");
+        host.start();
+    }
+
+    @After
+    public void stopHost() throws Exception {
+        server.close();
+        host.join(5000);
+    }
+
+    @Test
+    public void purchaseIsApprovedByTheHost() throws Exception {
+        try (Socket socket = connect()) {
+            Iso8583Packer packer = new Iso8583Packer(spec);
+            Iso8583Message response = exchange(socket, packer, Iso8583PackerTest.purchase());
+
+            assertEquals("0210", response.getMti());
+            assertEquals("00", response.getString(39));
+            assertEquals("A1B2C3", response.getString(38));
+            assertEquals("000123", response.getString(11));
+            assertEquals("5061234567890123456", response.getString(2));
+            assertEquals("2033ABCD", response.getString(41));
+        }
+        assertNull(hostError.get());
+    }
+
+    @Test
+    public void manyExchangesOnOneConnection() throws Exception {
+        int exchanges = 2000;
+        long start = System.nanoTime();
+        try (Socket socket = connect()) {
+            Iso8583Packer packer = new Iso8583Packer(spec);
+            Iso8583Message request = Iso8583PackerTest.purchase();
+            for (int i = 1; i <= exchanges; i++) {
+                String stan = String.format("%06d", i);
+                Iso8583Message response = exchange(socket, packer, request.set(11, stan));
+                assertEquals(stan, response.getString(11));
+                assertEquals("00", response.getString(39));
+            }
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertNull(hostError.get());
+        // Generous bound: this is a regression tripwire, not a measurement
+        assertTrue(exchanges + " exchanges took " + elapsedMs + " ms", elapsedMs < 20000);
+    }
+
+    @Test
+    public void hostDeclinesAMessageItCannotParse() throws Exception {
+        try (Socket socket = connect()) {
+            // A valid frame whose bitmap names field 5, which the spec does not define
+            byte[] body = new byte[] { '0', '2', '0', '0', 0x08, 0, 0, 0, 0, 0, 0, 0, '1' };
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[] { 0, (byte) body.length });
+            out.write(body);
+            out.flush();
+
+            Iso8583Message response = new Iso8583Packer(spec).unpack(readFrame(socket));
+            assertEquals("0210", response.getMti());
+            assertEquals("30", response.getString(39));
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        socket.setSoTimeout(5000);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private static Iso8583Message exchange(Socket socket, Iso8583Packer packer, Iso8583Message request)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(packer.pack(request));
+        out.flush();
+        return packer.unpack(readFrame(socket));
+    }
+
+    private static byte[] readFrame(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int length = in.readUnsignedShort();
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+        in.readFully(frame, 2, length);
+        return frame;
+    }
+
+    private void serve() {
+        Iso8583Packer packer = new Iso8583Packer(spec);
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    byte[] frame;
+                    try {
+                        frame = readFrame(socket);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    out.write(packer.pack(respond(packer, frame)));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    hostError.set(e);
+            } catch (RuntimeException e) {
+                hostError.set(e);
+            }
+        }
+    }
+
+    private static Iso8583Message respond(Iso8583Packer packer, byte[] frame) {
+        Iso8583Message request;
+        try {
+            request = packer.unpack(frame);
+        } catch (IllegalArgumentException e) {
+            // Format error
+            return new Iso8583Message("0210").set(39, "30");
+        }
+        Iso8583Message response = new Iso8583Message("0210");
+        for (int field : ECHOED) {
+            if (request.has(field))
+                response.set(field, request.getBytes(field));
+        }
+        return response.set(38, "A1B2C3").set(39, "00");
+    }
+}
@@ -0,0 +1,246 @@
+package com.billzone.biopay;
+
+import static com.billzone.biopay.TestSupport.concat;
+import static com.billzone.biopay.TestSupport.expectRejected;
+import static com.billzone.biopay.TestSupport.hex;
+import static com.billzone.biopay.TestSupport.repeat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Iso8583PackerTest {
+    private Iso8583Packer packer;
+
+    // The spec the app ships; Gradle runs unit tests from the module directory
+    static Iso8583Spec bundledSpec() throws IOException, JSONException {
+        File asset = new File("src/main/assets/iso8583_spec.json");
+        if (!asset.exists())
+            asset = new File("app/src/main/assets/iso8583_spec.json");
+        return Iso8583Spec.compile(new JSONObject(new String(Files.readAllBytes(asset.toPath()),
+                StandardCharsets.UTF_8)));
+    }
+
+    static Iso8583Message purchase() {
+        Map<String, String> card = new HashMap<>();
+        card.put("pan", "5061234567890123456");
+        card.put("expiry", "2812");
+        card.put("track2", "5061234567890123456D28121010000000000");
+        card.put("cardSequenceNumber", "001");
+        card.put("posDataCode", "510101511344101");
+        card.put("pinBlock", "0123456789ABCDEF");
+        card.put("iccData", "9F2608A1B2C3D4E5F607089F2701809F100706010A03A00000");
+        return new Iso8583Message("0200").setCardData(card)
+                .set(3, "000000")
+                .set(4, "000000001500")
+                .set(11, "000123")
+                .set(41, "2033ABCD")
+                .set(49, "566");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        packer = new Iso8583Packer(bundledSpec());
+    }
+
+    @Test
+    public void purchaseRoundTrips() {
+        Iso8583Message request = purchase();
+        byte[] packed = packer.pack(request);
+        Iso8583Message unpacked = packer.unpack(packed);
+
+        assertEquals("0200", unpacked.getMti());
+        for (int field = 2; field <= 128; field++) {
+            if (field == 65)
+                continue;
+            assertArrayEquals("Field " + field, request.getBytes(field), unpacked.getBytes(field));
+        }
+        assertArrayEquals(packed, packer.pack(unpacked));
+    }
+
+    @Test
+    public void writesTheLengthHeaderAndPrimaryBitmap() {
+        byte[] packed = packer.pack(new Iso8583Message("0800").set(11, "000001").set(41, "2033ABCD"));
+
+        assertEquals(packed.length - 2, ((packed[0] & 0xFF) << 8) | (packed[1] & 0xFF));
+        assertEquals("0800", new String(packed, 2, 4, StandardCharsets.US_ASCII));
+        // Fields 11 and 41 only: no secondary bitmap bit
+        assertArrayEquals(hex("0020000000800000"), Arrays.copyOfRange(packed, 6, 14));
+    }
+
+    @Test
+    public void padsFixedLengthFields() {
+        Iso8583Message unpacked = packer.unpack(packer.pack(new Iso8583Message("0200").set(4, "1500")
+                .set(41, "T1")));
+        assertEquals("000000001500", unpacked.getString(4));
+        assertEquals("T1      ", unpacked.getString(41));
+    }
+
+    @Test
+    public void addsTheSecondaryBitmapForFieldsAbove64() {
+        Iso8583Message message = purchase().set(128, repeat('0', 64));
+        byte[] packed = packer.pack(message);
+
+        byte[] bitmap = Arrays.copyOfRange(packed, 6, 22);
+        assertTrue("Bit 1 announces the secondary bitmap", (bitmap[0] & 0x80) != 0);
+        // Last byte covers fields 121 to 128: 123 (0x20) and 128 (0x01)
+        assertEquals(0x21, bitmap[15] & 0xFF);
+
+        Iso8583Message unpacked = packer.unpack(packed);
+        assertEquals(repeat('0', 64), unpacked.getString(128));
+        assertEquals("510101511344101", unpacked.getString(123));
+    }
+
+    @Test
+    public void secondaryBitmapIsOmittedWhenOnlyPrimaryFieldsArePresent() {
+        Iso8583Message message = purchase();
+        message.set(123, (byte[]) null);
+        byte[] packed = packer.pack(message);
+        assertEquals(0, packed[6] & 0x80);
+        assertFalse(packer.unpack(packed).has(123));
+    }
+
+    @Test
+    public void hexBitmapDialectRoundTrips() throws Exception {
+        Iso8583Packer hexPacker = new Iso8583Packer(Iso8583Spec.compile(new JSONObject(
+                "{\"version\":1,\"lengthHeader\":0,\"bitmap\":\"hex\",\"fields\":{"
+                        + "\"3\":{\"type\":\"n\",\"length\":6},\"100\":{\"type\":\"n\",\"length\":11,\"prefix\":2}}}")));
+        byte[] packed = hexPacker.pack(new Iso8583Message("0800").set(3, "990000").set(100, "12345"));
+        assertEquals("0800A0000000000000000000000010000000990000" + "0512345",
+                new String(packed, StandardCharsets.US_ASCII));
+        assertEquals("12345", hexPacker.unpack(packed).getString(100));
+    }
+
+    @Test
+    public void llvarOverflowIsRejectedWhenPacking() {
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(2, repeat('4', 20))), "limited to 19");
+    }
+
+    @Test
+    public void lllvarOverflowIsRejectedWhenPacking() {
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(55, new byte[511])), "limited to 510");
+    }
+
+    @Test
+    public void llvarOverflowIsRejectedWhenUnpacking() {
+        // Field 2 declares 20 digits against a limit of 19
+        byte[] body = concat(ascii("0200"), hex("4000000000000000"), ascii("20" + repeat('4', 20)));
+        expectRejected(() -> packer.unpack(withHeader(body)), "limited to 19");
+    }
+
+    @Test
+    public void lllvarOverflowIsRejectedWhenUnpacking() {
+        // Field 55 declares 511 bytes against a limit of 510
+        byte[] body = concat(ascii("0200"), hex("0000000000000200"), ascii("511"), new byte[511]);
+        expectRejected(() -> packer.unpack(withHeader(body)), "limited to 510");
+    }
+
+    @Test
+    public void nonDigitLengthPrefixIsRejected() {
+        byte[] body = concat(ascii("0200"), hex("4000000000000000"), ascii("1x4000"));
+        expectRejected(() -> packer.unpack(withHeader(body)), "bad length prefix");
+    }
+
+    @Test
+    public void badLengthHeaderIsRejected() {
+        byte[] packed = packer.pack(purchase());
+        packed[1]++;
+        expectRejected(() -> packer.unpack(packed), "Length header says");
+
+        byte[] shortByOne = Arrays.copyOf(packer.pack(purchase()), packed.length - 1);
+        expectRejected(() -> packer.unpack(shortByOne), "Length header says");
+
+        expectRejected(() -> packer.unpack(new byte[1]), "truncated");
+    }
+
+    @Test
+    public void bitmapNamingAnUndefinedFieldIsRejected() {
+        // Field 5 is not in the bundled spec
+        byte[] body = concat(ascii("0200"), hex("0800000000000000"), ascii("000000001500"));
+        expectRejected(() -> packer.unpack(withHeader(body)), "Field 5 is not in spec");
+    }
+
+    @Test
+    public void bitmapPromisingMoreFieldsThanSentIsRejected() {
+        byte[] body = concat(ascii("0200"), hex("3000000000000000"), ascii("000000"));
+        expectRejected(() -> packer.unpack(withHeader(body)), "truncated");
+    }
+
+    @Test
+    public void secondaryBitmapCutShortIsRejected() {
+        byte[] body = concat(ascii("0200"), hex("8000000000000000"), hex("0000"));
+        expectRejected(() -> packer.unpack(withHeader(body)), "truncated");
+    }
+
+    @Test
+    public void malformedHexBitmapIsRejected() throws Exception {
+        Iso8583Packer hexPacker = new Iso8583Packer(Iso8583Spec.compile(new JSONObject(
+                "{\"version\":1,\"lengthHeader\":0,\"bitmap\":\"hex\",\"fields\":{\"3\":{\"type\":\"n\",\"length\":6}}}")));
+        expectRejected(() -> hexPacker.unpack(ascii("08002000000000000G00990000")), "Bad hex digit");
+    }
+
+    @Test
+    public void trailingBytesAreRejected() {
+        byte[] packed = packer.pack(purchase());
+        byte[] padded = withHeader(concat(Arrays.copyOfRange(packed, 2, packed.length), ascii("X")));
+        expectRejected(() -> packer.unpack(padded), "trailing");
+    }
+
+    @Test
+    public void fieldContentIsChecked() {
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(4, "12a")), "invalid character");
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(52, new byte[7])), "must be 8 long");
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(5, "1")), "not in spec");
+        expectRejected(() -> packer.pack(new Iso8583Message("0200").set(41, "123456789")), "must be 8 long");
+    }
+
+    @Test
+    public void specRejectsImpossibleFields() {
+        String[] bad = {
+                "{\"version\":1,\"fields\":{\"65\":{\"type\":\"b\",\"length\":8}}}",
+                "{\"version\":1,\"fields\":{\"2\":{\"type\":\"n\",\"length\":19,\"prefix\":4}}}",
+                "{\"version\":1,\"fields\":{\"2\":{\"type\":\"n\",\"length\":100,\"prefix\":2}}}",
+                "{\"version\":1,\"fields\":{\"2\":{\"type\":\"q\",\"length\":19}}}",
+                "{\"version\":1,\"lengthHeader\":5,\"fields\":{}}",
+        };
+        for (String spec : bad) {
+            try {
+                Iso8583Spec.compile(new JSONObject(spec));
+                fail("Accepted " + spec);
+            } catch (JSONException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void statsCountPacksAndUnpacks() {
+        packer.unpack(packer.pack(purchase()));
+        Map<String, Object> stats = packer.getStats();
+        assertEquals(1L, stats.get("packCount"));
+        assertEquals(1L, stats.get("unpackCount"));
+        assertEquals("iso8583-1987-ascii", stats.get("spec"));
+    }
+
+    private static byte[] withHeader(byte[] body) {
+        return concat(new byte[] { (byte) (body.length >> 8), (byte) body.length }, body);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,206 @@
+package com.billzone.biopay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class JournalForwarderTest {
+
+    // Records every batch it is handed; failures are scripted per call
+    private static class FakeUploader implements JournalForwarder.Uploader {
+        final List<List<Long>> calls = Collections.synchronizedList(new ArrayList<List<Long>>());
+        final List<Long> stored = Collections.synchronizedList(new ArrayList<Long>());
+        volatile int failNext = 0;
+        volatile int refuseStatus = 0;
+        volatile long poisonSeq = -1;
+
+        @Override
+        public void upload(List<TransactionJournal.Record> batch) throws IOException {
+            List<Long> seqs = new ArrayList<>();
+            for (TransactionJournal.Record record : batch)
+                seqs.add(record.seq);
+            calls.add(seqs);
+            if (failNext > 0) {
+                failNext--;
+                throw new IOException("Connection reset");
+            }
+            if (refuseStatus != 0)
+                throw new JournalForwarder.RejectedException(refuseStatus, "HTTP " + refuseStatus);
+            if (seqs.contains(poisonSeq))
+                throw new JournalForwarder.RejectedException(422, "Record " + poisonSeq + " is malformed");
+            stored.addAll(seqs);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionJournal journal;
+    private JournalForwarder forwarder;
+    private FakeUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        journal = new TransactionJournal(folder.newFolder("journal"), TransactionJournal.SyncPolicy.NONE, 1);
+        forwarder = new JournalForwarder(journal);
+        uploader = new FakeUploader();
+    }
+
+    @After
+    public void tearDown() {
+        forwarder.shutdown(null);
+        journal.close();
+    }
+
+    @Test
+    public void forwardsEverythingInBatchesAndAcknowledges() throws Exception {
+        append(450);
+        forwarder.setUploader(uploader);
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 450L);
+
+        assertEquals(0L, journal.pendingCount());
+        assertEquals(3, uploader.calls.size());
+        assertEquals(200, uploader.calls.get(0).size());
+        assertEquals(200, uploader.calls.get(1).size());
+        assertEquals(50, uploader.calls.get(2).size());
+        for (int i = 0; i < 450; i++) {
+            assertEquals(i + 1, (long) uploader.stored.get(i));
+        }
+        assertEquals(450L, journal.getStats().get("ackedSeq"));
+    }
+
+    @Test
+    public void kickCoalescesRecordsThatArriveTogether() throws Exception {
+        // Let the immediate drain setUploader starts finish before the burst
+        append(1);
+        forwarder.setUploader(uploader);
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 1L);
+
+        for (int i = 0; i < 10; i++) {
+            journal.append("{}");
+            forwarder.kick();
+        }
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 11L);
+        assertEquals(2, uploader.calls.size());
+        assertEquals(10, uploader.calls.get(1).size());
+    }
+
+    @Test
+    public void transientFailureBacksOffAndRetryNowSkipsTheWait() throws Exception {
+        append(5);
+        uploader.failNext = 1;
+        forwarder.setUploader(uploader);
+        waitFor(() -> (Long) forwarder.getStats().get("failures") == 1L);
+
+        Map<String, Object> stats = forwarder.getStats();
+        assertEquals(1, stats.get("attempt"));
+        long wait = (Long) stats.get("nextRetryInMs");
+        assertTrue("First retry waits 1-2 s, got " + wait, wait > 0 && wait <= 2000);
+        assertEquals(5L, journal.pendingCount());
+
+        forwarder.retryNow();
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 5L);
+        assertEquals(0, forwarder.getStats().get("attempt"));
+        assertEquals(5, uploader.stored.size());
+    }
+
+    @Test
+    public void refusedRecordIsDeadLetteredAndTheRestMoveOn() throws Exception {
+        append(20);
+        uploader.poisonSeq = 7;
+        forwarder.setUploader(uploader);
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 19L);
+
+        assertEquals(0L, journal.pendingCount());
+        assertEquals(19, uploader.stored.size());
+        assertFalse(uploader.stored.contains(7L));
+        List<TransactionJournal.Record> dead = journal.readDeadLetters(10);
+        assertEquals(1, dead.size());
+        assertEquals(7, dead.get(0).seq);
+
+        Map<String, Object> stats = forwarder.getStats();
+        assertEquals(1L, stats.get("rejected"));
+        assertEquals(200, stats.get("batchLimit"));
+        // Bisection, not one retry per record
+        assertTrue("Took " + uploader.calls.size() + " uploads", uploader.calls.size() <= 12);
+    }
+
+    @Test
+    public void credentialRefusalParksInsteadOfRetrying() throws Exception {
+        append(3);
+        uploader.refuseStatus = 401;
+        forwarder.setUploader(uploader);
+        waitFor(() -> (Boolean) forwarder.getStats().get("parked"));
+
+        journal.append("{}");
+        forwarder.kick();
+        Thread.sleep(800);
+        assertEquals(1, uploader.calls.size());
+        assertEquals(4L, journal.pendingCount());
+        assertTrue(journal.readDeadLetters(10).isEmpty());
+
+        uploader.refuseStatus = 0;
+        forwarder.retryNow();
+        waitFor(() -> (Long) forwarder.getStats().get("recordsForwarded") == 4L);
+        assertEquals(false, forwarder.getStats().get("parked"));
+    }
+
+    @Test
+    public void backoffDoublesFromTwoSecondsUpToFiveMinutes() {
+        long previous = 0;
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long ceiling = JournalForwarder.backoffDelay(attempt, 1.0);
+            assertEquals(Math.min(300_000, 2000L << attempt), ceiling);
+            assertEquals(ceiling / 2, JournalForwarder.backoffDelay(attempt, 0.0));
+            assertTrue(ceiling > previous);
+            previous = ceiling;
+        }
+        assertEquals(300_000, JournalForwarder.backoffDelay(8, 1.0));
+        assertEquals(300_000, JournalForwarder.backoffDelay(40, 1.0));
+        assertEquals(150_000, JournalForwarder.backoffDelay(40, 0.0));
+    }
+
+    @Test
+    public void httpUploaderRefusesPlainHttp() {
+        new JournalForwarder.HttpUploader("HTTPS://host.example/journal", "T1");
+        for (String endpoint : new String[] { "http://host.example/journal", "ftp://host.example", "host.example", null }) {
+            try {
+                new JournalForwarder.HttpUploader(endpoint, "T1");
+                fail("Accepted " + endpoint);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+
+    private void append(int count) throws IOException {
+        for (int i = 1; i <= count; i++)
+            journal.append("{\"n\":" + i + "}");
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
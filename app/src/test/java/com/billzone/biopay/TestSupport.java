@@ -0,0 +1,57 @@
+package com.billzone.biopay;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+final class TestSupport {
+    private TestSupport() {
+    }
+
+    static byte[] hex(String s) {
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("Odd-length hex " + s);
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] out = new byte[length];
+        int p = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, p, part.length);
+            p += part.length;
+        }
+        return out;
+    }
+
+    static byte[] filled(int length, byte value) {
+        byte[] out = new byte[length];
+        Arrays.fill(out, value);
+        return out;
+    }
+
+    static String repeat(char c, int n) {
+        char[] out = new char[n];
+        Arrays.fill(out, c);
+        return new String(out);
+    }
+
+    // Fails unless the action throws IllegalArgumentException; a non-null reason must appear in its message
+    static void expectRejected(Runnable action, String reason) {
+        try {
+            action.run();
+            fail("Expected rejection" + (reason != null ? ": " + reason : ""));
+        } catch (IllegalArgumentException e) {
+            if (reason != null)
+                assertTrue(e.getMessage() + " does not mention " + reason, e.getMessage().contains(reason));
+        }
+    }
+}
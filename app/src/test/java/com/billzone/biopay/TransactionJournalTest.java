@@ -0,0 +1,244 @@
+package com.billzone.biopay;
+
+import static com.billzone.biopay.TestSupport.repeat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TransactionJournalTest {
+    private static final int HEADER_BYTES = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private TransactionJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("journal");
+        journal = open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void appendsAndReadsBackInOrder() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, journal.append(payload(i)));
+        }
+        List<TransactionJournal.Record> pending = journal.readPending(100, 1 << 20);
+        assertEquals(5, pending.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, pending.get(i).seq);
+            assertEquals(payload(i + 1), pending.get(i).payload);
+        }
+        assertEquals(2, journal.readPending(2, 1 << 20).size());
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnReopen() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            journal.append(payload(i));
+        journal.close();
+
+        // A kill in the middle of writing record 4: its header made it to disk, its payload did not
+        File segment = onlySegment();
+        long intact = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(intact);
+            raf.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 4 });
+        }
+
+        journal = open();
+        assertEquals(intact, segment.length());
+        assertEquals(16L, journal.getStats().get("truncatedBytes"));
+        assertEquals(3L, journal.pendingCount());
+        assertEquals(4, journal.append(payload(4)));
+        assertEquals(4, journal.readPending(100, 1 << 20).size());
+    }
+
+    @Test
+    public void corruptRecordCutsTheSegmentThere() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            journal.append(payload(i));
+        journal.close();
+
+        // Flip one payload byte of record 2; the CRC no longer matches, so 2 and everything after it go
+        File segment = onlySegment();
+        long second = HEADER_BYTES + payload(1).length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(second + HEADER_BYTES + 2);
+            int b = raf.read();
+            raf.seek(second + HEADER_BYTES + 2);
+            raf.write(b ^ 0x01);
+        }
+
+        journal = open();
+        assertEquals(second, segment.length());
+        List<TransactionJournal.Record> pending = journal.readPending(100, 1 << 20);
+        assertEquals(1, pending.size());
+        assertEquals(payload(1), pending.get(0).payload);
+        assertEquals(2, journal.append(payload(2)));
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws Exception {
+        // 60 KB records: a 1 MB segment holds 17 of them, so 40 records span three segments
+        String big = repeat('x', 60_000);
+        for (int i = 0; i < 40; i++)
+            journal.append(big);
+        assertEquals(3, segmentFiles().size());
+
+        journal.acknowledge(17);
+        assertEquals(2, segmentFiles().size());
+        assertEquals(23L, journal.pendingCount());
+        assertEquals(18, journal.readPending(1, 1 << 20).get(0).seq);
+
+        // A partial acknowledgement keeps the segment; the ack survives a reopen
+        journal.acknowledge(20);
+        assertEquals(2, segmentFiles().size());
+        journal.close();
+        journal = open();
+        assertEquals(20L, journal.pendingCount());
+        assertEquals(21, journal.readPending(1, 1 << 20).get(0).seq);
+        assertEquals(41, journal.append(payload(41)));
+
+        journal.acknowledge(Long.MAX_VALUE);
+        assertEquals(0L, journal.pendingCount());
+        assertEquals(41L, journal.getStats().get("ackedSeq"));
+    }
+
+    @Test
+    public void readPendingHonoursTheByteCapButAlwaysReturnsOne() throws Exception {
+        journal.append(repeat('a', 1000));
+        journal.append(repeat('b', 1000));
+        assertEquals(1, journal.readPending(100, 1500).size());
+        assertEquals(1, journal.readPending(100, 10).size());
+        assertEquals(2, journal.readPending(100, 2000).size());
+    }
+
+    @Test
+    public void deadLettersSurviveAReopen() throws Exception {
+        journal.append(payload(1));
+        journal.append(payload(2));
+        TransactionJournal.Record refused = journal.readPending(1, 1 << 20).get(0);
+        journal.deadLetter(refused);
+        journal.acknowledge(refused.seq);
+        journal.close();
+
+        journal = open();
+        assertEquals(1L, journal.getStats().get("deadLetters"));
+        List<TransactionJournal.Record> dead = journal.readDeadLetters(10);
+        assertEquals(1, dead.size());
+        assertEquals(1, dead.get(0).seq);
+        assertEquals(payload(1), dead.get(0).payload);
+        assertEquals(1L, journal.pendingCount());
+
+        journal.clearDeadLetters();
+        assertTrue(journal.readDeadLetters(10).isEmpty());
+    }
+
+    @Test
+    public void appendAsyncKeepsCallOrder() throws Exception {
+        int count = 500;
+        List<Long> seqs = Collections.synchronizedList(new ArrayList<Long>());
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 1; i <= count; i++) {
+            journal.appendAsync(payload(i), new TransactionJournal.AppendCallback() {
+                @Override
+                public void onAppended(long seq) {
+                    seqs.add(seq);
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, (long) seqs.get(i));
+        }
+        List<TransactionJournal.Record> pending = journal.readPending(count, 1 << 20);
+        for (int i = 0; i < count; i++) {
+            assertEquals(payload(i + 1), pending.get(i).payload);
+        }
+    }
+
+    @Test
+    public void appendAsyncAfterCloseReportsAnError() throws Exception {
+        journal.close();
+        String[] error = new String[1];
+        journal.appendAsync(payload(1), new TransactionJournal.AppendCallback() {
+            @Override
+            public void onAppended(long seq) {
+            }
+
+            @Override
+            public void onError(String e) {
+                error[0] = e;
+            }
+        });
+        assertEquals("Transaction journal closed", error[0]);
+        assertFalse(new File(dir, "acked").exists());
+    }
+
+    @Test
+    public void stripsCardSecretsAtAnyDepth() throws Exception {
+        JSONObject data = new JSONObject("{\"pan\":\"5061234567890123456\",\"track2\":\"5061D2812\",\"pin\":\"1234\","
+                + "\"pinBlock\":\"0123456789ABCDEF\",\"card\":{\"PIN\":\"1234\",\"expiry\":\"2812\"},"
+                + "\"legs\":[{\"track2\":\"x\",\"amount\":1}]}");
+        assertEquals(5, TransactionJournal.stripSensitive(data));
+        assertFalse(data.has("track2") || data.has("pin") || data.has("pinBlock"));
+        assertFalse(data.getJSONObject("card").has("PIN"));
+        assertFalse(data.getJSONArray("legs").getJSONObject(0).has("track2"));
+        assertEquals("5061234567890123456", data.getString("pan"));
+        assertEquals("2812", data.getJSONObject("card").getString("expiry"));
+        assertEquals(1, data.getJSONArray("legs").getJSONObject(0).getInt("amount"));
+    }
+
+    private TransactionJournal open() throws Exception {
+        return new TransactionJournal(dir, TransactionJournal.SyncPolicy.NONE, 1);
+    }
+
+    private File onlySegment() {
+        List<File> files = segmentFiles();
+        assertEquals(1, files.size());
+        return files.get(0);
+    }
+
+    private List<File> segmentFiles() {
+        List<File> files = new ArrayList<>();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".seg"))
+                files.add(file);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static String payload(int n) {
+        return "{\"type\":\"card\",\"data\":{\"n\":" + n + "}}";
+    }
+}